@@ -23,19 +23,30 @@
 package simonlang.coastdove.core;
 
 import android.accessibilityservice.AccessibilityService;
+import android.accessibilityservice.AccessibilityServiceInfo;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
+import android.os.Handler;
 import android.util.Log;
 import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import simonlang.coastdove.core.detection.AppDetectionData;
+import simonlang.coastdove.core.detection.AppSession;
+import simonlang.coastdove.core.detection.DetectionEvent;
+import simonlang.coastdove.core.detection.DetectionPipeline;
+import simonlang.coastdove.core.detection.NodeInfoScope;
+import simonlang.coastdove.core.detection.RootNodeInfoProvider;
 import simonlang.coastdove.core.detection.ScreenStateReceiver;
 import simonlang.coastdove.core.ipc.ListenerConnection;
 import simonlang.coastdove.core.utility.Misc;
@@ -49,12 +60,16 @@ import simonlang.coastdove.core.utility.MultipleObjectLoader;
  * regarding such.
  */
 public class CoastDoveService extends AccessibilityService {
+    /** Maximum number of accessibility events waiting to be processed */
+    public static final int EVENT_QUEUE_CAPACITY = 128;
 
     /** Contains all AppDetectionData needed to process detectable apps */
     public static final MultipleObjectLoader<AppDetectionData> multiLoader = new MultipleObjectLoader<>();
     /** All listeners of Coast Dove modules, i.e., connections to services in other apps listening to
      *  app detection performed here. Identified by the remote services' class names */
-    public static final Map<String, ListenerConnection> listeners = new HashMap<>();
+    public static final Map<String, ListenerConnection> listeners = new ConcurrentHashMap<>();
+    /** Processes accessibility events in the background, so the main thread is never blocked by detection */
+    public static final DetectionPipeline pipeline = new DetectionPipeline("CoastDoveDetection", EVENT_QUEUE_CAPACITY);
 
     /** The accessibility service itself, needed to access AccessibilityNodeInfos from
      * outside */
@@ -66,6 +81,16 @@ public class CoastDoveService extends AccessibilityService {
     }
 
 
+    /**
+     * Narrows the accessibility events delivered by the system to those needed by the detection data
+     * currently loaded. To be called whenever detection data are added or removed, or checks are toggled.
+     */
+    public static void updateServiceInfo() {
+        CoastDoveService currentService = service;
+        if (currentService != null)
+            currentService.updateEventFilter();
+    }
+
     /**
      * Adds a listener for the provided app to be enabled. If necessary, the listener is constructed,
      * otherwise the app is enabled on the existing listener.
@@ -126,33 +151,74 @@ public class CoastDoveService extends AccessibilityService {
 
     /** Receiver for when the screen turns off or on */
     private ScreenStateReceiver screenStateReceiver;
-    /** Name of the current activity, as acquired during the last window state change event */
+    /** Name of the current activity, as acquired during the last window state change event.
+     *  Only accessed by the detection pipeline's thread. */
     private String currentActivity;
-    /** Name of the previous app, as extracted from the last activity of the previous app */
-    private String previousPackageName;
+    /** App currently in the foreground. Only written by the detection pipeline's thread. */
+    private volatile AppSession session;
+    /** Handler posting to the detection pipeline's thread */
+    private Handler pipelineHandler;
+    /** Event types last set in the service info */
+    private int filteredEventTypes;
+    /** Package names last set in the service info */
+    private String[] filteredPackageNames;
+    /** Processes events on the detection pipeline's thread */
+    private final DetectionPipeline.Processor eventProcessor = new DetectionPipeline.Processor() {
+        @Override
+        public void process(DetectionEvent event) {
+            processEvent(event);
+        }
+    };
 
 
     /**
-     * Checks the current activity and compares layouts of the current app as necessary
+     * Copies the event and hands it over to the detection pipeline
      * @param event    Accessibility Event that triggered this method
      */
     @Override
     public void onAccessibilityEvent(AccessibilityEvent event) {
-        if (event.getPackageName() != null) {
-            String packageName = event.getPackageName().toString();
+        if (event.getPackageName() != null)
+            pipeline.submit(DetectionEvent.fromAccessibilityEvent(event));
+    }
 
+    /**
+     * Checks the current activity and compares layouts of the current app as necessary.
+     * Runs on the detection pipeline's thread.
+     * @param event    Copy of the accessibility event to process
+     */
+    private void processEvent(DetectionEvent event) {
+        // Changed activity or app?
+        if (event.getEventType() == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED)
             checkActivity(event);
 
-            // Changed app?
-            checkPackageChanged();
-
-            // Handle event detection
-            AppDetectionData detectionData = multiLoader.get(packageName);
-            if (detectionData != null)
-                detectionData.performChecks(event, getRootInActiveWindow(), currentActivity);
+        // Events of the foreground app need no lookup, only others (e.g. notifications) do
+        AppSession currentSession = this.session;
+        AppDetectionData detectionData = currentSession.contains(event) ?
+                currentSession.getDetectionData() : multiLoader.get(event.getPackageName());
+
+        // Handle event detection, recycling all node infos obtained on the way
+        if (detectionData != null) {
+            NodeInfoScope scope = NodeInfoScope.open("Event");
+            try {
+                detectionData.performChecks(event, rootProvider(), currentActivity);
+            } finally {
+                scope.close();
+            }
         }
     }
 
+    /**
+     * Returns a provider fetching the root node info of the active window only when needed
+     */
+    private RootNodeInfoProvider rootProvider() {
+        return new RootNodeInfoProvider() {
+            @Override
+            protected AccessibilityNodeInfo fetch() {
+                return NodeInfoScope.track(getRootInActiveWindow());
+            }
+        };
+    }
+
     /**
      * Returns the activity info of the current activity
      */
@@ -165,49 +231,124 @@ public class CoastDoveService extends AccessibilityService {
     }
 
     /**
-     * Stores the name of the current activity in {@link CoastDoveService#currentActivity}
-     * @param event    AccessibilityEvent that has occurred
+     * Stores the name of the current activity in {@link CoastDoveService#currentActivity}, and starts
+     * a new session if the activity belongs to another app
+     * @param event    Window state change that has occurred
      */
-    private void checkActivity(AccessibilityEvent event) {
+    private void checkActivity(DetectionEvent event) {
         // New activity?
-        if (event.getEventType() == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED) {
-            ComponentName componentName = new ComponentName(
-                    event.getPackageName().toString(),
-                    event.getClassName().toString()
-            );
-
-            ActivityInfo activityInfo = getCurrentActivity(componentName);
-            if (activityInfo != null) {
-                String newActivity = componentName.flattenToShortString();
-                this.currentActivity = newActivity;
-                Log.d("CurrentActivity", newActivity);
-            }
+        if (event.getClassName() == null)
+            return;
+        ComponentName componentName = new ComponentName(
+                event.getPackageName(),
+                event.getClassName()
+        );
+        ActivityInfo activityInfo = getCurrentActivity(componentName);
+        if (activityInfo == null)
+            return;
+
+        String newActivity = componentName.flattenToShortString();
+        this.currentActivity = newActivity;
+        Log.d("CurrentActivity", newActivity);
+
+        // Changed app?
+        if (event.getPackageName().equals(session.getPackageName()))
+            session.setWindowId(event.getWindowId());
+        else
+            changeSession(AppSession.open(event.getPackageName(), multiLoader.get(event.getPackageName()),
+                    event.getWindowId()));
+    }
+
+    /**
+     * Replaces the current session, sending AppClosed and AppOpened events for the according apps
+     * @param newSession    Session of the app that has come to the foreground
+     */
+    private void changeSession(AppSession newSession) {
+        AppSession previousSession = this.session;
+        this.session = newSession;
+
+        // Clean up previous app
+        AppDetectionData previousDetectionData = previousSession.getDetectionData();
+        if (previousDetectionData != null) {
+            long duration = previousSession.getDuration();
+            Log.d("AppSession", previousSession.getPackageName() + " closed after " + duration + " ms");
+            screenStateReceiver.setCurrentDetectionData(null);
+            previousDetectionData.onAppClosed(duration);
+        }
+
+        // Init new app
+        AppDetectionData currentDetectionData = newSession.getDetectionData();
+        if (currentDetectionData != null) {
+            screenStateReceiver.setCurrentDetectionData(currentDetectionData);
+            currentDetectionData.onAppOpened();
         }
+
+        if (previousDetectionData != null || currentDetectionData != null)
+            updateEventFilter();
     }
 
     /**
-     * Check whether the package of the active app has changed. If so, send AppClosed
-     * and AppOpened events for the according apps
+     * Updates the current session after detection data have been loaded or removed.
+     * Runs on the detection pipeline's thread.
+     * @param packageName    Package name of the app whose detection data have changed
      */
-    private void checkPackageChanged() {
-        int slashPos = currentActivity.indexOf('/');
-        String activityPackageName = currentActivity.substring(0, slashPos < 0 ? 0 : slashPos);
-        if (!activityPackageName.equals(previousPackageName)) {
-            // Clean up previous app
-            AppDetectionData previousDetectionData = multiLoader.get(previousPackageName);
-            if (previousDetectionData != null) {
-                screenStateReceiver.setCurrentDetectionData(null);
-                previousDetectionData.onAppClosed();
-            }
+    private void onDetectionDataChanged(String packageName) {
+        if (service != this)
+            return;
 
-            // Init new app
-            AppDetectionData currentDetectionData = multiLoader.get(activityPackageName);
-            if (currentDetectionData != null) {
-                screenStateReceiver.setCurrentDetectionData(currentDetectionData);
-                currentDetectionData.onAppOpened();
+        AppSession currentSession = this.session;
+        if (currentSession.getPackageName().equals(packageName)) {
+            AppDetectionData detectionData = multiLoader.get(packageName);
+            if (detectionData != currentSession.getDetectionData()) {
+                this.session = currentSession.withDetectionData(detectionData);
+                screenStateReceiver.setCurrentDetectionData(detectionData);
             }
         }
-        this.previousPackageName = activityPackageName;
+        updateEventFilter();
+    }
+
+    /**
+     * Sets the event types and package names of this service's info according to the detection data
+     * currently loaded. While a detectable app is in the foreground, window state changes of all apps
+     * are needed to notice when it is closed, along with all event types its checks need. Otherwise,
+     * only window state changes (and notifications, if checked) of the detectable apps are needed.
+     * Without any detection data loaded, no events are needed at all.
+     */
+    private synchronized void updateEventFilter() {
+        AccessibilityServiceInfo info = getServiceInfo();
+        if (info == null)
+            return;
+
+        AppDetectionData foregroundDetectionData = session.getDetectionData();
+        int eventTypes = 0;
+        List<String> packageNames = new ArrayList<>();
+        for (AppDetectionData detectionData : multiLoader.getAll()) {
+            packageNames.add(detectionData.getAppPackageName());
+            eventTypes |= detectionData.getNeededEventTypes(detectionData == foregroundDetectionData);
+        }
+
+        String[] newPackageNames;
+        if (packageNames.isEmpty()) {
+            eventTypes = 0;
+            newPackageNames = null;
+        }
+        else if (foregroundDetectionData != null)
+            newPackageNames = null;
+        else {
+            eventTypes |= AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED;
+            newPackageNames = packageNames.toArray(new String[packageNames.size()]);
+        }
+
+        if (eventTypes == filteredEventTypes && Arrays.equals(newPackageNames, filteredPackageNames))
+            return;
+        this.filteredEventTypes = eventTypes;
+        this.filteredPackageNames = newPackageNames;
+
+        info.eventTypes = eventTypes;
+        info.packageNames = newPackageNames;
+        setServiceInfo(info);
+        Log.d("CoastDoveService", "Event types: " + Integer.toHexString(eventTypes) + ", packages: " +
+                (newPackageNames == null ? "all" : Arrays.toString(newPackageNames)));
     }
 
     @Override
@@ -228,13 +369,34 @@ public class CoastDoveService extends AccessibilityService {
         }
 
         this.currentActivity = "";
-        this.previousPackageName = "";
+        this.session = AppSession.NONE;
+        this.filteredEventTypes = -1;
+        this.filteredPackageNames = null;
+        this.pipelineHandler = new Handler(pipeline.getLooper());
 
         service = this;
+        pipeline.setProcessor(this.eventProcessor);
+
+        // Only receive the events needed by the detectable apps loaded
+        multiLoader.setOnChangeListener(new MultipleObjectLoader.OnChangeListener() {
+            @Override
+            public void onLoadedObjectsChanged(final String key) {
+                pipelineHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onDetectionDataChanged(key);
+                    }
+                });
+            }
+        });
+        updateEventFilter();
     }
 
     @Override
     public void onDestroy() {
+        // Stop processing events
+        pipeline.setProcessor(null);
+        multiLoader.setOnChangeListener(null);
         // Remove screen on/off listener
         unregisterReceiver(this.screenStateReceiver);
         // Unregister all modules
@@ -22,21 +22,25 @@ import android.app.Notification;
 import android.content.Context;
 import android.graphics.Rect;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.Parcelable;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityNodeInfo;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 import simonlang.coastdove.core.CoastDoveService;
 import simonlang.coastdove.core.ipc.ListenerConnection;
 import simonlang.coastdove.core.utility.FileHelper;
+import simonlang.coastdove.core.utility.ParallelChildFetcher;
 import simonlang.coastdove.lib.AppMetaInformation;
-import simonlang.coastdove.lib.CollatorWrapper;
 import simonlang.coastdove.lib.CoastDoveListenerService;
 import simonlang.coastdove.lib.EventType;
 import simonlang.coastdove.lib.InteractionEventData;
@@ -50,26 +54,89 @@ import simonlang.coastdove.lib.ScrollPosition;
  */
 public final class AppDetectionData implements Serializable {
     private static final long serialVersionUID = -4426042140007458029L;
+    /** Maximum number of deferred content changes to patch in; beyond that, the screen is rescanned */
+    private static final int MAX_DEFERRED_LAYOUT_SOURCES = 16;
+    /** Key of the number of interaction events merged into the one sent, due to rate limiting (int) */
+    public static final String DATA_MERGED_INTERACTIONS = "coastdove.mergedInteractions";
+    /** Key of the time the app has been in the foreground, in milliseconds, sent when it is closed (long) */
+    public static final String DATA_SESSION_DURATION = "coastdove.sessionDuration";
+    /** Key set if the layout check ran out of time, so some layouts may be missing (boolean) */
+    public static final String DATA_LAYOUTS_INCOMPLETE = "coastdove.layoutsIncomplete";
+    /** Key set if the interaction check ran out of time, so some interaction data may be missing (boolean) */
+    public static final String DATA_INTERACTION_INCOMPLETE = "coastdove.interactionIncomplete";
+    /** Key of the names of the layouts most similar to the screen, best first, sent if no layout was recognized (String[]) */
+    public static final String DATA_LAYOUT_CANDIDATES = "coastdove.layoutCandidates";
+    /** Key of the scores (Jaccard index, 0 to 1) of the layouts in {@link #DATA_LAYOUT_CANDIDATES} (float[]) */
+    public static final String DATA_LAYOUT_CANDIDATE_SCORES = "coastdove.layoutCandidateScores";
 
     /** Name of the package associated, i.e. the app that can be detected */
     private String appPackageName;
     /** Map (ID -> layout) to identify layouts */
     private Map<String, String> idLayoutMap;
+    /** Identifications of layouts without a unique ID, null if deserialized from an older version */
+    private List<LayoutIdentification> layoutIdentifications;
     /** Contains information about main activities */
     private AppMetaInformation appMetaInformation;
 
     /** Indicates whether to perform layout checks or not */
-    private transient boolean performLayoutChecks;
+    private transient volatile boolean performLayoutChecks;
     /** Indicates whether to perform interaction checks or not */
-    private transient boolean performInteractionChecks;
+    private transient volatile boolean performInteractionChecks;
     /** Indicates whether to perform screen state checks or not */
-    private transient boolean performScreenStateChecks;
+    private transient volatile boolean performScreenStateChecks;
     /**  Indicates whether to perform notification checks or not */
-    private transient boolean performNotificationChecks;
+    private transient volatile boolean performNotificationChecks;
+
+    /** Merges bursts of content changes into fewer layout checks */
+    private transient LayoutCheckCoalescer layoutCheckCoalescer;
+    /** Limits the rate of interaction checks per event type */
+    private transient InteractionRateLimiter interactionRateLimiter;
+    /** Limits the size of view trees sent to listeners */
+    private transient volatile TraversalBudget viewTreeBudget;
+    /** Limits the duration of layout checks */
+    private transient volatile TraversalBudget layoutCheckBudget;
+    /** Limits the duration of interaction checks */
+    private transient volatile TraversalBudget interactionCheckBudget;
+    /** Whether the last interaction check ran out of time */
+    private transient boolean interactionCheckTimedOut;
+    /** Fetches children in parallel when capturing snapshots, null to fetch them sequentially */
+    private transient volatile ParallelChildFetcher<AccessibilityNodeInfo> captureFetcher;
+    /** Traverses live subtrees for interaction event data, reused for all events */
+    private transient NodeInfoTraverser<InteractionEventData> interactionTraverser;
+    /** Queue of snapshot indices, reused for all events */
+    private transient int[] indexQueue;
+    /** Snapshot taken during the last interaction check, null once the screen may have changed */
+    private transient volatile ScreenSnapshot screenSnapshot;
+    /** Number of events dropped by the pipeline when the snapshot was taken */
+    private transient long screenSnapshotDroppedEvents;
+    /** Incremented whenever the screen may have changed, to discard snapshots taken meanwhile */
+    private transient int screenSnapshotGeneration;
+    /** Reused to look up node infos by bounds */
+    private transient Rect scratchBoundsInParent;
+    /** Reused to look up node infos by bounds */
+    private transient Rect scratchBoundsInScreen;
+    /** Compiled index of idLayoutMap, null if deserialized from an older version */
+    private ViewIdTable viewIdTable;
+    /** Layouts recognized, reused for all layout checks */
+    private transient BitSet recognizedLayoutOrdinals;
+    /** Scores layouts if none is recognized */
+    private transient LayoutSimilarity layoutSimilarity;
+    /** Results of layout checks of recently seen screens */
+    private transient LayoutResultCache layoutResultCache;
+    /** Result of the last layout check sent to listeners, null if unknown or incomplete */
+    private transient LayoutResult lastLayoutResult;
+    /** Whether to skip sending results of layout checks that equal the last one sent */
+    private transient volatile boolean suppressUnchangedLayouts;
+    /** Android IDs currently visible, patched on content changes */
+    private transient OnScreenIDSet onScreenIDs;
+    /** Sources of content changes whose layout check was deferred */
+    private transient List<AccessibilityNodeInfo> deferredLayoutSources;
+    /** Whether too many content changes were deferred to patch them in one by one */
+    private transient boolean deferredRescan;
 
 
     /** Replacement data for this app, loaded separately */
-    private transient ReplacementData replacementData;
+    private transient volatile ReplacementData replacementData;
 
     /** Application context */
     private transient Context context;
@@ -81,9 +148,38 @@ public final class AppDetectionData implements Serializable {
      */
     public AppDetectionData(String appPackageName, Map<String, String> idLayoutMap,
                             AppMetaInformation appMetaInformation) {
+        this(appPackageName, idLayoutMap, new ArrayList<LayoutIdentification>(), appMetaInformation);
+    }
+
+    /**
+     * Creates an AppDetectionData object using the given parameters
+     * @param appPackageName             Package name of the detectable app
+     * @param idLayoutMap                Map to identify layouts by unique IDs
+     * @param layoutIdentifications      Identifications of layouts without a unique ID
+     */
+    public AppDetectionData(String appPackageName, Map<String, String> idLayoutMap,
+                            List<LayoutIdentification> layoutIdentifications,
+                            AppMetaInformation appMetaInformation) {
+        this(appPackageName, idLayoutMap, layoutIdentifications, null, appMetaInformation);
+    }
+
+    /**
+     * Creates an AppDetectionData object using the given parameters
+     * @param appPackageName             Package name of the detectable app
+     * @param idLayoutMap                Map to identify layouts by unique IDs
+     * @param layoutIdentifications      Identifications of layouts without a unique ID
+     * @param layoutIDSets               Map (layout -> IDs) of all layouts, to score layouts if none
+     *                                   is recognized; only kept in packed form, may be null
+     */
+    public AppDetectionData(String appPackageName, Map<String, String> idLayoutMap,
+                            List<LayoutIdentification> layoutIdentifications,
+                            Map<String, Set<String>> layoutIDSets,
+                            AppMetaInformation appMetaInformation) {
         this.appPackageName = appPackageName;
         this.appMetaInformation = appMetaInformation;
         this.idLayoutMap = idLayoutMap;
+        this.layoutIdentifications = layoutIdentifications;
+        this.viewIdTable = new ViewIdTable(appPackageName, idLayoutMap, layoutIdentifications, layoutIDSets);
     }
 
     /**
@@ -101,75 +197,188 @@ public final class AppDetectionData implements Serializable {
         this.performNotificationChecks = performNotificationChecks;
         this.replacementData = replacementData;
         this.context = context;
+        this.interactionRateLimiter = new InteractionRateLimiter();
+        this.viewTreeBudget = TraversalBudget.DEFAULT;
+        this.layoutCheckBudget = TraversalBudget.ofMillis(DetectableAppConfig.DEFAULT_LAYOUT_CHECK_MAX_MILLIS);
+        this.interactionCheckBudget = TraversalBudget.ofMillis(DetectableAppConfig.DEFAULT_INTERACTION_CHECK_MAX_MILLIS);
+        this.interactionCheckTimedOut = false;
+        this.captureFetcher = null;
+        this.interactionTraverser = new NodeInfoTraverser<>(
+                new NodeInfoDataExtractor<InteractionEventData>() {
+                    @Override
+                    public InteractionEventData extractData(AccessibilityNodeInfo nodeInfo) {
+                        return InteractionEventDataHelper.fromAccessibilityNodeInfo(nodeInfo,
+                                AppDetectionData.this.replacementData);
+                    }
+                }, NodeInfoFilter.HAS_INTERACTION_DATA);
+        this.indexQueue = null;
+        this.screenSnapshot = null;
+        this.screenSnapshotGeneration = 0;
+        this.scratchBoundsInParent = new Rect();
+        this.scratchBoundsInScreen = new Rect();
+        if (this.layoutIdentifications == null)
+            this.layoutIdentifications = new ArrayList<>();
+        if (this.viewIdTable == null)
+            this.viewIdTable = new ViewIdTable(appPackageName, idLayoutMap, layoutIdentifications);
+        this.recognizedLayoutOrdinals = new BitSet(viewIdTable.getLayoutCount());
+        this.layoutSimilarity = new LayoutSimilarity(viewIdTable, LayoutSimilarity.DEFAULT_MAX_CANDIDATES);
+        this.layoutResultCache = new LayoutResultCache(DetectableAppConfig.DEFAULT_LAYOUT_RESULT_CACHE_SIZE);
+        this.lastLayoutResult = null;
+        this.suppressUnchangedLayouts = DetectableAppConfig.DEFAULT_SUPPRESS_UNCHANGED_LAYOUTS;
+        this.onScreenIDs = new OnScreenIDSet(viewIdTable);
+        this.deferredLayoutSources = new ArrayList<>();
+        this.deferredRescan = false;
+        this.layoutCheckCoalescer = new LayoutCheckCoalescer(new Handler(CoastDoveService.pipeline.getLooper()),
+                DetectableAppConfig.DEFAULT_LAYOUT_CHECK_INTERVAL,
+                new LayoutCheckCoalescer.Callback() {
+                    @Override
+                    public void onTrailingCheck(int windowId) {
+                        performTrailingLayoutCheck(windowId);
+                    }
+                });
     }
 
     /**
      * Performs necessary operations to detect the layouts currently being used by the according app,
      * and/or gesture events and/or interaction events
-     * @param event       Accessibility event that was triggered
-     * @param activity    Current activity to add to the ActivityDataEntry
+     * Runs on the detection pipeline's thread.
+     * @param event           Accessibility event that was triggered
+     * @param rootProvider    Provides the root node info of the active window, only queried if
+     *                        a check that needs the tree is performed
+     * @param activity        Current activity to add to the ActivityDataEntry
      */
-    public void performChecks(AccessibilityEvent event, AccessibilityNodeInfo rootNodeInfo, String activity) {
-        boolean notifyListeners = false;
+    public void performChecks(DetectionEvent event, RootNodeInfoProvider rootProvider, String activity) {
+        if (invalidatesScreenSnapshot(event))
+            invalidateScreenSnapshot();
+
+        Set<DetectionCheck> checks = checksToPerform(event);
+        if (checks.isEmpty())
+            return;
+
         int type = 0;
         Bundle data = new Bundle();
 
+        // Only checks that need the tree may fetch its root
+        if (!DetectionCheck.anyNeedsTree(checks))
+            rootProvider = RootNodeInfoProvider.NONE;
+
         // Activity
-        if (shallPerformActivityChecks(event)) {
-            notifyListeners = true;
-            type |= CoastDoveListenerService.MSG_ACTIVITY_DETECTED;
+        if (checks.contains(DetectionCheck.ACTIVITY)) {
+            type |= DetectionCheck.ACTIVITY.getMessageType();
             data.putString(CoastDoveListenerService.DATA_ACTIVITY, activity);
         }
 
         // Layouts
-        if (shallPerformLayoutChecks(event)) {
-            Set<String> recognizedLayouts = checkLayouts(event.getSource(), rootNodeInfo);
-            notifyListeners = true;
-            type |= CoastDoveListenerService.MSG_LAYOUTS_DETECTED;
-            data.putStringArray(CoastDoveListenerService.DATA_LAYOUTS, recognizedLayouts.toArray(new String[recognizedLayouts.size()]));
+        if (checks.contains(DetectionCheck.LAYOUTS)) {
+            LayoutResult layoutResult = checkLayouts(event, rootProvider);
+            if (shallSendLayouts(layoutResult)) {
+                type |= DetectionCheck.LAYOUTS.getMessageType();
+                layoutResult.putInto(data);
+                if (!onScreenIDs.isComplete())
+                    data.putBoolean(DATA_LAYOUTS_INCOMPLETE, true);
+            }
         }
 
         // Interaction
-        if (shallPerformInteractionChecks(event)) {
-            EventType eventType;
-            switch (event.getEventType()) {
-                case AccessibilityEvent.TYPE_VIEW_CLICKED:
-                    eventType = EventType.CLICK;
-                    break;
-                case AccessibilityEvent.TYPE_VIEW_LONG_CLICKED:
-                    eventType = EventType.LONG_CLICK;
-                    break;
-                case AccessibilityEvent.TYPE_VIEW_SCROLLED:
-                    eventType = EventType.SCROLLING;
-                    break;
-                default:
-                    eventType = EventType.OTHER;
-                    break;
+        if (checks.contains(DetectionCheck.INTERACTION)) {
+            EventType eventType = interactionEventType(event);
+            // Walk the tree only once, for all lookups of this check and until the screen changes
+            Deadline deadline = interactionCheckBudget.startDeadline();
+            ScreenSnapshot snapshot = currentScreenSnapshot(event, rootProvider, deadline);
+            Set<InteractionEventData> interactionEventData = checkInteractionEvents(event.getSource(), snapshot,
+                    eventType, deadline);
+            type |= DetectionCheck.INTERACTION.getMessageType();
+            if (interactionCheckTimedOut) {
+                interactionCheckBudget.recordOverrun();
+                data.putBoolean(DATA_INTERACTION_INCOMPLETE, true);
             }
-            Set<InteractionEventData> interactionEventData = checkInteractionEvents(event.getSource(), rootNodeInfo, eventType);
-            notifyListeners = true;
-            type |= CoastDoveListenerService.MSG_INTERACTION_DETECTED;
             data.putParcelableArray(CoastDoveListenerService.DATA_INTERACTION, interactionEventData.toArray(new InteractionEventData[interactionEventData.size()]));
             data.putString(CoastDoveListenerService.DATA_EVENT_TYPE, eventType.name());
+            int merged = interactionRateLimiter.takeSuppressed(eventType);
+            if (merged > 0)
+                data.putInt(DATA_MERGED_INTERACTIONS, merged);
         }
 
-        if (shallPerformScrollPositionChecks(event)) {
+        if (checks.contains(DetectionCheck.SCROLL_POSITION)) {
             ScrollPosition scrollPosition = checkScrollPosition(event);
-            notifyListeners = true;
-            type |= CoastDoveListenerService.MSG_SCROLL_POSITION_DETECTED;
+            type |= DetectionCheck.SCROLL_POSITION.getMessageType();
             data.putParcelable(CoastDoveListenerService.DATA_SCROLL_POSITION, scrollPosition);
         }
 
-        if (shallPerformNotificationChecks(event)) {
+        if (checks.contains(DetectionCheck.NOTIFICATION)) {
             String notificationContent = checkNotification(event);
-            notifyListeners = true;
-            type |= CoastDoveListenerService.MSG_NOTIFICATION_DETECTED;
+            type |= DetectionCheck.NOTIFICATION.getMessageType();
             data.putString(CoastDoveListenerService.DATA_NOTIFICATION, notificationContent);
         }
 
-        if (notifyListeners) {
+        // Nothing left to send if only unchanged layouts were detected
+        if (type == 0)
+            return;
+        for (ListenerConnection listener : CoastDoveService.listeners.values())
+            listener.sendMessage(this.appPackageName, type, data);
+    }
+
+    /**
+     * Returns the checks to perform for the given event, according to the event type and
+     * the checks enabled
+     */
+    private Set<DetectionCheck> checksToPerform(DetectionEvent event) {
+        Set<DetectionCheck> checks = EnumSet.noneOf(DetectionCheck.class);
+        if (shallPerformActivityChecks(event))
+            checks.add(DetectionCheck.ACTIVITY);
+        if (shallPerformLayoutChecks(event) && !deferLayoutChecks(event))
+            checks.add(DetectionCheck.LAYOUTS);
+        if (shallPerformInteractionChecks(event) &&
+                interactionRateLimiter.tryAcquire(interactionEventType(event), event.getEventTime()))
+            checks.add(DetectionCheck.INTERACTION);
+        if (shallPerformScrollPositionChecks(event))
+            checks.add(DetectionCheck.SCROLL_POSITION);
+        if (shallPerformNotificationChecks(event))
+            checks.add(DetectionCheck.NOTIFICATION);
+        return checks;
+    }
+
+    /**
+     * Performs a layout check that was deferred by the layout check coalescer, using the current
+     * state of the screen. Skipped if the window is no longer active.
+     * @param windowId    Window whose content has changed
+     */
+    private void performTrailingLayoutCheck(int windowId) {
+        CoastDoveService service = CoastDoveService.getService();
+        if (service == null || !performLayoutChecks)
+            return;
+
+        NodeInfoScope scope = NodeInfoScope.open("TrailingLayoutCheck");
+        try {
+            AccessibilityNodeInfo rootNodeInfo = NodeInfoScope.track(service.getRootInActiveWindow());
+            if (rootNodeInfo == null || rootNodeInfo.getWindowId() != windowId ||
+                    rootNodeInfo.getPackageName() == null ||
+                    !appPackageName.equals(rootNodeInfo.getPackageName().toString()))
+                return;
+
+            // Patch in all content changes since the last check, if possible
+            TraversalBudget budget = layoutCheckBudget;
+            Deadline deadline = budget.startDeadline();
+            boolean patched = !deferredRescan;
+            for (AccessibilityNodeInfo source : deferredLayoutSources)
+                patched = patched && source.refresh() && onScreenIDs.update(source, deadline);
+            clearDeferredLayoutSources();
+            if (!patched)
+                onScreenIDs.rebuild(rootNodeInfo, deadline);
+
+            if (!onScreenIDs.isComplete())
+                budget.recordOverrun();
+            LayoutResult layoutResult = currentLayoutResult();
+            if (!shallSendLayouts(layoutResult))
+                return;
+            Bundle data = new Bundle();
+            layoutResult.putInto(data);
+            if (!onScreenIDs.isComplete())
+                data.putBoolean(DATA_LAYOUTS_INCOMPLETE, true);
             for (ListenerConnection listener : CoastDoveService.listeners.values())
-                listener.sendMessage(this.appPackageName, type, data);
+                listener.sendMessage(this.appPackageName, CoastDoveListenerService.MSG_LAYOUTS_DETECTED, data);
+        } finally {
+            scope.close();
         }
     }
 
@@ -200,10 +409,21 @@ public final class AppDetectionData implements Serializable {
     /**
      * Notifies listeners that the app to be detected has been closed, and updates the internal
      * replacement mapping for private data. Automatically called by CoastDoveService.
+     * @param sessionDuration    Time the app has been in the foreground, in milliseconds
      */
-    public void onAppClosed() {
+    public void onAppClosed(long sessionDuration) {
+        Bundle data = new Bundle();
+        data.putLong(DATA_SESSION_DURATION, sessionDuration);
         for (ListenerConnection listener : CoastDoveService.listeners.values())
-            listener.sendMessage(this.appPackageName, CoastDoveListenerService.MSG_APP_CLOSED, null);
+            listener.sendMessage(this.appPackageName, CoastDoveListenerService.MSG_APP_CLOSED, data);
+        if (layoutCheckCoalescer != null) {
+            layoutCheckCoalescer.reset();
+            interactionRateLimiter.reset();
+            invalidateScreenSnapshot();
+            clearDeferredLayoutSources();
+            onScreenIDs.clear();
+            lastLayoutResult = null;
+        }
         updateReplacementMapping();
     }
 
@@ -236,7 +456,7 @@ public final class AppDetectionData implements Serializable {
     /**
      * Returns true iff the current activity shall be checked
      */
-    private boolean shallPerformActivityChecks(AccessibilityEvent event) {
+    private boolean shallPerformActivityChecks(DetectionEvent event) {
         if (event.getEventType() != AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED)
             return false;
 
@@ -246,7 +466,7 @@ public final class AppDetectionData implements Serializable {
     /**
      * Returns true iff a layout comparison shall be performed
      */
-    private boolean shallPerformLayoutChecks(AccessibilityEvent event) {
+    private boolean shallPerformLayoutChecks(DetectionEvent event) {
         if (event.getEventType() != AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED &&
                 event.getEventType() != AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED)
             return false;
@@ -258,10 +478,44 @@ public final class AppDetectionData implements Serializable {
         return true;
     }
 
+    /**
+     * Lets the layout check coalescer decide whether the layout check for the given event can be
+     * performed right away. Window state changes are always checked; bursts of content changes
+     * are merged into one check per interval, see {@link LayoutCheckCoalescer}.
+     * @return True iff the layout check is deferred
+     */
+    private boolean deferLayoutChecks(DetectionEvent event) {
+        if (event.getEventType() == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED) {
+            layoutCheckCoalescer.onChecked(event.getWindowId());
+            clearDeferredLayoutSources();
+            return false;
+        }
+        if (layoutCheckCoalescer.onContentChanged(event.getWindowId()))
+            return false;
+
+        // Remember what has changed for the trailing check
+        AccessibilityNodeInfo source = event.getSource();
+        if (source == null || deferredLayoutSources.size() >= MAX_DEFERRED_LAYOUT_SOURCES)
+            deferredRescan = true;
+        else if (!deferredRescan && !deferredLayoutSources.contains(source))
+            deferredLayoutSources.add(AccessibilityNodeInfo.obtain(source));
+        return true;
+    }
+
+    /**
+     * Recycles and forgets all sources of deferred content changes
+     */
+    private void clearDeferredLayoutSources() {
+        for (AccessibilityNodeInfo source : deferredLayoutSources)
+            source.recycle();
+        deferredLayoutSources.clear();
+        deferredRescan = false;
+    }
+
     /**
      * Returns true iff an interaction event check shall be performed
      */
-    private boolean shallPerformInteractionChecks(AccessibilityEvent event) {
+    private boolean shallPerformInteractionChecks(DetectionEvent event) {
         if (event.getEventType() != AccessibilityEvent.TYPE_VIEW_CLICKED &&
                 event.getEventType() != AccessibilityEvent.TYPE_VIEW_LONG_CLICKED &&
                 event.getEventType() != AccessibilityEvent.TYPE_VIEW_SCROLLED)
@@ -274,10 +528,26 @@ public final class AppDetectionData implements Serializable {
         return true;
     }
 
+    /**
+     * Returns the type of interaction the given event stands for
+     */
+    private static EventType interactionEventType(DetectionEvent event) {
+        switch (event.getEventType()) {
+            case AccessibilityEvent.TYPE_VIEW_CLICKED:
+                return EventType.CLICK;
+            case AccessibilityEvent.TYPE_VIEW_LONG_CLICKED:
+                return EventType.LONG_CLICK;
+            case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+                return EventType.SCROLLING;
+            default:
+                return EventType.OTHER;
+        }
+    }
+
     /**
      * Returns true iff a notification check shall be performed
      */
-    private boolean shallPerformNotificationChecks(AccessibilityEvent event) {
+    private boolean shallPerformNotificationChecks(DetectionEvent event) {
         if (event.getEventType() != AccessibilityEvent.TYPE_NOTIFICATION_STATE_CHANGED)
             return false;
         if (!performNotificationChecks)
@@ -291,7 +561,7 @@ public final class AppDetectionData implements Serializable {
      * @param event
      * @return
      */
-    private boolean shallPerformScrollPositionChecks(AccessibilityEvent event) {
+    private boolean shallPerformScrollPositionChecks(DetectionEvent event) {
         if (event.getEventType() != AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED &&
                 event.getEventType() != AccessibilityEvent.TYPE_VIEW_SCROLLED)
             return false;
@@ -304,77 +574,168 @@ public final class AppDetectionData implements Serializable {
     }
 
     /**
-     * Performs necessary operations to detect the layouts currently being used
-     * @param source      Source node info
-     * @return Detected layouts
+     * Performs necessary operations to detect the layouts currently being used. After a window
+     * state change, all android IDs on the screen are collected again; after a content change,
+     * only the subtree of the event's source is walked and patched in. If the walk runs out of
+     * time, the layouts recognized from the android IDs collected so far are returned, and the
+     * android IDs are collected again on the next check.
+     * @param event           Event that triggered the check
+     * @param rootProvider    Provides the root node info of the active window, only queried
+     *                        if all android IDs need to be collected again
+     * @return Result of the check, see {@link #currentLayoutResult()}
+     */
+    private LayoutResult checkLayouts(DetectionEvent event, RootNodeInfoProvider rootProvider) {
+        TraversalBudget budget = layoutCheckBudget;
+        Deadline deadline = budget.startDeadline();
+        if (event.getEventType() == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED ||
+                !onScreenIDs.update(event.getSource(), deadline))
+            onScreenIDs.rebuild(rootProvider.get(), deadline);
+        if (!onScreenIDs.isComplete())
+            budget.recordOverrun();
+        return currentLayoutResult();
+    }
+
+    /**
+     * Returns the result of recognizing the layouts on the screen. If the same android IDs have
+     * been on the screen recently, the result is taken from the cache instead. Results of
+     * incomplete sets of android IDs are neither taken from nor added to the cache.
+     */
+    private LayoutResult currentLayoutResult() {
+        boolean complete = onScreenIDs.isComplete();
+        long fingerprint = onScreenIDs.getFingerprint();
+        LayoutResult result = complete ? layoutResultCache.get(fingerprint) : null;
+        if (result == null) {
+            result = toLayoutResult(recognizeLayouts(onScreenIDs));
+            if (complete)
+                layoutResultCache.put(fingerprint, result);
+        }
+        return result;
+    }
+
+    /**
+     * Indicates whether to send the given result of a layout check to listeners, and if so,
+     * remembers it as the last one sent. If enabled (see {@link #setSuppressUnchangedLayouts(boolean)}),
+     * results equal to the last one sent are skipped, unless the android IDs on the screen are incomplete.
      */
-    private Set<String> checkLayouts(AccessibilityNodeInfo source, AccessibilityNodeInfo rootNodeInfo) {
-        Set<String> androidIDsOnScreen = androidIDsOnScreen(rootNodeInfo);
-        return recognizedLayouts(androidIDsOnScreen);
+    private boolean shallSendLayouts(LayoutResult result) {
+        boolean complete = onScreenIDs.isComplete();
+        if (suppressUnchangedLayouts && complete && result.sameAs(lastLayoutResult))
+            return false;
+        lastLayoutResult = complete ? result : null;
+        return true;
     }
 
     /**
-     * Handles interaction events, i.e. creates a data entry showing which element was interacted with
-     * @param source    Source node info
+     * Handles interaction events, i.e. creates a data entry showing which element was interacted with.
+     * Sets interactionCheckTimedOut if the data may be incomplete as the deadline has expired.
+     * @param source      Source node info
+     * @param snapshot    Snapshot of the current screen, possibly incomplete
+     * @param deadline    Time at which to stop walking live subtrees
      * @return Data regarding this interaction event
      */
-    private Set<InteractionEventData> checkInteractionEvents(AccessibilityNodeInfo source, AccessibilityNodeInfo rootNodeInfo,
-                                                             EventType type) {
+    private Set<InteractionEventData> checkInteractionEvents(AccessibilityNodeInfo source, ScreenSnapshot snapshot,
+                                                             EventType type, Deadline deadline) {
         Set<InteractionEventData> result = new CopyOnWriteArraySet<>();
+        interactionCheckTimedOut = false;
 
-        // Try to find the node info with the same bounds as the source.
+        // Try to find the node with the same bounds as the source.
         // For some reason, the source does not contain any View ID information,
-        // so we need to find the same node info again in order to get the view ID.
-        AccessibilityNodeInfo subTree = findNodeInfo(source, rootNodeInfo);
-
-        if (subTree == null)
-            subTree = source;
-
-        NodeInfoTraverser<InteractionEventData> traverser = new NodeInfoTraverser<>(subTree,
-                new NodeInfoDataExtractor<InteractionEventData>() {
-                    @Override
-                    public InteractionEventData extractData(AccessibilityNodeInfo nodeInfo) {
-                        return InteractionEventDataHelper.fromAccessibilityNodeInfo(nodeInfo, replacementData);
-                    }
-                },
-                new NodeInfoFilter() {
-                    @Override
-                    public boolean filter(AccessibilityNodeInfo nodeInfo) {
-                        return nodeInfo != null &&
-                                (nodeInfo.getViewIdResourceName() != null || nodeInfo.getText() != null ||
-                                 nodeInfo.getContentDescription() != null);
-                    }
-                });
+        // so we need to find the same node again in order to get the view ID.
+        int subTree = findNodeInfo(source, snapshot);
 
-        switch (type) {
-            case CLICK:
-            case LONG_CLICK:
-                result.addAll(traverser.getAllFiltered());
-                break;
-            case SCROLLING:
-                InteractionEventData data = traverser.nextFiltered();
-                if (data != null)
-                    result.add(data);
+        if (subTree >= 0) {
+            collectInteractionEventData(snapshot, subTree, type, result);
+            // Descendants of the node may be missing from the snapshot
+            interactionCheckTimedOut = !snapshot.isComplete();
         }
+        else
+            interactionCheckTimedOut = !collectInteractionEventData(source, type, result, deadline);
 
         // todo: do not add parent?
         // If we still didn't get any node with at least an ID or a text, add the source node's parent
         if (result.size() == 0) {
-            AccessibilityNodeInfo parent = source.getParent();
-            if (parent != null &&
-                    (parent.getViewIdResourceName() != null
-                    || parent.getText() != null || parent.getContentDescription() != null))
-                result.add(InteractionEventDataHelper.fromAccessibilityNodeInfo(parent, replacementData));
+            if (subTree >= 0) {
+                FlatViewTree tree = snapshot.getTree();
+                int parent = tree.getParent(subTree);
+                if (parent >= 0 && tree.hasIdentifyingData(parent))
+                    result.add(InteractionEventDataHelper.fromFlatViewTree(tree, parent, replacementData));
+            }
+            else {
+                AccessibilityNodeInfo parent = NodeInfoScope.track(source.getParent());
+                if (parent != null &&
+                        (parent.getViewIdResourceName() != null
+                        || parent.getText() != null || parent.getContentDescription() != null))
+                    result.add(InteractionEventDataHelper.fromAccessibilityNodeInfo(parent, replacementData));
+            }
         }
 
         return result;
     }
 
+    /**
+     * Collects interaction event data from the subtree of the given snapshot node, breadth-first
+     * @param snapshot      Snapshot of the current screen
+     * @param startIndex    Index of the subtree's root in the snapshot
+     * @param type          Type of interaction; only the first matching node is collected for scrolling
+     * @param result        Set to add the data to
+     */
+    private void collectInteractionEventData(ScreenSnapshot snapshot, int startIndex, EventType type,
+                                             Set<InteractionEventData> result) {
+        if (type != EventType.CLICK && type != EventType.LONG_CLICK && type != EventType.SCROLLING)
+            return;
+
+        // Reused queue of snapshot indices; each node is enqueued at most once
+        FlatViewTree tree = snapshot.getTree();
+        if (indexQueue == null || indexQueue.length < tree.size())
+            indexQueue = new int[Math.max(tree.size(), 64)];
+        int head = 0;
+        int tail = 0;
+        indexQueue[tail++] = startIndex;
+        while (head < tail) {
+            int index = indexQueue[head++];
+            for (int i = 0; i < tree.getChildCount(index); ++i)
+                indexQueue[tail++] = tree.getChild(index, i);
+
+            if (tree.hasIdentifyingData(index)) {
+                result.add(InteractionEventDataHelper.fromFlatViewTree(tree, index, replacementData));
+                if (type == EventType.SCROLLING)
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Collects interaction event data from the live subtree of the given node info. Only used if the
+     * node info cannot be found in the snapshot.
+     * @param source      Source node info
+     * @param type        Type of interaction; only the first matching node is collected for scrolling
+     * @param result      Set to add the data to
+     * @param deadline    Time at which to stop walking the subtree
+     * @return False if the deadline expired before the subtree was walked
+     */
+    private boolean collectInteractionEventData(AccessibilityNodeInfo source, EventType type,
+                                                Set<InteractionEventData> result, Deadline deadline) {
+        interactionTraverser.reset(source);
+        interactionTraverser.setDeadline(deadline);
+        switch (type) {
+            case CLICK:
+            case LONG_CLICK:
+                interactionTraverser.collectFiltered(result, Integer.MAX_VALUE);
+                break;
+            case SCROLLING:
+                interactionTraverser.collectFiltered(result, 1);
+        }
+        boolean complete = !interactionTraverser.hasTimedOut();
+        // Do not hold on to any node infos
+        interactionTraverser.reset(null);
+        return complete;
+    }
+
     /**
      * Checks the current scroll position and returns it in a ScrollPosition object
      * @param event    Event triggered by scrolling or by first showing the list
      */
-    private ScrollPosition checkScrollPosition(AccessibilityEvent event) {
+    private ScrollPosition checkScrollPosition(DetectionEvent event) {
         return new ScrollPosition(event.getFromIndex(), event.getToIndex(), event.getItemCount());
     }
 
@@ -383,7 +744,7 @@ public final class AppDetectionData implements Serializable {
      * @param event    Event triggered by the notification
      * @return Notification content
      */
-    private String checkNotification(AccessibilityEvent event) {
+    private String checkNotification(DetectionEvent event) {
         // Get notification data
         Parcelable data = event.getParcelableData();
         if (data instanceof Notification) {
@@ -409,90 +770,145 @@ public final class AppDetectionData implements Serializable {
     }
 
     /**
-     * Tries to find a given node info in the given tree of node infos, comparing them
+     * Tries to find a given node info in the given snapshot, comparing them
      * by their bounds only. This is needed for some events where the delivered source
      * node info does not contain any View ID information, but the entire tree of node
-     * infos does. Finding the same node info in the tree solves this problem.
-     * @param nodeInfoToFind    Node info to be found in the tree
-     * @param nodeInfoTree      Tree in which to look for the node info
-     * @return The node info found in the tree, or null if none was found
-     */
-    private AccessibilityNodeInfo findNodeInfo(AccessibilityNodeInfo nodeInfoToFind, AccessibilityNodeInfo nodeInfoTree) {
-        Rect bounds = new Rect();
-        nodeInfoToFind.getBoundsInParent(bounds);
-        final Rect boundsInParent = new Rect(bounds);
-        nodeInfoToFind.getBoundsInScreen(bounds);
-        final Rect boundsInScreen = new Rect(bounds);
-
-        NodeInfoTraverser<AccessibilityNodeInfo> nodeFinder = new NodeInfoTraverser<>(nodeInfoTree,
-                new NodeInfoDataExtractor<AccessibilityNodeInfo>() {
-                    @Override
-                    public AccessibilityNodeInfo extractData(AccessibilityNodeInfo nodeInfo) {
-                        // We need the node info directly
-                        return nodeInfo;
-                    }
-                },
-                new NodeInfoFilter() {
-                    @Override
-                    public boolean filter(AccessibilityNodeInfo nodeInfo) {
-                        // But only the (first) one with matching bounds
-                        if (nodeInfo == null)
-                            return false;
-                        Rect bounds = new Rect();
-                        nodeInfo.getBoundsInParent(bounds);
-
-                        if (!bounds.equals(boundsInParent))
-                            return false;
-                        nodeInfo.getBoundsInScreen(bounds);
-                        if (!bounds.equals(boundsInScreen))
-                            return false;
-
-                        return true;
-                    }
-                });
-        return nodeFinder.nextFiltered();
+     * infos does. Finding the same node in the snapshot solves this problem.
+     * @param nodeInfoToFind    Node info to be found in the snapshot
+     * @param snapshot          Snapshot in which to look for the node info
+     * @return Index of the node found in the snapshot, or -1 if none was found
+     */
+    private int findNodeInfo(AccessibilityNodeInfo nodeInfoToFind, ScreenSnapshot snapshot) {
+        nodeInfoToFind.getBoundsInParent(scratchBoundsInParent);
+        nodeInfoToFind.getBoundsInScreen(scratchBoundsInScreen);
+        CharSequence className = nodeInfoToFind.getClassName();
+
+        return snapshot.findByBounds(scratchBoundsInParent, scratchBoundsInScreen,
+                className == null ? null : className.toString());
     }
 
     /**
-     * Returns a set of android IDs that occur on the current screen
-     * @param startNodeInfo    Starting node from which to consider objects on screen (root node for all)
+     * Returns the latest snapshot of the given window, if the window's content has not changed
+     * since. May be called from any thread.
+     * @param windowId    Window of interest
+     * @return The snapshot, or null if there is no up-to-date snapshot of the window
      */
-    private Set<String> androidIDsOnScreen(AccessibilityNodeInfo startNodeInfo) {
-        Set<String> androidIDsOnScreen = new TreeSet<>(new CollatorWrapper());
+    public synchronized ScreenSnapshot getScreenSnapshot(int windowId) {
+        // Events dropped by the pipeline may have changed the screen as well
+        ScreenSnapshot snapshot = this.screenSnapshot;
+        return snapshot != null && snapshot.getWindowId() == windowId &&
+                CoastDoveService.pipeline.getDroppedCount() == screenSnapshotDroppedEvents ? snapshot : null;
+    }
 
-        NodeInfoTraverser<String> traverser = new NodeInfoTraverser<>(startNodeInfo,
-                new NodeInfoDataExtractor<String>() {
-                    @Override
-                    public String extractData(AccessibilityNodeInfo nodeInfo) {
-                        return nodeInfo.getViewIdResourceName().replace(appPackageName + ":", "");
-                    }
-                },
-                new NodeInfoFilter() {
-                    @Override
-                    public boolean filter(AccessibilityNodeInfo nodeInfo) {
-                        return nodeInfo != null &&
-                                nodeInfo.getViewIdResourceName() != null &&
-                                nodeInfo.isVisibleToUser();
-                    }
-                });
-        androidIDsOnScreen.addAll(traverser.getAllFiltered());
+    /**
+     * Returns an up-to-date snapshot of the event's window, taking a new one only if necessary.
+     * A snapshot that cannot be taken before the deadline is returned as is, but not kept.
+     */
+    private ScreenSnapshot currentScreenSnapshot(DetectionEvent event, RootNodeInfoProvider rootProvider,
+                                                 Deadline deadline) {
+        ScreenSnapshot snapshot = getScreenSnapshot(event.getWindowId());
+        if (snapshot == null) {
+            int generation;
+            long droppedEvents;
+            synchronized (this) {
+                generation = screenSnapshotGeneration;
+                droppedEvents = CoastDoveService.pipeline.getDroppedCount();
+            }
+            snapshot = ScreenSnapshot.capture(rootProvider.get(), captureFetcher, deadline);
+            if (snapshot.isComplete())
+                publishScreenSnapshot(snapshot, generation, droppedEvents);
+        }
+        return snapshot;
+    }
 
-        return androidIDsOnScreen;
+    /**
+     * Keeps the given snapshot for later lookups, unless the screen may have changed while
+     * it was being taken
+     * @param snapshot         Snapshot taken
+     * @param generation       Value of screenSnapshotGeneration before taking the snapshot
+     * @param droppedEvents    Number of events dropped by the pipeline before taking the snapshot
+     */
+    private synchronized void publishScreenSnapshot(ScreenSnapshot snapshot, int generation, long droppedEvents) {
+        if (generation != screenSnapshotGeneration)
+            return;
+        this.screenSnapshot = snapshot;
+        this.screenSnapshotDroppedEvents = droppedEvents;
+    }
+
+    /**
+     * Discards the latest snapshot, as the screen may have changed
+     */
+    private synchronized void invalidateScreenSnapshot() {
+        this.screenSnapshot = null;
+        ++this.screenSnapshotGeneration;
     }
 
     /**
-     * Returns the set of layouts recognized, given the set of android IDs detected on the screen,
-     * and the set of possibly recognizable layouts
-     * @param androidIDs         set of android IDs detected on the screen
+     * Indicates whether the given event may have changed the screen, so that snapshots taken
+     * before are outdated. Clicks and notifications do not change the screen by themselves.
      */
-    private Set<String> recognizedLayouts(Set<String> androidIDs) {
-        Set<String> recognizedLayouts = new TreeSet<>(new CollatorWrapper());
-        for (String id : androidIDs) {
-            if (idLayoutMap.containsKey(id))
-                recognizedLayouts.add(idLayoutMap.get(id));
+    private static boolean invalidatesScreenSnapshot(DetectionEvent event) {
+        switch (event.getEventType()) {
+            case AccessibilityEvent.TYPE_VIEW_CLICKED:
+            case AccessibilityEvent.TYPE_VIEW_LONG_CLICKED:
+            case AccessibilityEvent.TYPE_NOTIFICATION_STATE_CHANGED:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Returns the ordinals (see {@link ViewIdTable}) of the layouts recognized, given the set of
+     * android IDs detected on the screen. A layout is recognized by a unique android ID, or by all
+     * android IDs of one of its identifiers. Allocates nothing; the result is reused by the next check.
+     * @param androidIDs         multiset of android IDs detected on the screen
+     */
+    private BitSet recognizeLayouts(OnScreenIDSet androidIDs) {
+        BitSet layouts = recognizedLayoutOrdinals;
+        layouts.clear();
+        for (int k = 0; k < androidIDs.getVisibleIDCount(); ++k) {
+            int id = androidIDs.getVisibleID(k);
+            int layout = viewIdTable.getLayout(id);
+            if (layout >= 0)
+                layouts.set(layout);
+
+            // Identifiers anchored at this android ID
+            for (int i = viewIdTable.getIdentifierStart(id); i < viewIdTable.getIdentifierEnd(id); ++i) {
+                if (layouts.get(viewIdTable.getIdentifierLayout(i)))
+                    continue;
+                boolean allVisible = true;
+                for (int m = 1; m < viewIdTable.getIdentifierSize(i) && allVisible; ++m)
+                    allVisible = androidIDs.isVisible(viewIdTable.getIdentifierMember(i, m));
+                if (allVisible)
+                    layouts.set(viewIdTable.getIdentifierLayout(i));
+            }
         }
+        return layouts;
+    }
 
-        return recognizedLayouts;
+    /**
+     * Creates the result to be sent to listeners from the given layouts. If there are none, the
+     * layouts most similar to the android IDs on the screen are added instead, along with their scores
+     * (see {@link #DATA_LAYOUT_CANDIDATES}), if the detection data has the android IDs of all layouts.
+     * @param layouts    Layout ordinals; they are sorted like layouts sent to listeners, so
+     *                   no sorting is needed here
+     */
+    private LayoutResult toLayoutResult(BitSet layouts) {
+        String[] names = new String[layouts.cardinality()];
+        int i = 0;
+        for (int layout = layouts.nextSetBit(0); layout >= 0; layout = layouts.nextSetBit(layout + 1))
+            names[i++] = viewIdTable.getLayoutName(layout);
+
+        int candidateCount = names.length > 0 ? 0 : layoutSimilarity.score(onScreenIDs,
+                LayoutSimilarity.Metric.JACCARD, LayoutSimilarity.DEFAULT_MIN_SCORE);
+        String[] candidates = new String[candidateCount];
+        float[] scores = new float[candidateCount];
+        for (int k = 0; k < candidateCount; ++k) {
+            candidates[k] = viewIdTable.getLayoutName(layoutSimilarity.getCandidate(k));
+            scores[k] = layoutSimilarity.getScore(k);
+        }
+        return new LayoutResult(names, candidates, scores);
     }
 
     /**
@@ -509,10 +925,162 @@ public final class AppDetectionData implements Serializable {
 
     public void setPerformLayoutChecks(boolean performLayoutChecks) {
         this.performLayoutChecks = performLayoutChecks;
+        CoastDoveService.updateServiceInfo();
     }
 
     public void setPerformInteractionChecks(boolean performInteractionChecks) {
         this.performInteractionChecks = performInteractionChecks;
+        CoastDoveService.updateServiceInfo();
+    }
+
+    /**
+     * Returns the accessibility event types needed to perform the checks currently enabled
+     * @param foreground    Whether the app is currently in the foreground. While in the background,
+     *                      only notifications are checked.
+     * @return Event types, see AccessibilityEvent.TYPE_*
+     */
+    public int getNeededEventTypes(boolean foreground) {
+        int eventTypes = 0;
+        if (performNotificationChecks)
+            eventTypes |= AccessibilityEvent.TYPE_NOTIFICATION_STATE_CHANGED;
+        if (!foreground)
+            return eventTypes;
+
+        // Window state changes are always needed to keep track of the current activity
+        eventTypes |= AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED;
+        if (performLayoutChecks)
+            eventTypes |= AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED;
+        if (performInteractionChecks)
+            eventTypes |= AccessibilityEvent.TYPE_VIEW_CLICKED | AccessibilityEvent.TYPE_VIEW_LONG_CLICKED |
+                    AccessibilityEvent.TYPE_VIEW_SCROLLED | AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED;
+        return eventTypes;
+    }
+
+    /** Limits the size of view trees sent to listeners */
+    public TraversalBudget getViewTreeBudget() {
+        return viewTreeBudget;
+    }
+
+    /** Sets the limits on the size of view trees sent to listeners */
+    public void setViewTreeBudget(TraversalBudget viewTreeBudget) {
+        this.viewTreeBudget = viewTreeBudget;
+    }
+
+    /**
+     * Returns the budget limiting the tree walks of the given check
+     * @param check    {@link DetectionCheck#LAYOUTS} or {@link DetectionCheck#INTERACTION}
+     */
+    public TraversalBudget getCheckBudget(DetectionCheck check) {
+        switch (check) {
+            case LAYOUTS:
+                return layoutCheckBudget;
+            case INTERACTION:
+                return interactionCheckBudget;
+            default:
+                throw new IllegalArgumentException("Check does not walk the tree: " + check);
+        }
+    }
+
+    /**
+     * Sets the budget limiting the tree walks of the given check. Once it is used up, the check
+     * sends its partial result, flagged as incomplete (see {@link #DATA_LAYOUTS_INCOMPLETE} and
+     * {@link #DATA_INTERACTION_INCOMPLETE}).
+     * @param check     {@link DetectionCheck#LAYOUTS} or {@link DetectionCheck#INTERACTION}
+     * @param budget    Budget for each check
+     */
+    public void setCheckBudget(DetectionCheck check, TraversalBudget budget) {
+        switch (check) {
+            case LAYOUTS:
+                this.layoutCheckBudget = budget;
+                break;
+            case INTERACTION:
+                this.interactionCheckBudget = budget;
+                break;
+            default:
+                throw new IllegalArgumentException("Check does not walk the tree: " + check);
+        }
+    }
+
+    /**
+     * Returns how often the given check has run out of its budget since it was set
+     * @param check    {@link DetectionCheck#LAYOUTS} or {@link DetectionCheck#INTERACTION}
+     */
+    public long getBudgetOverrunCount(DetectionCheck check) {
+        return getCheckBudget(check).getOverrunCount();
+    }
+
+    /**
+     * Sets how screen snapshots are captured. Children of wide nodes can be fetched in parallel
+     * by a small pool of worker threads.
+     * @param threads     Number of worker threads, 0 to fetch all children sequentially
+     * @param minWidth    Minimum number of children of a node to fetch them in parallel
+     */
+    public void setSnapshotCaptureThreads(int threads, int minWidth) {
+        ParallelChildFetcher<AccessibilityNodeInfo> previousFetcher = this.captureFetcher;
+        this.captureFetcher = threads > 0 ?
+                new ParallelChildFetcher<>(ScreenSnapshot.NODE_INFO_CHILDREN, threads, minWidth) : null;
+        if (previousFetcher != null)
+            previousFetcher.shutdown();
+    }
+
+    /**
+     * Limits the rate of interaction checks of the given type, see {@link InteractionRateLimiter}
+     * @param eventType          Type of interaction to limit
+     * @param eventsPerSecond    Maximum average number of checks per second, unlimited if 0
+     * @param burstSize          Number of checks allowed in a row before the rate applies
+     */
+    public void setInteractionRateLimit(EventType eventType, int eventsPerSecond, int burstSize) {
+        this.interactionRateLimiter.setLimit(eventType, eventsPerSecond, burstSize);
+    }
+
+    /** Number of interaction checks suppressed and accounted for in a later interaction message */
+    public long getMergedInteractionCount() {
+        return interactionRateLimiter.getMergedCount();
+    }
+
+    /** Number of interaction checks suppressed and never accounted for */
+    public long getDroppedInteractionCount() {
+        return interactionRateLimiter.getDroppedCount();
+    }
+
+    /**
+     * Sets the minimum time between two layout checks triggered by content changes of the same window
+     * @param layoutCheckInterval    Interval in milliseconds, all content changes are checked if 0
+     */
+    public void setLayoutCheckInterval(long layoutCheckInterval) {
+        this.layoutCheckCoalescer.setInterval(layoutCheckInterval);
+    }
+
+    public long getLayoutCheckInterval() {
+        return this.layoutCheckCoalescer.getInterval();
+    }
+
+    /**
+     * Sets the number of screens whose recognized layouts are cached, discarding all results cached so far
+     * @param layoutResultCacheSize    Maximum number of results, nothing is cached if 0
+     */
+    public void setLayoutResultCacheSize(int layoutResultCacheSize) {
+        this.layoutResultCache.setCapacity(layoutResultCacheSize);
+    }
+
+    public int getLayoutResultCacheSize() {
+        return this.layoutResultCache.getCapacity();
+    }
+
+    /** Number of layout checks whose result was found in the cache */
+    public long getLayoutResultCacheHitCount() {
+        return this.layoutResultCache.getHitCount();
+    }
+
+    /**
+     * Sets whether to skip sending the result of a layout check to listeners if it equals the last one sent
+     */
+    public void setSuppressUnchangedLayouts(boolean suppressUnchangedLayouts) {
+        this.suppressUnchangedLayouts = suppressUnchangedLayouts;
+    }
+
+    public boolean getSuppressUnchangedLayouts() {
+        return this.suppressUnchangedLayouts;
     }
 
     public boolean getPerformLayoutChecks() {
@@ -537,6 +1105,7 @@ public final class AppDetectionData implements Serializable {
 
     public void setPerformNotificationChecks(boolean performNotificationChecks) {
         this.performNotificationChecks = performNotificationChecks;
+        CoastDoveService.updateServiceInfo();
     }
 
     public ReplacementData getReplacementData() {
@@ -19,14 +19,18 @@
 package simonlang.coastdove.core.detection;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 
 import java.io.File;
 
+import simonlang.coastdove.core.R;
 import simonlang.coastdove.core.ui.LoadingInfo;
 import simonlang.coastdove.core.utility.FileHelper;
 import simonlang.coastdove.core.utility.Misc;
 import simonlang.coastdove.core.utility.MultipleObjectLoader;
 import simonlang.coastdove.core.utility.ObjectLoader;
+import simonlang.coastdove.lib.EventType;
 
 /**
  * Loader for app detection data that is supposed to be run in a separate thread
@@ -114,6 +118,41 @@ public class AppDetectionDataLoader extends ObjectLoader<AppDetectionData> {
         // Initialize
         detectableApp.init(this.performLayoutChecks, this.performInteractionChecks, this.performScreenStateChecks,
                 this.performNotificationChecks, replacementData, this.context);
+
+        // Load tuning options
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this.context);
+        detectableApp.setLayoutCheckInterval(Misc.getPreferenceInt(preferences, appPackageName,
+                context.getString(R.string.pref_layout_check_interval), DetectableAppConfig.DEFAULT_LAYOUT_CHECK_INTERVAL));
+        int interactionBurst = Misc.getPreferenceInt(preferences, appPackageName,
+                context.getString(R.string.pref_interaction_burst), DetectableAppConfig.DEFAULT_INTERACTION_BURST);
+        detectableApp.setInteractionRateLimit(EventType.CLICK, Misc.getPreferenceInt(preferences, appPackageName,
+                context.getString(R.string.pref_click_rate), DetectableAppConfig.DEFAULT_CLICK_RATE), interactionBurst);
+        detectableApp.setInteractionRateLimit(EventType.LONG_CLICK, Misc.getPreferenceInt(preferences, appPackageName,
+                context.getString(R.string.pref_long_click_rate), DetectableAppConfig.DEFAULT_LONG_CLICK_RATE), interactionBurst);
+        detectableApp.setInteractionRateLimit(EventType.SCROLLING, Misc.getPreferenceInt(preferences, appPackageName,
+                context.getString(R.string.pref_scrolling_rate), DetectableAppConfig.DEFAULT_SCROLLING_RATE), interactionBurst);
+        detectableApp.setViewTreeBudget(new TraversalBudget(
+                Math.max(1, Misc.getPreferenceInt(preferences, appPackageName,
+                        context.getString(R.string.pref_view_tree_max_nodes), DetectableAppConfig.DEFAULT_VIEW_TREE_MAX_NODES)),
+                Math.max(0, Misc.getPreferenceInt(preferences, appPackageName,
+                        context.getString(R.string.pref_view_tree_max_depth), DetectableAppConfig.DEFAULT_VIEW_TREE_MAX_DEPTH)),
+                Math.max(0, Misc.getPreferenceInt(preferences, appPackageName,
+                        context.getString(R.string.pref_view_tree_max_millis), DetectableAppConfig.DEFAULT_VIEW_TREE_MAX_MILLIS))));
+        detectableApp.setCheckBudget(DetectionCheck.LAYOUTS, TraversalBudget.ofMillis(
+                Math.max(0, Misc.getPreferenceInt(preferences, appPackageName,
+                        context.getString(R.string.pref_layout_check_max_millis), DetectableAppConfig.DEFAULT_LAYOUT_CHECK_MAX_MILLIS))));
+        detectableApp.setCheckBudget(DetectionCheck.INTERACTION, TraversalBudget.ofMillis(
+                Math.max(0, Misc.getPreferenceInt(preferences, appPackageName,
+                        context.getString(R.string.pref_interaction_check_max_millis), DetectableAppConfig.DEFAULT_INTERACTION_CHECK_MAX_MILLIS))));
+        detectableApp.setSnapshotCaptureThreads(
+                Math.max(0, Misc.getPreferenceInt(preferences, appPackageName,
+                        context.getString(R.string.pref_snapshot_capture_threads), DetectableAppConfig.DEFAULT_SNAPSHOT_CAPTURE_THREADS)),
+                Misc.getPreferenceInt(preferences, appPackageName,
+                        context.getString(R.string.pref_snapshot_capture_min_width), DetectableAppConfig.DEFAULT_SNAPSHOT_CAPTURE_MIN_WIDTH));
+        detectableApp.setLayoutResultCacheSize(Math.max(0, Misc.getPreferenceInt(preferences, appPackageName,
+                context.getString(R.string.pref_layout_result_cache_size), DetectableAppConfig.DEFAULT_LAYOUT_RESULT_CACHE_SIZE)));
+        detectableApp.setSuppressUnchangedLayouts(Misc.getPreferenceBoolean(preferences, appPackageName,
+                context.getString(R.string.pref_suppress_unchanged_layouts), DetectableAppConfig.DEFAULT_SUPPRESS_UNCHANGED_LAYOUTS));
         return detectableApp;
     }
 }
@@ -20,7 +20,6 @@ package simonlang.coastdove.core.detection;
 
 import android.content.Context;
 import android.support.annotation.Nullable;
-import android.support.v4.util.Pair;
 import android.util.Log;
 
 import org.xmlpull.v1.XmlPullParser;
@@ -42,7 +41,7 @@ import java.io.InputStream;
 import java.text.Collator;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -60,8 +59,6 @@ public class AppDetectionDataSetup {
      * @param apkFile             APK file to process
      */
     public static AppDetectionData fromAPK(Context context, File apkFile, String appPackageName, LoadingInfo loadingInfo) {
-        // Map if how often IDs occur
-        Map<String, Integer> idCounts = new HashMap<>();
         // Set of activities available from the Android launcher
         Set<String> mainActivities = new TreeSet<>(new CollatorWrapper());
 
@@ -115,7 +112,8 @@ public class AppDetectionDataSetup {
         Log.d("AppDetectionDataSetup", "Reading APK file");
         Enumeration<?> zipEntries = apk.entries();
 
-        List<Pair<String, Set<String>>> layoutIDSets = new LinkedList<>();
+        // Map (layout -> android IDs); variants of a layout (e.g. layout-land/) are merged
+        Map<String, Set<String>> layoutIDSets = new LinkedHashMap<>();
         while (zipEntries.hasMoreElements()) {
             ZipEntry zipEntry = (ZipEntry)zipEntries.nextElement();
             try {
@@ -132,17 +130,10 @@ public class AppDetectionDataSetup {
                     parser.open(apk.getInputStream(zipEntry));
                     Set<String> androidIDs = parseAndroidIDs(parser, resourceParser);
 
-                    layoutIDSets.add(new Pair<>(name, androidIDs));
-
-                    // Count all IDs
-                    for (String id : androidIDs) {
-                        if (idCounts.containsKey(id)) {
-                            int count = idCounts.get(id);
-                            idCounts.put(id, count+1);
-                        }
-                        else
-                            idCounts.put(id, 1);
-                    }
+                    if (layoutIDSets.containsKey(name))
+                        layoutIDSets.get(name).addAll(androidIDs);
+                    else
+                        layoutIDSets.put(name, androidIDs);
                 }
             } catch (IOException e) {
                 Log.e("AppDetectionDataSetup", "Error reading APK file: " + e.getMessage());
@@ -159,20 +150,46 @@ public class AppDetectionDataSetup {
         loadingInfo.setTitle(context.getString(R.string.add_app_setting_up_layouts));
         loadingInfo.update();
 
+        // Map of how often IDs occur
+        Map<String, Integer> idCounts = new HashMap<>();
+        for (Set<String> androidIDs : layoutIDSets.values()) {
+            for (String id : androidIDs) {
+                if (idCounts.containsKey(id)) {
+                    int count = idCounts.get(id);
+                    idCounts.put(id, count+1);
+                }
+                else
+                    idCounts.put(id, 1);
+            }
+        }
+
         // Build the final map we actually need (id -> layout)
         Map<String, String> idToLayoutMap = new HashMap<>();
-        for (Pair<String, Set<String>> layoutIDSet : layoutIDSets) {
-            for (String id : layoutIDSet.second) {
+        for (Map.Entry<String, Set<String>> layoutIDSet : layoutIDSets.entrySet()) {
+            for (String id : layoutIDSet.getValue()) {
                 if (idCounts.get(id) == 1)
-                    idToLayoutMap.put(id, layoutIDSet.first);
+                    idToLayoutMap.put(id, layoutIDSet.getKey());
             }
         }
 
+        // Layouts without a unique ID are identified by the smallest sets of IDs no other layout contains
+        Log.d("AppDetectionDataSetup", "Searching identifiers of layouts without a unique ID");
+        List<LayoutIdentification> layoutIdentifications;
+        try {
+            layoutIdentifications = new LayoutIdentifierSearch(layoutIDSets).findIdentifiers(
+                    LayoutIdentifierSearch.DEFAULT_MAX_IDENTIFIER_SIZE, Runtime.getRuntime().availableProcessors());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            loadingInfo.end();
+            return null;
+        }
+
         loadingInfo.setNotificationData(context.getString(R.string.add_app_notification_finished_loading),
                 null, null);
         loadingInfo.end();
 
-        return new AppDetectionData(appPackageName, idToLayoutMap, appMetaInformation);
+        return new AppDetectionData(appPackageName, idToLayoutMap, layoutIdentifications, layoutIDSets,
+                appMetaInformation);
     }
 
     /**
@@ -0,0 +1,104 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.core.detection;
+
+import android.os.SystemClock;
+
+/**
+ * The app currently in the foreground, from the moment one of its activities appeared until
+ * an activity of another app appears. A new session is only started on window state changes,
+ * so all other events can find the detection data of the foreground app without any lookup.
+ */
+public final class AppSession {
+    /** Session before any activity has been seen */
+    public static final AppSession NONE = new AppSession("", null, -1, 0);
+
+    /**
+     * Starts a new session
+     * @param packageName      Package name of the app in the foreground
+     * @param detectionData    Detection data of the app, null if it is not detectable
+     * @param windowId         Window of the activity that has appeared
+     * @return The new session, opened now
+     */
+    public static AppSession open(String packageName, AppDetectionData detectionData, int windowId) {
+        return new AppSession(packageName, detectionData, windowId, SystemClock.uptimeMillis());
+    }
+
+    /** Package name of the app in the foreground */
+    private final String packageName;
+    /** Detection data of the app, null if it is not detectable */
+    private final AppDetectionData detectionData;
+    /** Window of the app's current activity */
+    private volatile int windowId;
+    /** Time the session was opened, in milliseconds (uptime) */
+    private final long openedAt;
+
+    private AppSession(String packageName, AppDetectionData detectionData, int windowId, long openedAt) {
+        this.packageName = packageName;
+        this.detectionData = detectionData;
+        this.windowId = windowId;
+        this.openedAt = openedAt;
+    }
+
+    /**
+     * Returns a copy of this session (same window and opening time) with the given detection data,
+     * e.g. after the app's detection data has been loaded or removed
+     */
+    public AppSession withDetectionData(AppDetectionData detectionData) {
+        return new AppSession(packageName, detectionData, windowId, openedAt);
+    }
+
+    /**
+     * Indicates whether the given event belongs to the app of this session. Events without a
+     * window (e.g. notifications) only belong to it if they come from the same package.
+     */
+    public boolean contains(DetectionEvent event) {
+        return windowId >= 0 && event.getWindowId() == windowId || packageName.equals(event.getPackageName());
+    }
+
+    /** Package name of the app in the foreground */
+    public String getPackageName() {
+        return packageName;
+    }
+
+    /** Detection data of the app, null if it is not detectable */
+    public AppDetectionData getDetectionData() {
+        return detectionData;
+    }
+
+    /** Window of the app's current activity */
+    public int getWindowId() {
+        return windowId;
+    }
+
+    /** Sets the window of the app's current activity, when another activity of the same app appears */
+    public void setWindowId(int windowId) {
+        this.windowId = windowId;
+    }
+
+    /** Time the session was opened, in milliseconds (uptime) */
+    public long getOpenedAt() {
+        return openedAt;
+    }
+
+    /** Time since the session was opened, in milliseconds */
+    public long getDuration() {
+        return SystemClock.uptimeMillis() - openedAt;
+    }
+}
@@ -0,0 +1,51 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.core.detection;
+
+import android.os.SystemClock;
+
+/**
+ * Point in time after which a traversal of a node info tree should give up and return what it
+ * has found so far, based on {@link SystemClock#uptimeMillis()}
+ */
+public final class Deadline {
+    /** Deadline that never expires */
+    public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    /**
+     * Returns a deadline expiring after the given time from now on
+     * @param millis    Time until the deadline expires, in milliseconds, none if <= 0
+     */
+    public static Deadline after(long millis) {
+        return millis > 0 ? new Deadline(SystemClock.uptimeMillis() + millis) : NONE;
+    }
+
+    /** Uptime at which the deadline expires, in milliseconds */
+    private final long expiresAt;
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /** Indicates whether the deadline has expired */
+    public boolean hasExpired() {
+        return this != NONE && SystemClock.uptimeMillis() >= expiresAt;
+    }
+}
@@ -13,6 +13,34 @@ public class DetectableAppConfig {
     public static final boolean DEFAULT_DETECT_SCREEN_STATE = true;
     public static final boolean DEFAULT_DETECT_NOTIFICATIONS = true;
     public static final boolean DEFAULT_REPLACE_PRIVATE_DATA = false;
+    /** Minimum time between two layout checks triggered by content changes, in milliseconds */
+    public static final int DEFAULT_LAYOUT_CHECK_INTERVAL = 250;
+    /** Maximum average number of click checks per second, unlimited if 0 */
+    public static final int DEFAULT_CLICK_RATE = 0;
+    /** Maximum average number of long click checks per second, unlimited if 0 */
+    public static final int DEFAULT_LONG_CLICK_RATE = 0;
+    /** Maximum average number of scrolling checks per second, unlimited if 0 */
+    public static final int DEFAULT_SCROLLING_RATE = 0;
+    /** Number of interaction checks of the same type allowed in a row before the rate applies */
+    public static final int DEFAULT_INTERACTION_BURST = 3;
+    /** Maximum number of nodes of view trees sent to listeners */
+    public static final int DEFAULT_VIEW_TREE_MAX_NODES = 5000;
+    /** Maximum depth of view trees sent to listeners */
+    public static final int DEFAULT_VIEW_TREE_MAX_DEPTH = 100;
+    /** Maximum duration of building a view tree sent to listeners in milliseconds, unlimited if 0 */
+    public static final int DEFAULT_VIEW_TREE_MAX_MILLIS = 250;
+    /** Maximum duration of a layout check in milliseconds, unlimited if 0 */
+    public static final int DEFAULT_LAYOUT_CHECK_MAX_MILLIS = 100;
+    /** Maximum duration of an interaction check in milliseconds, unlimited if 0 */
+    public static final int DEFAULT_INTERACTION_CHECK_MAX_MILLIS = 100;
+    /** Number of threads fetching children in parallel when capturing snapshots, 0 for none */
+    public static final int DEFAULT_SNAPSHOT_CAPTURE_THREADS = 0;
+    /** Minimum number of children of a node to fetch them in parallel */
+    public static final int DEFAULT_SNAPSHOT_CAPTURE_MIN_WIDTH = 16;
+    /** Number of screens whose recognized layouts are cached, nothing is cached if 0 */
+    public static final int DEFAULT_LAYOUT_RESULT_CACHE_SIZE = 32;
+    /** Whether to skip sending layouts to listeners if they equal the last ones sent */
+    public static final boolean DEFAULT_SUPPRESS_UNCHANGED_LAYOUTS = false;
 
     private String appPackageName;
     private Context context;
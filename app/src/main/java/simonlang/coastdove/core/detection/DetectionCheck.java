@@ -0,0 +1,67 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.core.detection;
+
+import java.util.Set;
+
+import simonlang.coastdove.lib.CoastDoveListenerService;
+
+/**
+ * Checks performed on accessibility events, each declaring whether it needs the node info
+ * tree of the active window. The root of the tree is only fetched if a check that needs it
+ * is about to run.
+ */
+public enum DetectionCheck {
+    ACTIVITY(CoastDoveListenerService.MSG_ACTIVITY_DETECTED, false),
+    LAYOUTS(CoastDoveListenerService.MSG_LAYOUTS_DETECTED, true),
+    INTERACTION(CoastDoveListenerService.MSG_INTERACTION_DETECTED, true),
+    SCROLL_POSITION(CoastDoveListenerService.MSG_SCROLL_POSITION_DETECTED, false),
+    NOTIFICATION(CoastDoveListenerService.MSG_NOTIFICATION_DETECTED, false);
+
+    /**
+     * Indicates whether any of the given checks needs the node info tree
+     */
+    public static boolean anyNeedsTree(Set<DetectionCheck> checks) {
+        for (DetectionCheck check : checks) {
+            if (check.needsTree)
+                return true;
+        }
+        return false;
+    }
+
+    /** Message type sent to listeners with the result of this check */
+    private final int messageType;
+    /** Whether this check reads the node info tree of the active window */
+    private final boolean needsTree;
+
+    DetectionCheck(int messageType, boolean needsTree) {
+        this.messageType = messageType;
+        this.needsTree = needsTree;
+    }
+
+    /** Message type sent to listeners with the result of this check */
+    public int getMessageType() {
+        return messageType;
+    }
+
+    /** Whether this check reads the node info tree of the active window */
+    public boolean needsTree() {
+        return needsTree;
+    }
+}
@@ -0,0 +1,134 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.core.detection;
+
+import android.os.Parcelable;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+import android.view.accessibility.AccessibilityRecord;
+
+/**
+ * Copy of the fields of an AccessibilityEvent needed for detection. AccessibilityEvents are
+ * recycled as soon as onAccessibilityEvent returns, so this copy is what is handed over to the
+ * detection thread. The source node info is only fetched (once) when it is actually needed.
+ */
+public class DetectionEvent {
+    /**
+     * Copies the fields needed for detection from the given event
+     * @param event    Event to copy, still owned by the caller
+     */
+    public static DetectionEvent fromAccessibilityEvent(AccessibilityEvent event) {
+        return new DetectionEvent(event);
+    }
+
+    private final int eventType;
+    private final String packageName;
+    private final String className;
+    private final int windowId;
+    private final long eventTime;
+    private final int fromIndex;
+    private final int toIndex;
+    private final int itemCount;
+    private final Parcelable parcelableData;
+
+    /** Copy of the event's record, only kept to retrieve the source node info */
+    private AccessibilityRecord record;
+    /** Source node info, once retrieved */
+    private AccessibilityNodeInfo source;
+
+    private DetectionEvent(AccessibilityEvent event) {
+        this.eventType = event.getEventType();
+        this.packageName = event.getPackageName() != null ? event.getPackageName().toString() : null;
+        this.className = event.getClassName() != null ? event.getClassName().toString() : null;
+        this.windowId = event.getWindowId();
+        this.eventTime = event.getEventTime();
+        this.fromIndex = event.getFromIndex();
+        this.toIndex = event.getToIndex();
+        this.itemCount = event.getItemCount();
+        this.parcelableData = event.getParcelableData();
+        this.record = AccessibilityRecord.obtain(event);
+        this.source = null;
+    }
+
+    /**
+     * Retrieves the source node info of the event. Only the first call queries the source,
+     * all further calls return the same object. The source is owned by this event and
+     * recycled along with it.
+     * @return The source node info, or null if not available
+     */
+    public AccessibilityNodeInfo getSource() {
+        if (source == null && record != null) {
+            source = record.getSource();
+            record.recycle();
+            record = null;
+        }
+        return source;
+    }
+
+    /**
+     * Releases the copied record and the source node info. The event must not be used afterwards.
+     */
+    public void recycle() {
+        if (record != null) {
+            record.recycle();
+            record = null;
+        }
+        if (source != null) {
+            source.recycle();
+            source = null;
+        }
+    }
+
+    /** Type of the event, see AccessibilityEvent.TYPE_* */
+    public int getEventType() {
+        return eventType;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public int getWindowId() {
+        return windowId;
+    }
+
+    public long getEventTime() {
+        return eventTime;
+    }
+
+    public int getFromIndex() {
+        return fromIndex;
+    }
+
+    public int getToIndex() {
+        return toIndex;
+    }
+
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    public Parcelable getParcelableData() {
+        return parcelableData;
+    }
+}
@@ -0,0 +1,171 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.core.detection;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.view.accessibility.AccessibilityEvent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of detection events, processed in order on a dedicated background thread.
+ * The accessibility service only copies the events it receives and submits them here, so slow
+ * detection no longer blocks the main thread. If the queue is full, new events are dropped,
+ * except for window state changes, which are needed to keep track of the current app.
+ */
+public class DetectionPipeline {
+    /**
+     * Processes detection events on the pipeline's thread
+     */
+    public interface Processor {
+        /**
+         * Processes one event. The event is recycled afterwards.
+         * @param event    Event to process
+         */
+        void process(DetectionEvent event);
+    }
+
+    /** Thread processing the events */
+    private final HandlerThread thread;
+    /** Handler posting to the processing thread */
+    private final Handler handler;
+    /** Maximum number of events waiting to be processed */
+    private final int capacity;
+    /** Processes the events, events are discarded if null */
+    private volatile Processor processor;
+
+    /** Number of events waiting to be processed, including the one currently being processed */
+    private final AtomicInteger queueDepth;
+    /** Highest queue depth so far */
+    private final AtomicInteger maxQueueDepth;
+    /** Number of events dropped because the queue was full */
+    private final AtomicLong droppedCount;
+    /** Number of events processed */
+    private final AtomicLong processedCount;
+    /** Whether events are currently being dropped, to avoid flooding the log */
+    private volatile boolean dropping;
+
+    /**
+     * Creates a new pipeline and starts its thread
+     * @param name        Name of the processing thread
+     * @param capacity    Maximum number of events waiting to be processed
+     */
+    public DetectionPipeline(String name, int capacity) {
+        this.capacity = capacity;
+        this.processor = null;
+        this.queueDepth = new AtomicInteger(0);
+        this.maxQueueDepth = new AtomicInteger(0);
+        this.droppedCount = new AtomicLong(0);
+        this.processedCount = new AtomicLong(0);
+        this.dropping = false;
+
+        this.thread = new HandlerThread(name, Process.THREAD_PRIORITY_BACKGROUND);
+        this.thread.start();
+        this.handler = new Handler(this.thread.getLooper());
+    }
+
+    /**
+     * Queues the given event for processing. Takes ownership of the event.
+     * @param event    Event to process
+     * @return True if the event was queued, false if it was dropped
+     */
+    public boolean submit(final DetectionEvent event) {
+        int depth = queueDepth.incrementAndGet();
+        if (depth > capacity && event.getEventType() != AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED) {
+            queueDepth.decrementAndGet();
+            droppedCount.incrementAndGet();
+            event.recycle();
+            if (!dropping) {
+                dropping = true;
+                Log.w("DetectionPipeline", "Queue full (" + capacity + "), dropping events");
+            }
+            return false;
+        }
+        updateMaxQueueDepth(depth);
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Processor currentProcessor = processor;
+                    if (currentProcessor != null)
+                        currentProcessor.process(event);
+                } finally {
+                    event.recycle();
+                    processedCount.incrementAndGet();
+                    int remaining = queueDepth.decrementAndGet();
+                    if (dropping && remaining <= capacity / 2) {
+                        dropping = false;
+                        Log.w("DetectionPipeline", "Queue recovered, " + droppedCount.get() + " events dropped so far");
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Sets the processor for all events processed from now on. Events are discarded while
+     * the processor is null.
+     */
+    public void setProcessor(Processor processor) {
+        this.processor = processor;
+    }
+
+    /** Looper of the processing thread, e.g. to schedule delayed work on it */
+    public Looper getLooper() {
+        return thread.getLooper();
+    }
+
+    /** Number of events waiting to be processed, including the one currently being processed */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /** Highest queue depth so far */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /** Maximum number of events waiting to be processed */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Number of events dropped because the queue was full */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /** Number of events processed */
+    public long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    private void updateMaxQueueDepth(int depth) {
+        int max = maxQueueDepth.get();
+        while (depth > max && !maxQueueDepth.compareAndSet(max, depth))
+            max = maxQueueDepth.get();
+    }
+}
@@ -0,0 +1,507 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.core.detection;
+
+import android.graphics.Rect;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import simonlang.coastdove.core.utility.ParallelChildFetcher;
+
+/**
+ * Copy of a tree of AccessibilityNodeInfos, stored as a structure of arrays: nodes are indices,
+ * and the attributes of all nodes are kept in primitive arrays, with the boolean attributes packed
+ * into one int per node. Strings are stored once per tree, in a string table. Compared to a tree of
+ * objects (like ViewTreeNodes), this needs only a small fraction of the heap, and walking it touches
+ * contiguous memory. Nodes are stored in breadth-first order, hence the children of each node are
+ * contiguous. The tree is immutable once captured and may be shared between threads.
+ */
+public class FlatViewTree {
+    public static final int FLAG_VISIBLE_TO_USER = 1;
+    public static final int FLAG_CLICKABLE = 1 << 1;
+    public static final int FLAG_LONG_CLICKABLE = 1 << 2;
+    public static final int FLAG_SCROLLABLE = 1 << 3;
+    public static final int FLAG_CHECKABLE = 1 << 4;
+    public static final int FLAG_CHECKED = 1 << 5;
+    public static final int FLAG_ENABLED = 1 << 6;
+    public static final int FLAG_FOCUSABLE = 1 << 7;
+    public static final int FLAG_FOCUSED = 1 << 8;
+    public static final int FLAG_SELECTED = 1 << 9;
+    public static final int FLAG_EDITABLE = 1 << 10;
+    public static final int FLAG_PASSWORD = 1 << 11;
+    public static final int FLAG_MULTI_LINE = 1 << 12;
+    public static final int FLAG_DISMISSABLE = 1 << 13;
+
+    /** Ints of bounds per node: left, top, right, bottom in screen, then in parent */
+    private static final int BOUNDS_STRIDE = 8;
+    /** Strings per node: android ID, text, content description, class name */
+    private static final int STRINGS_STRIDE = 4;
+    private static final int STRING_VIEW_ID = 0;
+    private static final int STRING_TEXT = 1;
+    private static final int STRING_DESCRIPTION = 2;
+    private static final int STRING_CLASS_NAME = 3;
+    /** Floats per range info: type, min, max, current */
+    private static final int RANGE_STRIDE = 4;
+    /** Initial capacity for nodes */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** Number of nodes */
+    private int size;
+    /** Index of the parent of each node, -1 for the root */
+    private int[] parents;
+    /** Index of the first child of each node, only meaningful if the node has children */
+    private int[] firstChildren;
+    /** Number of (non-null) children of each node */
+    private int[] childCounts;
+    /** Position of each live node info among its parent's children, -1 for the root */
+    private int[] childIndices;
+    /** Bounds of each node, see {@link #BOUNDS_STRIDE} */
+    private int[] bounds;
+    /** Boolean attributes of each node, see FLAG_* */
+    private int[] flags;
+    /** String table indices of each node's strings, -1 for null, see {@link #STRINGS_STRIDE} */
+    private int[] strings;
+    private int[] inputTypes;
+    /** Start and end of each node's text selection */
+    private int[] textSelections;
+    /** Actions of node i are actionStarts[i] to actionStarts[i + 1] - 1 */
+    private int[] actionStarts;
+    private int[] actionIds;
+    /** String table indices of the actions' labels, -1 for null */
+    private int[] actionLabels;
+    private int actionCount;
+    /** Index of each node's range info in ranges, -1 for none */
+    private int[] rangeInfos;
+    /** All range infos, see {@link #RANGE_STRIDE} */
+    private float[] ranges;
+    private int rangeCount;
+    /** All distinct strings */
+    private String[] stringTable;
+    private int stringCount;
+    /** Whether all nodes below the root were copied before the deadline expired */
+    private boolean complete;
+    /** Receives the bounds of each node info copied, before they are put into {@link #bounds} */
+    private final Rect scratchBounds = new Rect();
+
+    /**
+     * Walks the tree starting at the given node info once and copies it. The node infos obtained
+     * are tracked in the current {@link NodeInfoScope}.
+     * @param rootNodeInfo    Node info to treat as the root, may be null
+     * @param fetcher         Fetches the children (of {@link ScreenSnapshot#NODE_INFO_CHILDREN}),
+     *                        or null to fetch all of them on the calling thread
+     * @return Copy of the tree, empty if rootNodeInfo is null
+     */
+    public static FlatViewTree capture(AccessibilityNodeInfo rootNodeInfo,
+                                       ParallelChildFetcher<AccessibilityNodeInfo> fetcher) {
+        return capture(rootNodeInfo, fetcher, Deadline.NONE);
+    }
+
+    /**
+     * Walks the tree starting at the given node info once and copies it, until the deadline
+     * expires. Nodes whose children have not been fetched by then are copied as leaves, and
+     * the copy is marked as incomplete (see {@link #isComplete()}).
+     * @param rootNodeInfo    Node info to treat as the root, may be null
+     * @param fetcher         Fetches the children (of {@link ScreenSnapshot#NODE_INFO_CHILDREN}),
+     *                        or null to fetch all of them on the calling thread
+     * @param deadline        Time at which to stop walking the tree
+     * @return Copy of the tree, empty if rootNodeInfo is null
+     */
+    public static FlatViewTree capture(AccessibilityNodeInfo rootNodeInfo,
+                                       ParallelChildFetcher<AccessibilityNodeInfo> fetcher, Deadline deadline) {
+        FlatViewTree result = new FlatViewTree();
+        if (rootNodeInfo == null) {
+            result.trim();
+            return result;
+        }
+
+        // Strings are only interned while capturing
+        Map<String, Integer> stringIndices = new HashMap<>();
+
+        // The list of node infos doubles as the breadth-first queue: index i in
+        // liveNodes corresponds to node i
+        List<AccessibilityNodeInfo> liveNodes = new ArrayList<>();
+        List<AccessibilityNodeInfo> children = new ArrayList<>();
+        liveNodes.add(rootNodeInfo);
+        result.add(rootNodeInfo, -1, -1, stringIndices);
+        for (int i = 0; i < liveNodes.size(); ++i) {
+            if (deadline.hasExpired()) {
+                result.complete = false;
+                break;
+            }
+            AccessibilityNodeInfo nodeInfo = liveNodes.get(i);
+            result.firstChildren[i] = liveNodes.size();
+
+            children.clear();
+            if (fetcher != null)
+                fetcher.fetchChildren(nodeInfo, children);
+            else {
+                for (int c = 0; c < nodeInfo.getChildCount(); ++c)
+                    children.add(nodeInfo.getChild(c));
+            }
+
+            // Children fetched by other threads are tracked here, in this thread's scope
+            for (int c = 0; c < children.size(); ++c) {
+                AccessibilityNodeInfo child = NodeInfoScope.track(children.get(c));
+                if (child == null)
+                    continue;
+                liveNodes.add(child);
+                result.add(child, i, c, stringIndices);
+                ++result.childCounts[i];
+            }
+            // Node infos already copied are not needed anymore
+            liveNodes.set(i, null);
+        }
+
+        result.trim();
+        return result;
+    }
+
+    private FlatViewTree() {
+        this.size = 0;
+        this.parents = new int[INITIAL_CAPACITY];
+        this.firstChildren = new int[INITIAL_CAPACITY];
+        this.childCounts = new int[INITIAL_CAPACITY];
+        this.childIndices = new int[INITIAL_CAPACITY];
+        this.bounds = new int[INITIAL_CAPACITY * BOUNDS_STRIDE];
+        this.flags = new int[INITIAL_CAPACITY];
+        this.strings = new int[INITIAL_CAPACITY * STRINGS_STRIDE];
+        this.inputTypes = new int[INITIAL_CAPACITY];
+        this.textSelections = new int[INITIAL_CAPACITY * 2];
+        this.actionStarts = new int[INITIAL_CAPACITY + 1];
+        this.actionIds = new int[INITIAL_CAPACITY];
+        this.actionLabels = new int[INITIAL_CAPACITY];
+        this.actionCount = 0;
+        this.rangeInfos = new int[INITIAL_CAPACITY];
+        this.ranges = new float[0];
+        this.rangeCount = 0;
+        this.stringTable = new String[INITIAL_CAPACITY];
+        this.stringCount = 0;
+        this.complete = true;
+    }
+
+    /**
+     * Appends a copy of the given node info
+     * @param nodeInfo         Node info to copy
+     * @param parent           Index of the parent node, -1 for the root
+     * @param childIndex       Position of the node info among its parent's children, -1 for the root
+     * @param stringIndices    Indices of all strings in the string table
+     */
+    private void add(AccessibilityNodeInfo nodeInfo, int parent, int childIndex,
+                     Map<String, Integer> stringIndices) {
+        if (size == parents.length)
+            grow();
+        int i = size++;
+
+        parents[i] = parent;
+        firstChildren[i] = -1;
+        childCounts[i] = 0;
+        childIndices[i] = childIndex;
+
+        nodeInfo.getBoundsInScreen(scratchBounds);
+        putBounds(i * BOUNDS_STRIDE, scratchBounds);
+        nodeInfo.getBoundsInParent(scratchBounds);
+        putBounds(i * BOUNDS_STRIDE + 4, scratchBounds);
+
+        flags[i] = (nodeInfo.isVisibleToUser() ? FLAG_VISIBLE_TO_USER : 0) |
+                (nodeInfo.isClickable() ? FLAG_CLICKABLE : 0) |
+                (nodeInfo.isLongClickable() ? FLAG_LONG_CLICKABLE : 0) |
+                (nodeInfo.isScrollable() ? FLAG_SCROLLABLE : 0) |
+                (nodeInfo.isCheckable() ? FLAG_CHECKABLE : 0) |
+                (nodeInfo.isChecked() ? FLAG_CHECKED : 0) |
+                (nodeInfo.isEnabled() ? FLAG_ENABLED : 0) |
+                (nodeInfo.isFocusable() ? FLAG_FOCUSABLE : 0) |
+                (nodeInfo.isFocused() ? FLAG_FOCUSED : 0) |
+                (nodeInfo.isSelected() ? FLAG_SELECTED : 0) |
+                (nodeInfo.isEditable() ? FLAG_EDITABLE : 0) |
+                (nodeInfo.isPassword() ? FLAG_PASSWORD : 0) |
+                (nodeInfo.isMultiLine() ? FLAG_MULTI_LINE : 0) |
+                (nodeInfo.isDismissable() ? FLAG_DISMISSABLE : 0);
+
+        strings[i * STRINGS_STRIDE + STRING_VIEW_ID] = intern(nodeInfo.getViewIdResourceName(), stringIndices);
+        strings[i * STRINGS_STRIDE + STRING_TEXT] = intern(nodeInfo.getText(), stringIndices);
+        strings[i * STRINGS_STRIDE + STRING_DESCRIPTION] = intern(nodeInfo.getContentDescription(), stringIndices);
+        strings[i * STRINGS_STRIDE + STRING_CLASS_NAME] = intern(nodeInfo.getClassName(), stringIndices);
+
+        inputTypes[i] = nodeInfo.getInputType();
+        textSelections[i * 2] = nodeInfo.getTextSelectionStart();
+        textSelections[i * 2 + 1] = nodeInfo.getTextSelectionEnd();
+
+        actionStarts[i] = actionCount;
+        List<AccessibilityNodeInfo.AccessibilityAction> actions = nodeInfo.getActionList();
+        if (actions != null) {
+            for (AccessibilityNodeInfo.AccessibilityAction action : actions) {
+                if (actionCount == actionIds.length) {
+                    actionIds = Arrays.copyOf(actionIds, actionCount * 2);
+                    actionLabels = Arrays.copyOf(actionLabels, actionCount * 2);
+                }
+                actionIds[actionCount] = action.getId();
+                actionLabels[actionCount] = intern(action.getLabel(), stringIndices);
+                ++actionCount;
+            }
+        }
+        actionStarts[i + 1] = actionCount;
+
+        AccessibilityNodeInfo.RangeInfo rangeInfo = nodeInfo.getRangeInfo();
+        if (rangeInfo != null) {
+            if ((rangeCount + 1) * RANGE_STRIDE > ranges.length)
+                ranges = Arrays.copyOf(ranges, Math.max(RANGE_STRIDE * 4, ranges.length * 2));
+            int r = rangeCount * RANGE_STRIDE;
+            ranges[r] = rangeInfo.getType();
+            ranges[r + 1] = rangeInfo.getMin();
+            ranges[r + 2] = rangeInfo.getMax();
+            ranges[r + 3] = rangeInfo.getCurrent();
+            rangeInfos[i] = rangeCount++;
+        }
+        else
+            rangeInfos[i] = -1;
+    }
+
+    private void putBounds(int offset, Rect rect) {
+        bounds[offset] = rect.left;
+        bounds[offset + 1] = rect.top;
+        bounds[offset + 2] = rect.right;
+        bounds[offset + 3] = rect.bottom;
+    }
+
+    /**
+     * Index of the given string in the string table, adding it if necessary
+     * @return The index, or -1 if the string is null
+     */
+    private int intern(CharSequence charSequence, Map<String, Integer> stringIndices) {
+        if (charSequence == null)
+            return -1;
+        String string = charSequence.toString();
+        Integer index = stringIndices.get(string);
+        if (index != null)
+            return index;
+
+        if (stringCount == stringTable.length)
+            stringTable = Arrays.copyOf(stringTable, stringCount * 2);
+        stringTable[stringCount] = string;
+        stringIndices.put(string, stringCount);
+        return stringCount++;
+    }
+
+    /** Doubles the capacity for nodes */
+    private void grow() {
+        int capacity = parents.length * 2;
+        parents = Arrays.copyOf(parents, capacity);
+        firstChildren = Arrays.copyOf(firstChildren, capacity);
+        childCounts = Arrays.copyOf(childCounts, capacity);
+        childIndices = Arrays.copyOf(childIndices, capacity);
+        bounds = Arrays.copyOf(bounds, capacity * BOUNDS_STRIDE);
+        flags = Arrays.copyOf(flags, capacity);
+        strings = Arrays.copyOf(strings, capacity * STRINGS_STRIDE);
+        inputTypes = Arrays.copyOf(inputTypes, capacity);
+        textSelections = Arrays.copyOf(textSelections, capacity * 2);
+        actionStarts = Arrays.copyOf(actionStarts, capacity + 1);
+        rangeInfos = Arrays.copyOf(rangeInfos, capacity);
+    }
+
+    /** Releases the capacity not needed, once the tree is complete */
+    private void trim() {
+        parents = Arrays.copyOf(parents, size);
+        firstChildren = Arrays.copyOf(firstChildren, size);
+        childCounts = Arrays.copyOf(childCounts, size);
+        childIndices = Arrays.copyOf(childIndices, size);
+        bounds = Arrays.copyOf(bounds, size * BOUNDS_STRIDE);
+        flags = Arrays.copyOf(flags, size);
+        strings = Arrays.copyOf(strings, size * STRINGS_STRIDE);
+        inputTypes = Arrays.copyOf(inputTypes, size);
+        textSelections = Arrays.copyOf(textSelections, size * 2);
+        actionStarts = Arrays.copyOf(actionStarts, size + 1);
+        actionIds = Arrays.copyOf(actionIds, actionCount);
+        actionLabels = Arrays.copyOf(actionLabels, actionCount);
+        rangeInfos = Arrays.copyOf(rangeInfos, size);
+        ranges = Arrays.copyOf(ranges, rangeCount * RANGE_STRIDE);
+        stringTable = Arrays.copyOf(stringTable, stringCount);
+    }
+
+    /** Number of nodes */
+    public int size() {
+        return size;
+    }
+
+    /** Indicates whether the tree contains no nodes at all */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Indicates whether the whole tree was copied. If not, the deadline of the capture expired
+     * and some nodes lack their descendants.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /** Index of the parent of the given node, or -1 if it is the root */
+    public int getParent(int index) {
+        return parents[index];
+    }
+
+    /** Number of children of the given node */
+    public int getChildCount(int index) {
+        return childCounts[index];
+    }
+
+    /**
+     * Index of the child at the given position
+     * @param index         Index of the parent node
+     * @param childIndex    Position of the child, from 0 to getChildCount(index) - 1
+     */
+    public int getChild(int index, int childIndex) {
+        if (childIndex < 0 || childIndex >= childCounts[index])
+            throw new IndexOutOfBoundsException("Child " + childIndex + " of " + childCounts[index]);
+        return firstChildren[index] + childIndex;
+    }
+
+    /** Position of the live node info among its parent's children, -1 for the root */
+    public int getLiveChildIndex(int index) {
+        return childIndices[index];
+    }
+
+    public void getBoundsInScreen(int index, Rect outBounds) {
+        int offset = index * BOUNDS_STRIDE;
+        outBounds.set(bounds[offset], bounds[offset + 1], bounds[offset + 2], bounds[offset + 3]);
+    }
+
+    public void getBoundsInParent(int index, Rect outBounds) {
+        int offset = index * BOUNDS_STRIDE + 4;
+        outBounds.set(bounds[offset], bounds[offset + 1], bounds[offset + 2], bounds[offset + 3]);
+    }
+
+    /** Left edge of the node's bounds in screen */
+    public int getScreenLeft(int index) {
+        return bounds[index * BOUNDS_STRIDE];
+    }
+
+    /** Top edge of the node's bounds in screen */
+    public int getScreenTop(int index) {
+        return bounds[index * BOUNDS_STRIDE + 1];
+    }
+
+    /** Right edge of the node's bounds in screen */
+    public int getScreenRight(int index) {
+        return bounds[index * BOUNDS_STRIDE + 2];
+    }
+
+    /** Bottom edge of the node's bounds in screen */
+    public int getScreenBottom(int index) {
+        return bounds[index * BOUNDS_STRIDE + 3];
+    }
+
+    /**
+     * Indicates whether the node has exactly the given bounds
+     */
+    public boolean hasBounds(int index, Rect boundsInParent, Rect boundsInScreen) {
+        int offset = index * BOUNDS_STRIDE;
+        return bounds[offset] == boundsInScreen.left && bounds[offset + 1] == boundsInScreen.top &&
+                bounds[offset + 2] == boundsInScreen.right && bounds[offset + 3] == boundsInScreen.bottom &&
+                bounds[offset + 4] == boundsInParent.left && bounds[offset + 5] == boundsInParent.top &&
+                bounds[offset + 6] == boundsInParent.right && bounds[offset + 7] == boundsInParent.bottom;
+    }
+
+    /** All boolean attributes of the node, see FLAG_* */
+    public int getFlags(int index) {
+        return flags[index];
+    }
+
+    /** Indicates whether the node has all of the given flags */
+    public boolean hasFlags(int index, int flagMask) {
+        return (flags[index] & flagMask) == flagMask;
+    }
+
+    public boolean isVisibleToUser(int index) {
+        return (flags[index] & FLAG_VISIBLE_TO_USER) != 0;
+    }
+
+    public String getViewIdResourceName(int index) {
+        return string(strings[index * STRINGS_STRIDE + STRING_VIEW_ID]);
+    }
+
+    public String getText(int index) {
+        return string(strings[index * STRINGS_STRIDE + STRING_TEXT]);
+    }
+
+    public String getContentDescription(int index) {
+        return string(strings[index * STRINGS_STRIDE + STRING_DESCRIPTION]);
+    }
+
+    public String getClassName(int index) {
+        return string(strings[index * STRINGS_STRIDE + STRING_CLASS_NAME]);
+    }
+
+    /** Indicates whether the node has at least an android ID, a text or a description */
+    public boolean hasIdentifyingData(int index) {
+        int offset = index * STRINGS_STRIDE;
+        return strings[offset + STRING_VIEW_ID] >= 0 || strings[offset + STRING_TEXT] >= 0 ||
+                strings[offset + STRING_DESCRIPTION] >= 0;
+    }
+
+    public int getInputType(int index) {
+        return inputTypes[index];
+    }
+
+    public int getTextSelectionStart(int index) {
+        return textSelections[index * 2];
+    }
+
+    public int getTextSelectionEnd(int index) {
+        return textSelections[index * 2 + 1];
+    }
+
+    /** Number of actions of the given node */
+    public int getActionCount(int index) {
+        return actionStarts[index + 1] - actionStarts[index];
+    }
+
+    /** ID of the action at the given position of the given node */
+    public int getActionId(int index, int action) {
+        return actionIds[actionStarts[index] + action];
+    }
+
+    /** Label of the action at the given position of the given node, may be null */
+    public String getActionLabel(int index, int action) {
+        return string(actionLabels[actionStarts[index] + action]);
+    }
+
+    /**
+     * Copies the range info of the given node. The copy is owned by the caller; as range infos can
+     * only be recycled by the framework along with their node info, it is left to the garbage collector.
+     * @return The range info, or null if the node has none
+     */
+    public AccessibilityNodeInfo.RangeInfo getRangeInfo(int index) {
+        int range = rangeInfos[index];
+        if (range < 0)
+            return null;
+        int r = range * RANGE_STRIDE;
+        return AccessibilityNodeInfo.RangeInfo.obtain((int)ranges[r], ranges[r + 1], ranges[r + 2], ranges[r + 3]);
+    }
+
+    private String string(int stringIndex) {
+        return stringIndex < 0 ? null : stringTable[stringIndex];
+    }
+}
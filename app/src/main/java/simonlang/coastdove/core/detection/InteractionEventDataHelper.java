@@ -39,6 +39,30 @@ public class InteractionEventDataHelper {
         String description = nodeInfo.getContentDescription() != null ? nodeInfo.getContentDescription().toString().replaceAll("\n", " ") : "";
         String className = nodeInfo.getClassName() != null ? nodeInfo.getClassName().toString() : "";
 
+        return create(androidID, text, description, className, replacementData);
+    }
+
+    /**
+     * Constructs an InteractionEventData object from the given node of a flat view tree, replacing
+     * private data where necessary
+     * @param tree               Tree containing the node, as copied from the screen
+     * @param index              Index of the node
+     * @param replacementData    Rules to replace private data
+     */
+    public static InteractionEventData fromFlatViewTree(FlatViewTree tree, int index, ReplacementData replacementData) {
+        String androidID = tree.getViewIdResourceName(index) != null ? tree.getViewIdResourceName(index) : "";
+        String text = tree.getText(index) != null ? tree.getText(index).replaceAll("\n", " ") : "";
+        String description = tree.getContentDescription(index) != null ? tree.getContentDescription(index).replaceAll("\n", " ") : "";
+        String className = tree.getClassName(index) != null ? tree.getClassName(index) : "";
+
+        return create(androidID, text, description, className, replacementData);
+    }
+
+    /**
+     * Constructs an InteractionEventData object from the given data, replacing private data where necessary
+     */
+    private static InteractionEventData create(String androidID, String text, String description, String className,
+                                               ReplacementData replacementData) {
         if (replacementData != null && replacementData.hasReplacementRule(androidID)) {
             ReplacementData.ReplacementRule rule = replacementData.getReplacementRule(androidID);
             if (rule.replaceText != null) {
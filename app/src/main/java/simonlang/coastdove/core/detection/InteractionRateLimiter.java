@@ -0,0 +1,157 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.core.detection;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import simonlang.coastdove.lib.EventType;
+
+/**
+ * Token bucket rate limiter for interaction checks, with one bucket per event type. Each bucket
+ * holds up to burstSize tokens and is refilled at a fixed rate; every interaction check consumes
+ * one token and is suppressed if there is none left. The number of checks suppressed in a row is
+ * handed to the next check allowed, so listeners can tell that it stands for several events
+ * ("merged"). Suppressed checks that are never followed by an allowed one are counted as dropped.
+ * Not thread-safe, must only be used on the detection pipeline's thread (counters may be read
+ * from any thread).
+ */
+public class InteractionRateLimiter {
+    /**
+     * Token bucket of one event type
+     */
+    private static class Bucket {
+        /** Tokens added per millisecond */
+        private final double refillRate;
+        /** Maximum number of tokens */
+        private final double capacity;
+        /** Tokens currently available */
+        private double tokens;
+        /** Time of the last refill, in milliseconds, or -1 if never refilled */
+        private long lastRefill;
+        /** Number of checks suppressed since the last one allowed */
+        private int suppressed;
+
+        private Bucket(int eventsPerSecond, int burstSize) {
+            this.refillRate = eventsPerSecond / 1000.0;
+            this.capacity = Math.max(1, burstSize);
+            this.tokens = this.capacity;
+            this.lastRefill = -1;
+            this.suppressed = 0;
+        }
+
+        private boolean tryAcquire(long now) {
+            if (lastRefill >= 0 && now > lastRefill)
+                tokens = Math.min(capacity, tokens + (now - lastRefill) * refillRate);
+            lastRefill = now;
+
+            if (tokens < 1.0)
+                return false;
+            tokens -= 1.0;
+            return true;
+        }
+    }
+
+    /** Buckets of all event types that are limited */
+    private final Map<EventType, Bucket> buckets;
+    /** Number of suppressed checks accounted for by a later check */
+    private volatile long mergedCount;
+    /** Number of suppressed checks never accounted for */
+    private volatile long droppedCount;
+
+    /**
+     * Creates a rate limiter that does not limit anything yet
+     */
+    public InteractionRateLimiter() {
+        this.buckets = new EnumMap<>(EventType.class);
+        this.mergedCount = 0;
+        this.droppedCount = 0;
+    }
+
+    /**
+     * Sets the rate limit for the given event type, discarding any tokens accumulated
+     * @param eventType          Event type to limit
+     * @param eventsPerSecond    Rate at which checks are allowed on average. No limit if 0 or less.
+     * @param burstSize          Number of checks allowed in a row before the rate applies
+     */
+    public void setLimit(EventType eventType, int eventsPerSecond, int burstSize) {
+        Bucket bucket = buckets.remove(eventType);
+        if (bucket != null)
+            droppedCount += bucket.suppressed;
+        if (eventsPerSecond > 0)
+            buckets.put(eventType, new Bucket(eventsPerSecond, burstSize));
+    }
+
+    /**
+     * Decides whether the interaction check of an event shall be performed
+     * @param eventType    Type of the interaction
+     * @param eventTime    Time of the event, in milliseconds (uptime)
+     * @return True if the check shall be performed, false if it is suppressed
+     */
+    public boolean tryAcquire(EventType eventType, long eventTime) {
+        Bucket bucket = buckets.get(eventType);
+        if (bucket == null)
+            return true;
+
+        if (bucket.tryAcquire(eventTime))
+            return true;
+        ++bucket.suppressed;
+        return false;
+    }
+
+    /**
+     * Returns the number of checks of the given event type suppressed since the last one
+     * allowed, and accounts them as merged into the current check
+     * @param eventType    Type of the interaction allowed
+     * @return Number of checks merged into the current one
+     */
+    public int takeSuppressed(EventType eventType) {
+        Bucket bucket = buckets.get(eventType);
+        if (bucket == null || bucket.suppressed == 0)
+            return 0;
+
+        int suppressed = bucket.suppressed;
+        bucket.suppressed = 0;
+        mergedCount += suppressed;
+        return suppressed;
+    }
+
+    /**
+     * Refills all buckets, e.g. when the app is opened again. Checks suppressed so far
+     * are counted as dropped.
+     */
+    public void reset() {
+        for (Bucket bucket : buckets.values()) {
+            droppedCount += bucket.suppressed;
+            bucket.suppressed = 0;
+            bucket.tokens = bucket.capacity;
+            bucket.lastRefill = -1;
+        }
+    }
+
+    /** Number of suppressed checks accounted for by a later check of the same event type */
+    public long getMergedCount() {
+        return mergedCount;
+    }
+
+    /** Number of suppressed checks that were never accounted for */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+}
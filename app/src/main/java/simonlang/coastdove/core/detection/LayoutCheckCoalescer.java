@@ -0,0 +1,172 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.core.detection;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.SparseArray;
+import android.util.SparseLongArray;
+
+/**
+ * Merges bursts of content change events into at most one layout check per window and interval.
+ * The first content change after a quiet interval is checked right away; any further changes
+ * within the interval are deferred to a single trailing check at the end of the interval, so
+ * the final state of the screen is always evaluated. Not thread-safe, must only be used on the
+ * thread of the handler passed to it.
+ */
+public class LayoutCheckCoalescer {
+    /**
+     * Receives deferred (trailing) layout checks
+     */
+    public interface Callback {
+        /**
+         * Called once the interval of a window with deferred content changes has passed
+         * @param windowId    Window whose content has changed
+         */
+        void onTrailingCheck(int windowId);
+    }
+
+    /** Indicates that a window has not been checked yet */
+    private static final long NEVER = -1L;
+
+    /** Handler to run trailing checks on */
+    private final Handler handler;
+    /** Receives trailing checks */
+    private final Callback callback;
+    /** Minimum time between two layout checks of the same window, in milliseconds */
+    private long interval;
+    /** Time of the last layout check, per window */
+    private final SparseLongArray lastChecks;
+    /** Trailing checks currently scheduled, per window */
+    private final SparseArray<TrailingCheck> pendingChecks;
+    /** Number of content changes that were merged into another check */
+    private long coalescedCount;
+
+    /**
+     * Creates a new coalescer
+     * @param handler     Handler to run trailing checks on
+     * @param interval    Minimum time between two layout checks of the same window, in milliseconds.
+     *                    Coalescing is disabled if 0 or less.
+     * @param callback    Receives trailing checks
+     */
+    public LayoutCheckCoalescer(Handler handler, long interval, Callback callback) {
+        this.handler = handler;
+        this.interval = interval;
+        this.callback = callback;
+        this.lastChecks = new SparseLongArray();
+        this.pendingChecks = new SparseArray<>();
+        this.coalescedCount = 0;
+    }
+
+    /**
+     * Registers a content change of the given window
+     * @param windowId    Window whose content has changed
+     * @return True if the layout check shall be performed right away, false if it has been deferred
+     */
+    public boolean onContentChanged(int windowId) {
+        if (interval <= 0)
+            return true;
+
+        // Already deferred, the trailing check covers this change as well
+        if (pendingChecks.get(windowId) != null) {
+            ++coalescedCount;
+            return false;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        long lastCheck = lastChecks.get(windowId, NEVER);
+        if (lastCheck == NEVER || now - lastCheck >= interval) {
+            lastChecks.put(windowId, now);
+            return true;
+        }
+
+        TrailingCheck trailingCheck = new TrailingCheck(windowId);
+        pendingChecks.put(windowId, trailingCheck);
+        handler.postAtTime(trailingCheck, lastCheck + interval);
+        ++coalescedCount;
+        return false;
+    }
+
+    /**
+     * Registers a layout check of the given window that was performed regardless of this coalescer,
+     * e.g., after a window state change. Any deferred check of that window is dropped.
+     * @param windowId    Window that has been checked
+     */
+    public void onChecked(int windowId) {
+        cancel(windowId);
+        lastChecks.put(windowId, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Drops all deferred checks and forgets all windows
+     */
+    public void reset() {
+        for (int i = 0; i < pendingChecks.size(); ++i)
+            handler.removeCallbacks(pendingChecks.valueAt(i));
+        pendingChecks.clear();
+        lastChecks.clear();
+    }
+
+    /**
+     * Sets the minimum time between two layout checks of the same window
+     * @param interval    Interval in milliseconds, coalescing is disabled if 0 or less
+     */
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    /** Minimum time between two layout checks of the same window, in milliseconds */
+    public long getInterval() {
+        return interval;
+    }
+
+    /** Number of content changes that were merged into another check */
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * Drops the deferred check of the given window, if any
+     */
+    private void cancel(int windowId) {
+        TrailingCheck trailingCheck = pendingChecks.get(windowId);
+        if (trailingCheck != null) {
+            handler.removeCallbacks(trailingCheck);
+            pendingChecks.remove(windowId);
+        }
+    }
+
+    /**
+     * Deferred layout check of one window
+     */
+    private final class TrailingCheck implements Runnable {
+        private final int windowId;
+
+        private TrailingCheck(int windowId) {
+            this.windowId = windowId;
+        }
+
+        @Override
+        public void run() {
+            pendingChecks.remove(windowId);
+            lastChecks.put(windowId, SystemClock.uptimeMillis());
+            callback.onTrailingCheck(windowId);
+        }
+    }
+}
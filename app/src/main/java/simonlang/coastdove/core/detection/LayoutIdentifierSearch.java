@@ -0,0 +1,348 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.core.detection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import simonlang.coastdove.core.utility.PowerSet;
+import simonlang.coastdove.lib.CollatorWrapper;
+
+/**
+ * Finds the smallest sets of android IDs that identify layouts without a unique android ID. A set
+ * identifies a layout if no other layout contains all of its android IDs. For each layout, subsets
+ * of its android IDs are enumerated by increasing size, up to a maximum size; the search stops at
+ * the first size for which identifiers are found, so only the smallest ones are kept.
+ * <p>
+ * The search is pruned before enumerating: android IDs that occur in exactly the same layouts as
+ * another one of the layout's android IDs are redundant, and so are android IDs occurring in a
+ * superset of the layouts of another one (the latter is always at least as good a choice).
+ * <p>
+ * As the number of subsets grows exponentially with the number of android IDs, layouts with many
+ * android IDs are identified greedily instead (a set cover heuristic): starting with one of the
+ * rarest android IDs, the android ID occurring in the fewest of the layouts not yet told apart is
+ * added, until the layout is told apart from all others. Each start yields at most one identifier,
+ * so more starts find more (and possibly smaller) identifiers, at the cost of setup time. Greedy
+ * identifiers may be larger than the smallest ones, but are found in polynomial time.
+ * <p>
+ * Layouts are searched in parallel, one task per layout. Immutable and thread-safe.
+ */
+public class LayoutIdentifierSearch {
+    /** Default maximum number of android IDs per identifier */
+    public static final int DEFAULT_MAX_IDENTIFIER_SIZE = 3;
+    /** Maximum number of identifiers kept per layout */
+    public static final int MAX_IDENTIFIERS_PER_LAYOUT = 4;
+    /** Maximum number of subsets checked per layout, to bound the search for layouts with many android IDs */
+    public static final int MAX_SUBSETS_PER_LAYOUT = 20000;
+    /** Default number of candidate android IDs of a layout above which it is identified greedily */
+    public static final int DEFAULT_MAX_EXHAUSTIVE_CANDIDATES = 24;
+    /** Default number of rarest android IDs to start greedy identification from */
+    public static final int DEFAULT_GREEDY_STARTS = 4;
+
+    /** Names of all layouts, by index */
+    private final String[] layouts;
+    /** Android IDs of all layouts, by index */
+    private final List<Set<String>> layoutIDs;
+    /** Indices of the layouts each android ID occurs in */
+    private final Map<String, BitSet> occurrences;
+
+    /**
+     * Creates a new search over the given layouts
+     * @param layoutIDSets    Map (layout -> android IDs contained in it) of all layouts of an app
+     */
+    public LayoutIdentifierSearch(Map<String, Set<String>> layoutIDSets) {
+        this.layouts = new String[layoutIDSets.size()];
+        this.layoutIDs = new ArrayList<>(layoutIDSets.size());
+        this.occurrences = new HashMap<>();
+        int layout = 0;
+        for (Map.Entry<String, Set<String>> entry : layoutIDSets.entrySet()) {
+            layouts[layout] = entry.getKey();
+            layoutIDs.add(entry.getValue());
+            for (String id : entry.getValue()) {
+                BitSet occurrence = occurrences.get(id);
+                if (occurrence == null) {
+                    occurrence = new BitSet(layouts.length);
+                    occurrences.put(id, occurrence);
+                }
+                occurrence.set(layout);
+            }
+            ++layout;
+        }
+    }
+
+    /**
+     * Searches identifiers for all layouts without a unique android ID, with the default trade-off
+     * between exhaustive and greedy search
+     * @param maxIdentifierSize    Maximum number of android IDs per identifier
+     * @param threads              Number of threads to search with
+     * @return Identification of each layout without a unique android ID; layouts that cannot be
+     *         identified with at most maxIdentifierSize android IDs have no identifiers
+     * @throws InterruptedException if the calling thread is interrupted while waiting for the search
+     */
+    public List<LayoutIdentification> findIdentifiers(int maxIdentifierSize, int threads)
+            throws InterruptedException {
+        return findIdentifiers(maxIdentifierSize, DEFAULT_MAX_EXHAUSTIVE_CANDIDATES, DEFAULT_GREEDY_STARTS, threads);
+    }
+
+    /**
+     * Searches identifiers for all layouts without a unique android ID
+     * @param maxIdentifierSize          Maximum number of android IDs per identifier
+     * @param maxExhaustiveCandidates    Number of candidate android IDs of a layout above which it is
+     *                                   identified greedily; 0 to identify all layouts greedily,
+     *                                   Integer.MAX_VALUE to search all exhaustively
+     * @param greedyStarts               Number of rarest android IDs to start greedy identification from
+     * @param threads                    Number of threads to search with
+     * @return Identification of each layout without a unique android ID; layouts that cannot be
+     *         identified with at most maxIdentifierSize android IDs have no identifiers
+     * @throws InterruptedException if the calling thread is interrupted while waiting for the search
+     */
+    public List<LayoutIdentification> findIdentifiers(final int maxIdentifierSize, final int maxExhaustiveCandidates,
+                                                      final int greedyStarts, int threads)
+            throws InterruptedException {
+        List<Callable<LayoutIdentification>> tasks = new ArrayList<>();
+        for (int layout = 0; layout < layouts.length; ++layout) {
+            if (hasUniqueID(layout))
+                continue;
+            final int layoutIndex = layout;
+            tasks.add(new Callable<LayoutIdentification>() {
+                @Override
+                public LayoutIdentification call() {
+                    return identify(layoutIndex, maxIdentifierSize, maxExhaustiveCandidates, greedyStarts);
+                }
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<LayoutIdentification> result = new ArrayList<>(tasks.size());
+            for (Future<LayoutIdentification> future : executor.invokeAll(tasks))
+                result.add(future.get());
+            return result;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Number of layouts */
+    int getLayoutCount() {
+        return layouts.length;
+    }
+
+    /**
+     * Searches the smallest identifiers of the given layout
+     * @param layout                     Index of the layout
+     * @param maxIdentifierSize          Maximum number of android IDs per identifier
+     * @param maxExhaustiveCandidates    Number of candidate android IDs above which the layout is
+     *                                   identified greedily
+     * @param greedyStarts               Number of rarest android IDs to start greedy identification from
+     * @return Identification of the layout, without identifiers if none was found
+     */
+    LayoutIdentification identify(int layout, int maxIdentifierSize, int maxExhaustiveCandidates, int greedyStarts) {
+        LayoutIdentification result = new LayoutIdentification(layouts[layout]);
+
+        // Layouts containing all android IDs of this one cannot be told apart from it
+        BitSet indistinguishable = new BitSet(layouts.length);
+        indistinguishable.set(0, layouts.length);
+        for (String id : layoutIDs.get(layout))
+            indistinguishable.and(occurrences.get(id));
+        result.setAmbiguity(indistinguishable.cardinality());
+        if (result.getAmbiguity() > 1 || layoutIDs.get(layout).isEmpty())
+            return result;
+
+        String[] candidates = prunedCandidates(layout);
+        BitSet[] candidateOccurrences = new BitSet[candidates.length];
+        for (int c = 0; c < candidates.length; ++c)
+            candidateOccurrences[c] = occurrences.get(candidates[c]);
+
+        if (candidates.length > maxExhaustiveCandidates)
+            identifyGreedily(result, layout, candidates, candidateOccurrences, maxIdentifierSize, greedyStarts);
+        else
+            identifyExhaustively(result, layout, candidates, candidateOccurrences, maxIdentifierSize);
+        return result;
+    }
+
+    /**
+     * Enumerates the subsets of the candidates by increasing size, and adds the smallest ones
+     * identifying the layout to the result
+     */
+    private void identifyExhaustively(LayoutIdentification result, int layout, String[] candidates,
+                                      BitSet[] candidateOccurrences, int maxIdentifierSize) {
+        // Single android IDs are shared by other layouts, or there would be a unique one
+        PowerSet subsets = new PowerSet(candidates.length, 2, maxIdentifierSize);
+        long[] subset = new long[(candidates.length + 63) / 64];
+        BitSet matches = new BitSet(layouts.length);
+        int foundSize = 0;
+        for (int checked = 0; checked < MAX_SUBSETS_PER_LAYOUT && subsets.hasNext(); ++checked) {
+            if (foundSize > 0 && subsets.sizeOfNext() > foundSize)
+                break;
+
+            int size = subsets.next(subset);
+            matches.set(0, layouts.length);
+            for (int w = 0; w < subset.length; ++w) {
+                for (long bits = subset[w]; bits != 0; bits &= bits - 1)
+                    matches.and(candidateOccurrences[w * 64 + Long.numberOfTrailingZeros(bits)]);
+            }
+            if (matches.cardinality() == 1) {
+                Set<String> identifier = new TreeSet<>(new CollatorWrapper());
+                for (int w = 0; w < subset.length; ++w) {
+                    for (long bits = subset[w]; bits != 0; bits &= bits - 1)
+                        identifier.add(candidates[w * 64 + Long.numberOfTrailingZeros(bits)]);
+                }
+                result.addLayoutIdentifier(identifier);
+                foundSize = size;
+                if (result.getLayoutIdentifiers().size() == MAX_IDENTIFIERS_PER_LAYOUT)
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Grows identifiers greedily from the rarest candidates, and adds the smallest ones found
+     * to the result
+     */
+    private void identifyGreedily(LayoutIdentification result, int layout, String[] candidates,
+                                  BitSet[] candidateOccurrences, int maxIdentifierSize, int greedyStarts) {
+        // Candidates by rarity, i.e. by the number of layouts they occur in
+        Integer[] byRarity = new Integer[candidates.length];
+        for (int c = 0; c < candidates.length; ++c)
+            byRarity[c] = c;
+        final BitSet[] occurrencesOfCandidates = candidateOccurrences;
+        Arrays.sort(byRarity, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return occurrencesOfCandidates[lhs].cardinality() - occurrencesOfCandidates[rhs].cardinality();
+            }
+        });
+
+        List<Set<String>> found = new ArrayList<>();
+        int smallestSize = Integer.MAX_VALUE;
+        boolean[] chosen = new boolean[candidates.length];
+        BitSet remaining = new BitSet(layouts.length);
+        BitSet scratch = new BitSet(layouts.length);
+        for (int start = 0; start < Math.min(greedyStarts, candidates.length); ++start) {
+            Arrays.fill(chosen, false);
+            int first = byRarity[start];
+            chosen[first] = true;
+            int size = 1;
+            // Layouts not told apart yet
+            remaining.clear();
+            remaining.or(candidateOccurrences[first]);
+            remaining.clear(layout);
+
+            while (!remaining.isEmpty() && size < maxIdentifierSize) {
+                int best = -1;
+                int bestCount = remaining.cardinality();
+                for (int c : byRarity) {
+                    if (chosen[c])
+                        continue;
+                    scratch.clear();
+                    scratch.or(remaining);
+                    scratch.and(candidateOccurrences[c]);
+                    int count = scratch.cardinality();
+                    if (count < bestCount) {
+                        best = c;
+                        bestCount = count;
+                    }
+                }
+                // No candidate tells any more layouts apart
+                if (best < 0)
+                    break;
+                chosen[best] = true;
+                ++size;
+                remaining.and(candidateOccurrences[best]);
+            }
+
+            if (!remaining.isEmpty() || size > smallestSize)
+                continue;
+            Set<String> identifier = new TreeSet<>(new CollatorWrapper());
+            for (int c = 0; c < candidates.length; ++c) {
+                if (chosen[c])
+                    identifier.add(candidates[c]);
+            }
+            if (size < smallestSize) {
+                found.clear();
+                smallestSize = size;
+            }
+            if (!found.contains(identifier))
+                found.add(identifier);
+        }
+
+        for (int i = 0; i < Math.min(found.size(), MAX_IDENTIFIERS_PER_LAYOUT); ++i)
+            result.addLayoutIdentifier(found.get(i));
+    }
+
+    /**
+     * Indicates whether the given layout contains an android ID that occurs in no other layout
+     */
+    private boolean hasUniqueID(int layout) {
+        for (String id : layoutIDs.get(layout)) {
+            if (occurrences.get(id).cardinality() == 1)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the android IDs of the given layout worth enumerating subsets of, i.e. without those
+     * occurring in the same layouts as, or in a superset of the layouts of another one
+     * @return The android IDs, sorted
+     */
+    private String[] prunedCandidates(int layout) {
+        List<String> ids = new ArrayList<>(layoutIDs.get(layout));
+        int[] counts = new int[ids.size()];
+        for (int i = 0; i < ids.size(); ++i)
+            counts[i] = occurrences.get(ids.get(i)).cardinality();
+
+        List<String> kept = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); ++i) {
+            BitSet occurrence = occurrences.get(ids.get(i));
+            boolean dominated = false;
+            for (int j = 0; j < ids.size() && !dominated; ++j) {
+                // other must occur in a subset of the layouts of this one; for equal sets, keep the first
+                if (i == j || counts[j] > counts[i] || (counts[j] == counts[i] && j > i))
+                    continue;
+                BitSet other = occurrences.get(ids.get(j));
+                dominated = true;
+                for (int l = other.nextSetBit(0); l >= 0 && dominated; l = other.nextSetBit(l + 1))
+                    dominated = occurrence.get(l);
+            }
+            if (!dominated)
+                kept.add(ids.get(i));
+        }
+
+        Collections.sort(kept, new CollatorWrapper());
+        return kept.toArray(new String[kept.size()]);
+    }
+}
@@ -0,0 +1,88 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.core.detection;
+
+import android.os.Bundle;
+
+import java.util.Arrays;
+
+import simonlang.coastdove.lib.CoastDoveListenerService;
+
+/**
+ * Result of a layout check as sent to listeners: the names of the layouts recognized and, if there
+ * are none, the layouts most similar to the screen along with their scores. Immutable, so results
+ * can be cached (see {@link LayoutResultCache}) and compared to the last one sent.
+ */
+public final class LayoutResult {
+    /** Names of the layouts recognized, sorted */
+    private final String[] layouts;
+    /** Names of the layouts most similar to the screen, best first, empty if any layout was recognized */
+    private final String[] candidates;
+    /** Scores of the candidates */
+    private final float[] candidateScores;
+
+    /**
+     * Creates a new result; the arrays are not copied and must not be changed afterwards
+     * @param layouts            Names of the layouts recognized, sorted
+     * @param candidates         Names of the layouts most similar to the screen, best first
+     * @param candidateScores    Scores of the candidates
+     */
+    public LayoutResult(String[] layouts, String[] candidates, float[] candidateScores) {
+        this.layouts = layouts;
+        this.candidates = candidates;
+        this.candidateScores = candidateScores;
+    }
+
+    /**
+     * Adds this result to the data to be sent to listeners
+     * (see {@link AppDetectionData#DATA_LAYOUT_CANDIDATES})
+     */
+    public void putInto(Bundle data) {
+        data.putStringArray(CoastDoveListenerService.DATA_LAYOUTS, layouts);
+        if (candidates.length > 0) {
+            data.putStringArray(AppDetectionData.DATA_LAYOUT_CANDIDATES, candidates);
+            data.putFloatArray(AppDetectionData.DATA_LAYOUT_CANDIDATE_SCORES, candidateScores);
+        }
+    }
+
+    /**
+     * Indicates whether listeners would receive the same data for the given result as for this one
+     * @param other    Result to compare to, may be null
+     */
+    public boolean sameAs(LayoutResult other) {
+        return other != null && (other == this || Arrays.equals(layouts, other.layouts) &&
+                Arrays.equals(candidates, other.candidates) && Arrays.equals(candidateScores, other.candidateScores));
+    }
+
+    /** Names of the layouts recognized, sorted */
+    public String[] getLayouts() {
+        return layouts.clone();
+    }
+
+    /** Names of the layouts most similar to the screen, best first, empty if any layout was recognized */
+    public String[] getCandidates() {
+        return candidates.clone();
+    }
+
+    /** Scores of the layouts most similar to the screen, from 0 to 1 */
+    public float[] getCandidateScores() {
+        return candidateScores.clone();
+    }
+}
@@ -0,0 +1,115 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.core.detection;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the layouts recognized on recently seen screens, keyed by the fingerprint
+ * of the android IDs visible (see {@link OnScreenIDSet#getFingerprint()}). Users tend to switch
+ * between a handful of screens, so most layout checks find their result here instead of
+ * recognizing the layouts again. Once full, the least recently used result is evicted.
+ * Results must only be cached for complete sets of android IDs. Not thread-safe, must only be
+ * used on the detection pipeline's thread (counters may be read from any thread).
+ */
+public class LayoutResultCache {
+    /** Results by fingerprint, in access order */
+    private final LinkedHashMap<Long, LayoutResult> results;
+    /** Maximum number of results, nothing is cached if 0 */
+    private volatile int capacity;
+    /** Number of results found in the cache */
+    private volatile long hitCount;
+    /** Number of results not found in the cache */
+    private volatile long missCount;
+
+    /**
+     * Creates an empty cache
+     * @param capacity    Maximum number of results, nothing is cached if 0
+     */
+    public LayoutResultCache(int capacity) {
+        this.results = new LinkedHashMap<Long, LayoutResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, LayoutResult> eldest) {
+                return size() > LayoutResultCache.this.capacity;
+            }
+        };
+        setCapacity(capacity);
+    }
+
+    /**
+     * Looks up the result of the screen with the given fingerprint, marking it as most recently used
+     * @param fingerprint    Fingerprint of the android IDs visible on the screen
+     * @return The result cached, or null if there is none
+     */
+    public LayoutResult get(long fingerprint) {
+        if (capacity == 0)
+            return null;
+        LayoutResult result = results.get(fingerprint);
+        if (result != null)
+            ++hitCount;
+        else
+            ++missCount;
+        return result;
+    }
+
+    /**
+     * Caches the result of the screen with the given fingerprint, evicting the least recently
+     * used result if the cache is full
+     * @param fingerprint    Fingerprint of the complete set of android IDs visible on the screen
+     * @param result         Layouts recognized on the screen
+     */
+    public void put(long fingerprint, LayoutResult result) {
+        if (capacity > 0)
+            results.put(fingerprint, result);
+    }
+
+    /**
+     * Discards all results
+     */
+    public void clear() {
+        results.clear();
+    }
+
+    /**
+     * Sets the maximum number of results, discarding all results cached so far
+     * @param capacity    Maximum number of results, nothing is cached if 0
+     */
+    public void setCapacity(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity must not be negative");
+        this.capacity = capacity;
+        results.clear();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Number of results found in the cache */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /** Number of results not found in the cache */
+    public long getMissCount() {
+        return missCount;
+    }
+}
@@ -0,0 +1,181 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.core.detection;
+
+/**
+ * Scores how well the android IDs on the screen match each layout of an app, to report the most
+ * likely layouts when none is recognized by a unique android ID or an identifier. The android IDs
+ * on the screen are set in a bitset over the bit positions of the app's {@link ViewIdTable}, which
+ * is intersected with the packed android IDs of each layout, 64 android IDs at a time. Only the
+ * non-zero words of each layout are looked at, so the time taken grows with the number of layouts
+ * and the android IDs each one has, not with the number of android IDs of the app. Buffers are
+ * reused, so scoring allocates nothing. Not thread-safe.
+ */
+public class LayoutSimilarity {
+    /**
+     * How a layout is scored, given the android IDs on the screen
+     */
+    public enum Metric {
+        /** Fraction of the layout's android IDs that are on the screen */
+        CONTAINMENT,
+        /** Number of android IDs on the screen and in the layout, divided by the number of android IDs
+         * on the screen or in the layout (Jaccard index) */
+        JACCARD
+    }
+
+    /** Default number of candidates to report */
+    public static final int DEFAULT_MAX_CANDIDATES = 3;
+    /** Default score below which layouts are not reported */
+    public static final float DEFAULT_MIN_SCORE = 0.3f;
+
+    /** Index with the packed android IDs of the layouts */
+    private final ViewIdTable viewIdTable;
+    /** Bitset of the android IDs on the screen, all zero between scorings */
+    private final long[] screenBits;
+    /** Indices of the words of screenBits that have been set, to clear them afterwards */
+    private final int[] setWords;
+    /** Int IDs on the screen, copied from the set scored */
+    private final int[] screenIDs;
+    /** Ordinals of the best layouts, best first */
+    private final int[] candidates;
+    /** Scores of the best layouts */
+    private final float[] scores;
+    private int candidateCount;
+
+    /**
+     * Creates a scorer for the layouts of the given index
+     * @param viewIdTable      Index of the app; without packed android IDs of layouts, no layout
+     *                         is ever reported
+     * @param maxCandidates    Maximum number of layouts to report
+     */
+    public LayoutSimilarity(ViewIdTable viewIdTable, int maxCandidates) {
+        if (maxCandidates < 1)
+            throw new IllegalArgumentException("maxCandidates must be at least 1");
+        this.viewIdTable = viewIdTable;
+        this.screenBits = new long[viewIdTable.getBitWordCount()];
+        this.setWords = new int[viewIdTable.getBitWordCount()];
+        this.screenIDs = new int[viewIdTable.size()];
+        this.candidates = new int[maxCandidates];
+        this.scores = new float[maxCandidates];
+        this.candidateCount = 0;
+    }
+
+    /**
+     * Scores all layouts, keeping the best ones (see {@link #getCandidate(int)})
+     * @param androidIDs    Multiset of android IDs detected on the screen
+     * @param metric        How to score layouts
+     * @param minScore      Score below which layouts are not kept
+     * @return Number of layouts kept
+     */
+    public int score(OnScreenIDSet androidIDs, Metric metric, float minScore) {
+        int idCount = androidIDs.getVisibleIDCount();
+        for (int k = 0; k < idCount; ++k)
+            screenIDs[k] = androidIDs.getVisibleID(k);
+        return score(screenIDs, idCount, metric, minScore);
+    }
+
+    /**
+     * Scores all layouts, keeping the best ones (see {@link #getCandidate(int)})
+     * @param ids         Distinct int IDs on the screen; negative ones (android IDs unknown to
+     *                    the index, see {@link ViewIdTable#lookup(String)}) are ignored
+     * @param idCount     Number of int IDs, from the start of ids
+     * @param metric      How to score layouts
+     * @param minScore    Score below which layouts are not kept
+     * @return Number of layouts kept
+     */
+    public int score(int[] ids, int idCount, Metric metric, float minScore) {
+        candidateCount = 0;
+        if (!viewIdTable.hasLayoutIDSets())
+            return 0;
+
+        int screenCount = 0;
+        int setWordCount = 0;
+        for (int k = 0; k < idCount; ++k) {
+            int bit = ids[k] < 0 ? -1 : viewIdTable.getIdBit(ids[k]);
+            if (bit < 0)
+                continue;
+            int word = bit >>> 6;
+            if (screenBits[word] == 0)
+                setWords[setWordCount++] = word;
+            screenBits[word] |= 1L << bit;
+            ++screenCount;
+        }
+
+        if (screenCount > 0) {
+            for (int layout = 0; layout < viewIdTable.getLayoutCount(); ++layout) {
+                int common = viewIdTable.countContained(layout, screenBits);
+                if (common == 0)
+                    continue;
+                int size = viewIdTable.getLayoutIdCount(layout);
+                float score = metric == Metric.CONTAINMENT ? (float)common / size :
+                        (float)common / (size + screenCount - common);
+                if (score >= minScore)
+                    offer(layout, score);
+            }
+        }
+
+        for (int w = 0; w < setWordCount; ++w)
+            screenBits[setWords[w]] = 0;
+        return candidateCount;
+    }
+
+    /** Number of layouts kept by the last scoring */
+    public int getCandidateCount() {
+        return candidateCount;
+    }
+
+    /**
+     * Returns one of the layouts kept by the last scoring
+     * @param k    From 0 (best) to getCandidateCount() - 1
+     * @return Layout ordinal
+     */
+    public int getCandidate(int k) {
+        return candidates[k];
+    }
+
+    /**
+     * Returns the score of one of the layouts kept by the last scoring
+     * @param k    From 0 (best) to getCandidateCount() - 1
+     * @return Score, from 0 to 1
+     */
+    public float getScore(int k) {
+        return scores[k];
+    }
+
+    /**
+     * Keeps the given layout if it is among the best so far. Of layouts with equal
+     * scores, the one offered first is kept.
+     */
+    private void offer(int layout, float score) {
+        int position = candidateCount;
+        while (position > 0 && scores[position - 1] < score)
+            --position;
+        if (position == candidates.length)
+            return;
+
+        int end = Math.min(candidateCount, candidates.length - 1);
+        System.arraycopy(candidates, position, candidates, position + 1, end - position);
+        System.arraycopy(scores, position, scores, position + 1, end - position);
+        candidates[position] = layout;
+        scores[position] = score;
+        if (candidateCount < candidates.length)
+            ++candidateCount;
+    }
+}
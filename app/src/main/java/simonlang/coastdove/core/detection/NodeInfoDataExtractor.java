@@ -24,6 +24,15 @@ import android.view.accessibility.AccessibilityNodeInfo;
  * Class to extract data from a node info
  */
 public abstract class NodeInfoDataExtractor<T> {
+    /** Returns the node info itself */
+    public static final NodeInfoDataExtractor<AccessibilityNodeInfo> NODE_INFO =
+            new NodeInfoDataExtractor<AccessibilityNodeInfo>() {
+                @Override
+                public AccessibilityNodeInfo extractData(AccessibilityNodeInfo nodeInfo) {
+                    return nodeInfo;
+                }
+            };
+
     /**
      * Extracts data from a given node info.
      * @param nodeInfo    Node info to extract data from
@@ -21,9 +21,46 @@ package simonlang.coastdove.core.detection;
 import android.view.accessibility.AccessibilityNodeInfo;
 
 /**
- * Class to filter node infos according to specified rules
+ * Class to filter node infos according to specified rules. Besides accepting or rejecting
+ * single node infos, a filter can decide how a traversal continues below a node info,
+ * see {@link #traverse(AccessibilityNodeInfo)}.
  */
 public abstract class NodeInfoFilter {
+    /**
+     * How a traversal continues after a node info
+     */
+    public enum Traversal {
+        /** Descend into the node info's children */
+        CONTINUE,
+        /** Do not descend into the node info's children, but go on with the rest of the tree */
+        SKIP_SUBTREE,
+        /** End the traversal after this node info */
+        STOP
+    }
+
+    /** Accepts node infos visible to the user, and skips the subtrees of all others */
+    public static final NodeInfoFilter VISIBLE_TO_USER = new NodeInfoFilter() {
+        @Override
+        public boolean filter(AccessibilityNodeInfo nodeInfo) {
+            return nodeInfo.isVisibleToUser();
+        }
+
+        @Override
+        public Traversal traverse(AccessibilityNodeInfo nodeInfo) {
+            return nodeInfo.isVisibleToUser() ? Traversal.CONTINUE : Traversal.SKIP_SUBTREE;
+        }
+    };
+
+    /** Accepts node infos that have at least an android ID, a text or a description */
+    public static final NodeInfoFilter HAS_INTERACTION_DATA = new NodeInfoFilter() {
+        @Override
+        public boolean filter(AccessibilityNodeInfo nodeInfo) {
+            return nodeInfo != null &&
+                    (nodeInfo.getViewIdResourceName() != null || nodeInfo.getText() != null ||
+                     nodeInfo.getContentDescription() != null);
+        }
+    };
+
     /**
      * Indicates whether the given node info applies to the
      * implemented filter or not.
@@ -31,4 +68,15 @@ public abstract class NodeInfoFilter {
      * @return True if the rule applies to the node info, false otherwise.
      */
     public abstract boolean filter(AccessibilityNodeInfo nodeInfo);
+
+    /**
+     * Decides how the traversal continues after the given node info, regardless of whether
+     * it has been accepted by {@link #filter(AccessibilityNodeInfo)}. Descends into all
+     * children by default.
+     * @param nodeInfo    Node info just processed
+     * @return How to continue the traversal
+     */
+    public Traversal traverse(AccessibilityNodeInfo nodeInfo) {
+        return Traversal.CONTINUE;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,169 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.core.detection;
+
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simonlang.coastdove.core.BuildConfig;
+
+/**
+ * Keeps track of all AccessibilityNodeInfos obtained (e.g. via getChild(), getParent() or
+ * getRootInActiveWindow()) while processing one event or request, and recycles them all at
+ * once when the scope is closed. Scopes are bound to the thread that opened them and may be
+ * nested; code deep down the call stack registers node infos with {@link #track(AccessibilityNodeInfo)}
+ * without needing a reference to the scope.
+ * <p>
+ * Typical usage:
+ * <pre>
+ * NodeInfoScope scope = NodeInfoScope.open("event");
+ * try {
+ *     ...
+ * } finally {
+ *     scope.close();
+ * }
+ * </pre>
+ * In debug mode, node infos obtained outside of any scope (which would never be recycled) and
+ * node infos recycled twice are reported to the log.
+ */
+public final class NodeInfoScope {
+    /** Innermost scope opened on each thread */
+    private static final ThreadLocal<NodeInfoScope> currentScope = new ThreadLocal<>();
+    /** Whether leaks are reported */
+    private static volatile boolean debug = BuildConfig.DEBUG;
+    /** Number of node infos tracked outside of any scope, only counted in debug mode */
+    private static final AtomicLong leakCount = new AtomicLong(0);
+
+    /**
+     * Opens a new scope on the current thread. All node infos tracked on this thread are added to
+     * it until it is closed.
+     * @param name    Name of the scope, used for logging
+     * @return The scope opened, to be closed by the caller
+     */
+    public static NodeInfoScope open(String name) {
+        NodeInfoScope scope = new NodeInfoScope(name, currentScope.get());
+        currentScope.set(scope);
+        return scope;
+    }
+
+    /**
+     * Adds the given node info to the innermost scope of the current thread, so it is recycled
+     * when that scope is closed
+     * @param nodeInfo    Node info to track, may be null
+     * @return nodeInfo, for convenience
+     */
+    public static AccessibilityNodeInfo track(AccessibilityNodeInfo nodeInfo) {
+        if (nodeInfo == null)
+            return null;
+
+        NodeInfoScope scope = currentScope.get();
+        if (scope != null)
+            scope.nodeInfos.add(nodeInfo);
+        else if (debug) {
+            // Report the first leak and every 100th afterwards, to avoid flooding the log
+            long leaks = leakCount.incrementAndGet();
+            if (leaks == 1 || leaks % 100 == 0)
+                Log.w("NodeInfoScope", "Node info obtained outside of any scope, will not be recycled (" +
+                        leaks + " so far)", new Throwable());
+        }
+        return nodeInfo;
+    }
+
+    /**
+     * Removes the given node info from the innermost scope of the current thread, e.g. because it
+     * is kept beyond the scope. The caller becomes responsible for recycling it.
+     * @param nodeInfo    Node info to release, may be null
+     * @return nodeInfo, for convenience
+     */
+    public static AccessibilityNodeInfo release(AccessibilityNodeInfo nodeInfo) {
+        NodeInfoScope scope = currentScope.get();
+        if (nodeInfo != null && scope != null)
+            scope.nodeInfos.remove(nodeInfo);
+        return nodeInfo;
+    }
+
+    /**
+     * Enables or disables reporting of leaks
+     */
+    public static void setDebug(boolean debug) {
+        NodeInfoScope.debug = debug;
+    }
+
+    /** Number of node infos tracked outside of any scope so far (debug mode only) */
+    public static long getLeakCount() {
+        return leakCount.get();
+    }
+
+    /** Name of the scope, used for logging */
+    private final String name;
+    /** Scope that was innermost before this one was opened */
+    private final NodeInfoScope outer;
+    /** Node infos to recycle, compared by identity, as equal node infos may be distinct objects */
+    private final Set<AccessibilityNodeInfo> nodeInfos;
+    /** Whether this scope has been closed */
+    private boolean closed;
+
+    private NodeInfoScope(String name, NodeInfoScope outer) {
+        this.name = name;
+        this.outer = outer;
+        this.nodeInfos = Collections.newSetFromMap(new IdentityHashMap<AccessibilityNodeInfo, Boolean>());
+        this.closed = false;
+    }
+
+    /**
+     * Recycles all node infos tracked in this scope and makes the outer scope (if any) the
+     * innermost one again. Must be called on the thread that opened the scope. No effect if
+     * the scope has been closed already.
+     */
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+
+        if (currentScope.get() == this) {
+            if (outer != null)
+                currentScope.set(outer);
+            else
+                currentScope.remove();
+        }
+        else if (debug)
+            Log.w("NodeInfoScope", "Scope " + name + " not closed in the order it was opened");
+
+        for (AccessibilityNodeInfo nodeInfo : nodeInfos) {
+            try {
+                nodeInfo.recycle();
+            } catch (IllegalStateException e) {
+                // Already recycled by someone else
+                if (debug)
+                    Log.w("NodeInfoScope", "Node info in scope " + name + " was recycled elsewhere");
+            }
+        }
+        nodeInfos.clear();
+    }
+
+    /** Number of node infos currently tracked in this scope */
+    public int size() {
+        return nodeInfos.size();
+    }
+}
@@ -20,23 +20,40 @@ package simonlang.coastdove.core.detection;
 
 import android.view.accessibility.AccessibilityNodeInfo;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
-import java.util.Queue;
 
 /**
  * Performs a breadth-first search on a tree of AccessibilityNodeInfo objects,
- * returning all nodes that match a certain criterion
+ * returning all nodes that match a certain criterion. The filter also decides whether
+ * to descend into each node's subtree and when to stop, see
+ * {@link NodeInfoFilter#traverse(AccessibilityNodeInfo)}. A traverser can be reused for
+ * any number of traversals (see {@link #reset(AccessibilityNodeInfo)}); its queue is an
+ * array that only grows, so steady-state traversals do not allocate anything besides
+ * the node infos returned by the framework and the data extracted.
  */
 public class NodeInfoTraverser<T> {
+    /** Initial capacity of the queue */
+    private static final int INITIAL_CAPACITY = 64;
+
     /** Node info from which to start traversing the tree */
     private AccessibilityNodeInfo startNodeInfo;
-    /** Queue of node infos needed for processing */
-    private Queue<AccessibilityNodeInfo> nodeInfos;
+    /** Ring buffer of node infos needed for processing */
+    private AccessibilityNodeInfo[] queue;
+    /** Index of the first node info in the queue */
+    private int head;
+    /** Number of node infos in the queue */
+    private int size;
     /** Filters node infos according to its rules */
     private NodeInfoFilter nodeInfoFilter;
     /** Extracts data from node infos according to its rules */
     private NodeInfoDataExtractor<T> dataExtractor;
+    /** Time at which to abandon the current traversal */
+    private Deadline deadline;
+    /** Whether the current traversal was abandoned because its deadline expired */
+    private boolean timedOut;
 
     /**
      * Initialize node info traverser with the given start node. No siblings or parents
@@ -45,12 +62,7 @@ public class NodeInfoTraverser<T> {
      * @param dataExtractor    Rules for data extraction
      */
     public NodeInfoTraverser(AccessibilityNodeInfo startNodeInfo, NodeInfoDataExtractor<T> dataExtractor) {
-        if (dataExtractor == null)
-            throw new IllegalArgumentException("dataExtractor must not be null");
-        this.startNodeInfo = startNodeInfo;
-        this.dataExtractor = dataExtractor;
-        this.nodeInfoFilter = null;
-        reset();
+        this(startNodeInfo, dataExtractor, null);
     }
 
     /**
@@ -67,15 +79,29 @@ public class NodeInfoTraverser<T> {
         this.startNodeInfo = startNodeInfo;
         this.dataExtractor = dataExtractor;
         this.nodeInfoFilter = filter;
+        this.queue = new AccessibilityNodeInfo[INITIAL_CAPACITY];
+        this.deadline = Deadline.NONE;
         reset();
     }
 
     /**
-     * Start over with the first element
+     * Initialize a reusable node info traverser without a start node. Call
+     * {@link #reset(AccessibilityNodeInfo)} before each traversal.
+     * @param dataExtractor    Rules for data extraction
+     * @param filter           Rules for filtering processed nodes
+     */
+    public NodeInfoTraverser(NodeInfoDataExtractor<T> dataExtractor, NodeInfoFilter filter) {
+        this(null, dataExtractor, filter);
+    }
+
+    /**
+     * Start over with the first element, without a deadline
      */
     public void reset() {
-        this.nodeInfos = new LinkedList<>();
-        this.nodeInfos.add(this.startNodeInfo);
+        clearQueue();
+        enqueue(this.startNodeInfo);
+        this.deadline = Deadline.NONE;
+        this.timedOut = false;
     }
 
     /**
@@ -88,11 +114,64 @@ public class NodeInfoTraverser<T> {
     }
 
     /**
-     * @return True if there is at least one element left in the tree,
-     * false otherwise
+     * Start over with a new start node info and filter
+     * @param startNodeInfo    Node that is treated as the root node of the tree
+     * @param filter           Rules for filtering processed nodes
+     */
+    public void reset(AccessibilityNodeInfo startNodeInfo, NodeInfoFilter filter) {
+        this.nodeInfoFilter = filter;
+        reset(startNodeInfo);
+    }
+
+    /**
+     * Sets the rules for filtering processed nodes, applied from the next node on. To start
+     * a new traversal with another filter, use {@link #reset(AccessibilityNodeInfo, NodeInfoFilter)}.
+     * @param nodeInfoFilter    Rules for filtering processed nodes, may be null
+     */
+    public void setNodeInfoFilter(NodeInfoFilter nodeInfoFilter) {
+        this.nodeInfoFilter = nodeInfoFilter;
+    }
+
+    /**
+     * Sets the rules for data extraction, applied from the next node on
+     * @param dataExtractor    Rules for data extraction
+     */
+    public void setDataExtractor(NodeInfoDataExtractor<T> dataExtractor) {
+        if (dataExtractor == null)
+            throw new IllegalArgumentException("dataExtractor must not be null");
+        this.dataExtractor = dataExtractor;
+    }
+
+    /**
+     * Sets the time at which to abandon the current traversal. Once it has expired,
+     * {@link #hasNext()} returns false and {@link #hasTimedOut()} true, so the data
+     * collected so far is a partial result. Cleared by {@link #reset()}.
+     * @param deadline    Time at which to abandon the traversal
+     */
+    public void setDeadline(Deadline deadline) {
+        this.deadline = deadline != null ? deadline : Deadline.NONE;
+    }
+
+    /**
+     * @return True if the current traversal was abandoned because its deadline expired
+     */
+    public boolean hasTimedOut() {
+        return this.timedOut;
+    }
+
+    /**
+     * @return True if there is at least one element left in the tree and the deadline
+     * has not expired, false otherwise
      */
     public boolean hasNext() {
-        return this.nodeInfos.size() > 0;
+        if (this.size == 0)
+            return false;
+        if (deadline.hasExpired()) {
+            clearQueue();
+            this.timedOut = true;
+            return false;
+        }
+        return true;
     }
 
     /**
@@ -115,7 +194,7 @@ public class NodeInfoTraverser<T> {
     public T nextFiltered() {
         while (hasNext()) {
             AccessibilityNodeInfo currentNodeInfo = nextNodeInfo();
-            if (currentNodeInfo != null && filter(currentNodeInfo))
+            if (filter(currentNodeInfo))
                 return extractData(currentNodeInfo);
         }
         return null;
@@ -127,7 +206,7 @@ public class NodeInfoTraverser<T> {
      * @return List of data extracted from each node
      */
     public List<T> getAll() {
-        List<T> result = new LinkedList<>();
+        List<T> result = new ArrayList<>();
         while (hasNext())
             result.add(next());
         reset();
@@ -141,16 +220,32 @@ public class NodeInfoTraverser<T> {
      * @return List of data extracted from each node to which the filter() rules apply
      */
     public List<T> getAllFiltered() {
-        List<T> result = new LinkedList<>();
-        while (hasNext()) {
-            AccessibilityNodeInfo currentNodeInfo = nextNodeInfo();
-            if (filter(currentNodeInfo))
-                result.add(extractData(currentNodeInfo));
-        }
+        List<T> result = new ArrayList<>();
+        collectFiltered(result, Integer.MAX_VALUE);
         reset();
         return result;
     }
 
+    /**
+     * Extracts data from the nodes left in the tree to which the filter applies, and adds it to
+     * the given sink, until maxResults data have been added or the tree is exhausted. Unlike
+     * {@link #getAllFiltered()}, does not reset the traverser, so the traversal can be continued.
+     * @param sink          Collection to add the data extracted to
+     * @param maxResults    Maximum number of data to add
+     * @return Number of data added to the sink
+     */
+    public int collectFiltered(Collection<? super T> sink, int maxResults) {
+        int count = 0;
+        while (count < maxResults && hasNext()) {
+            AccessibilityNodeInfo currentNodeInfo = nextNodeInfo();
+            if (filter(currentNodeInfo)) {
+                sink.add(extractData(currentNodeInfo));
+                ++count;
+            }
+        }
+        return count;
+    }
+
     /**
      * Extracts data from a given node info. Meant to be overridden
      * by inheriting class.
@@ -176,12 +271,12 @@ public class NodeInfoTraverser<T> {
 
     /**
      * Adds all children of the the given node info to the internal
-     * node info queue.
+     * node info queue. The children are tracked in the current {@link NodeInfoScope}.
      * @param nodeInfo    Node info from which to add children
      */
     private void addChildren(AccessibilityNodeInfo nodeInfo) {
         for (int i = 0; i < nodeInfo.getChildCount(); ++i)
-            this.nodeInfos.add(nodeInfo.getChild(i));
+            enqueue(NodeInfoScope.track(nodeInfo.getChild(i)));
     }
 
     /**
@@ -189,22 +284,56 @@ public class NodeInfoTraverser<T> {
      * @return Next node info in the tree
      */
     private AccessibilityNodeInfo nextNodeInfo() {
-        AccessibilityNodeInfo currentNodeInfo = this.nodeInfos.poll();
-        if (currentNodeInfo != null) {
-            addChildren(currentNodeInfo);
-            return currentNodeInfo;
-        }
-        else
+        if (size == 0)
             return null;
+
+        AccessibilityNodeInfo currentNodeInfo = queue[head];
+        queue[head] = null;
+        head = (head + 1) & (queue.length - 1);
+        --size;
+
+        NodeInfoFilter.Traversal traversal = nodeInfoFilter != null ?
+                nodeInfoFilter.traverse(currentNodeInfo) : NodeInfoFilter.Traversal.CONTINUE;
+        switch (traversal) {
+            case CONTINUE:
+                addChildren(currentNodeInfo);
+                break;
+            case STOP:
+                clearQueue();
+                break;
+            default:
+                break;
+        }
+        return currentNodeInfo;
     }
 
-    public void setNodeInfoFilter(NodeInfoFilter nodeInfoFilter) {
-        this.nodeInfoFilter = nodeInfoFilter;
+    /**
+     * Appends the given node info to the queue, growing it if necessary. Null is ignored.
+     */
+    private void enqueue(AccessibilityNodeInfo nodeInfo) {
+        if (nodeInfo == null)
+            return;
+
+        if (size == queue.length) {
+            // Unroll the ring into a buffer of twice the size (capacity stays a power of 2)
+            AccessibilityNodeInfo[] grown = new AccessibilityNodeInfo[queue.length * 2];
+            int firstPart = queue.length - head;
+            System.arraycopy(queue, head, grown, 0, firstPart);
+            System.arraycopy(queue, 0, grown, firstPart, head);
+            queue = grown;
+            head = 0;
+        }
+        queue[(head + size) & (queue.length - 1)] = nodeInfo;
+        ++size;
     }
 
-    public void setDataExtractor(NodeInfoDataExtractor<T> dataExtractor) {
-        if (dataExtractor == null)
-            throw new IllegalArgumentException("dataExtractor must not be null");
-        this.dataExtractor = dataExtractor;
+    /**
+     * Removes all node infos from the queue, keeping its capacity
+     */
+    private void clearQueue() {
+        if (size > 0)
+            Arrays.fill(queue, null);
+        head = 0;
+        size = 0;
     }
 }
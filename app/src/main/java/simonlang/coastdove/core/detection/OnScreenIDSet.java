@@ -0,0 +1,364 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.core.detection;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Multiset of the android IDs visible on the screen, kept up to date between events. Only android
+ * IDs known to the app's {@link ViewIdTable} are counted, as int IDs. Mirrors the structure of the
+ * node info tree, so that after a content change only the subtree of the changed node needs to be
+ * walked again and patched into the set, instead of the whole screen. Node infos are identified by
+ * their equals() method, i.e. by the view and window they stand for. Subtrees of node infos that
+ * are not visible to the user are not walked at all, since none of their android IDs can be on the
+ * screen. The set owns the node infos it mirrors and recycles them once they are removed. Walks can
+ * be given a {@link Deadline}; a walk that runs out of time leaves the set incomplete, and the next
+ * update fails so that the set is rebuilt. A 64-bit fingerprint of the int IDs visible (see
+ * {@link #getFingerprint()}) is kept up to date as they appear and disappear, so that results
+ * derived from the set can be cached. Not thread-safe.
+ */
+public class OnScreenIDSet {
+    /** Maximum number of ancestors to look at when searching for a skipped subtree */
+    private static final int MAX_ANCESTOR_LOOKUPS = 8;
+
+    /**
+     * Mirror of one node info
+     */
+    private static class Entry {
+        /** Node info (owned by the set), used as the key in {@link OnScreenIDSet#entries} */
+        private final AccessibilityNodeInfo key;
+        /** Parent entry, null for the root */
+        private Entry parent;
+        /** Child entries */
+        private final List<Entry> children;
+        /** Int ID of the android ID if the node is visible and has a known one, -1 otherwise */
+        private int viewId;
+        /** Whether the subtree has been skipped, i.e. there are no child entries */
+        private boolean skipped;
+
+        private Entry(AccessibilityNodeInfo key, Entry parent) {
+            this.key = key;
+            this.parent = parent;
+            this.children = new ArrayList<>(0);
+            this.viewId = -1;
+            this.skipped = false;
+        }
+    }
+
+    /** Interns the android IDs */
+    private final ViewIdTable viewIdTable;
+    /** All mirrored node infos */
+    private final Map<AccessibilityNodeInfo, Entry> entries;
+    /** Number of visible nodes per int ID */
+    private final int[] idCounts;
+    /** Int IDs with a count > 0, in no particular order (the first visibleIDCount entries) */
+    private final int[] visibleIDs;
+    /** Position of each int ID in visibleIDs, only meaningful if its count is > 0 */
+    private final int[] visibleIDPositions;
+    private int visibleIDCount;
+    /** Sum of the hashes of all int IDs with a count > 0 */
+    private long fingerprint;
+    /** Whether all walks since the last rebuild have finished before their deadline */
+    private boolean complete;
+
+    /**
+     * Creates an empty set
+     * @param viewIdTable    Interns the android IDs of the app
+     */
+    public OnScreenIDSet(ViewIdTable viewIdTable) {
+        this.viewIdTable = viewIdTable;
+        this.entries = new HashMap<>();
+        this.idCounts = new int[viewIdTable.size()];
+        this.visibleIDs = new int[viewIdTable.size()];
+        this.visibleIDPositions = new int[viewIdTable.size()];
+        this.visibleIDCount = 0;
+        this.fingerprint = 0;
+        this.complete = true;
+    }
+
+    /**
+     * Discards all data and walks the whole tree again
+     * @param rootNodeInfo    Root of the tree, may be null
+     */
+    public void rebuild(AccessibilityNodeInfo rootNodeInfo) {
+        rebuild(rootNodeInfo, Deadline.NONE);
+    }
+
+    /**
+     * Discards all data and walks the whole tree again, giving up once the deadline has expired
+     * @param rootNodeInfo    Root of the tree, may be null
+     * @param deadline        Time at which to stop walking the tree
+     */
+    public void rebuild(AccessibilityNodeInfo rootNodeInfo, Deadline deadline) {
+        clear();
+        if (rootNodeInfo == null)
+            return;
+
+        Entry root = new Entry(AccessibilityNodeInfo.obtain(rootNodeInfo), null);
+        entries.put(root.key, root);
+        walk(rootNodeInfo, root, deadline);
+    }
+
+    /**
+     * Walks the subtree of the given node info again and patches it into the set
+     * @param source    Node info whose subtree has changed
+     * @return True if the set was updated, false if the node info is not known (in
+     *         which case the set must be rebuilt)
+     */
+    public boolean update(AccessibilityNodeInfo source) {
+        return update(source, Deadline.NONE);
+    }
+
+    /**
+     * Walks the subtree of the given node info again and patches it into the set, giving up
+     * once the deadline has expired
+     * @param source      Node info whose subtree has changed
+     * @param deadline    Time at which to stop walking the subtree
+     * @return True if the set was updated, false if the node info is not known or the set
+     *         is incomplete (in which case the set must be rebuilt)
+     */
+    public boolean update(AccessibilityNodeInfo source, Deadline deadline) {
+        if (source == null || !complete)
+            return false;
+
+        Entry entry = entries.get(source);
+        if (entry == null) {
+            // The source may lie within a skipped subtree
+            entry = findSkippedAncestor(source);
+            if (entry == null || !entry.key.refresh())
+                return false;
+            // Still hidden, so nothing on the screen has changed
+            if (NodeInfoFilter.VISIBLE_TO_USER.traverse(entry.key) != NodeInfoFilter.Traversal.CONTINUE)
+                return true;
+            source = entry.key;
+        }
+
+        removeDescendants(entry);
+        removeID(entry);
+        walk(source, entry, deadline);
+        return true;
+    }
+
+    /**
+     * Discards all data
+     */
+    public void clear() {
+        for (AccessibilityNodeInfo key : entries.keySet())
+            key.recycle();
+        entries.clear();
+        for (int k = 0; k < visibleIDCount; ++k)
+            idCounts[visibleIDs[k]] = 0;
+        visibleIDCount = 0;
+        fingerprint = 0;
+        complete = true;
+    }
+
+    /**
+     * @return False if a walk since the last rebuild ran out of time, i.e. some android IDs
+     * on the screen may be missing from the set
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /** Number of distinct int IDs currently visible on the screen */
+    public int getVisibleIDCount() {
+        return visibleIDCount;
+    }
+
+    /**
+     * Returns one of the int IDs currently visible on the screen
+     * @param k    From 0 to getVisibleIDCount() - 1
+     */
+    public int getVisibleID(int k) {
+        return visibleIDs[k];
+    }
+
+    /**
+     * Returns a fingerprint of the int IDs currently visible on the screen, regardless of how often
+     * each one is visible. Equal sets have equal fingerprints; different sets have different ones
+     * except with negligible probability.
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /** Indicates whether the given int ID is currently visible on the screen */
+    public boolean isVisible(int id) {
+        return idCounts[id] > 0;
+    }
+
+    /** Number of node infos mirrored */
+    public int getNodeCount() {
+        return entries.size();
+    }
+
+    /**
+     * Walks the subtree of the given node info breadth-first, adding an entry for each
+     * node info below it. Marks the set as incomplete if the deadline expires before.
+     * @param nodeInfo    Node info to start from
+     * @param entry       Entry of nodeInfo, without children
+     * @param deadline    Time at which to stop walking
+     */
+    private void walk(AccessibilityNodeInfo nodeInfo, Entry entry, Deadline deadline) {
+        List<AccessibilityNodeInfo> nodeInfos = new ArrayList<>();
+        List<Entry> nodeEntries = new ArrayList<>();
+        nodeInfos.add(nodeInfo);
+        nodeEntries.add(entry);
+        for (int i = 0; i < nodeInfos.size(); ++i) {
+            if (deadline.hasExpired()) {
+                complete = false;
+                return;
+            }
+            AccessibilityNodeInfo current = nodeInfos.get(i);
+            Entry currentEntry = nodeEntries.get(i);
+            setID(currentEntry, current);
+
+            // Nothing below an invisible node can be on the screen
+            currentEntry.skipped = NodeInfoFilter.VISIBLE_TO_USER.traverse(current) != NodeInfoFilter.Traversal.CONTINUE;
+            if (currentEntry.skipped)
+                continue;
+
+            for (int c = 0; c < current.getChildCount(); ++c) {
+                AccessibilityNodeInfo child = current.getChild(c);
+                if (child == null)
+                    continue;
+
+                // The view may have been moved here from a part of the tree we haven't updated
+                Entry stale = entries.get(child);
+                if (stale != null)
+                    detach(stale);
+
+                // The child is obtained for this set only, so it is used as the key directly
+                Entry childEntry = new Entry(child, currentEntry);
+                entries.put(childEntry.key, childEntry);
+                currentEntry.children.add(childEntry);
+                nodeInfos.add(child);
+                nodeEntries.add(childEntry);
+            }
+        }
+    }
+
+    /**
+     * Looks for the closest ancestor of the given node info that is known to the set
+     * @param nodeInfo    Node info not known to the set
+     * @return Entry of the ancestor if its subtree has been skipped, null otherwise
+     */
+    private Entry findSkippedAncestor(AccessibilityNodeInfo nodeInfo) {
+        AccessibilityNodeInfo ancestor = nodeInfo;
+        for (int i = 0; i < MAX_ANCESTOR_LOOKUPS; ++i) {
+            ancestor = NodeInfoScope.track(ancestor.getParent());
+            if (ancestor == null)
+                return null;
+
+            Entry entry = entries.get(ancestor);
+            if (entry != null)
+                return entry.skipped ? entry : null;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the given entry and its subtree from the set
+     */
+    private void detach(Entry entry) {
+        if (entry.parent != null)
+            entry.parent.children.remove(entry);
+        entry.parent = null;
+        removeDescendants(entry);
+        removeID(entry);
+        entries.remove(entry.key);
+        entry.key.recycle();
+    }
+
+    /**
+     * Removes all descendants of the given entry from the set
+     */
+    private void removeDescendants(Entry entry) {
+        LinkedList<Entry> toRemove = new LinkedList<>(entry.children);
+        entry.children.clear();
+        while (!toRemove.isEmpty()) {
+            Entry current = toRemove.poll();
+            toRemove.addAll(current.children);
+            removeID(current);
+            if (entries.get(current.key) == current)
+                entries.remove(current.key);
+            current.key.recycle();
+        }
+    }
+
+    /**
+     * Sets the int ID of the entry according to the given node info, counting it
+     * if the node info is visible
+     */
+    private void setID(Entry entry, AccessibilityNodeInfo nodeInfo) {
+        if (!nodeInfo.isVisibleToUser())
+            return;
+        int viewId = viewIdTable.lookup(nodeInfo.getViewIdResourceName());
+        if (viewId < 0)
+            return;
+
+        entry.viewId = viewId;
+        if (idCounts[viewId]++ == 0) {
+            visibleIDPositions[viewId] = visibleIDCount;
+            visibleIDs[visibleIDCount++] = viewId;
+            fingerprint += hash(viewId);
+        }
+    }
+
+    /**
+     * Uncounts the int ID of the given entry, if any
+     */
+    private void removeID(Entry entry) {
+        int viewId = entry.viewId;
+        if (viewId < 0)
+            return;
+
+        if (--idCounts[viewId] == 0) {
+            // Move the last visible int ID into the gap
+            int position = visibleIDPositions[viewId];
+            int last = visibleIDs[--visibleIDCount];
+            visibleIDs[position] = last;
+            visibleIDPositions[last] = position;
+            fingerprint -= hash(viewId);
+        }
+        entry.viewId = -1;
+    }
+
+    /**
+     * Hash of an int ID, with all bits depending on all bits of the int ID (finalizer of MurmurHash3).
+     * As the fingerprint is a sum of these, it is independent of the order int IDs appear in and
+     * can be updated when one disappears.
+     */
+    private static long hash(int id) {
+        long hash = (id + 1) * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,63 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.core.detection;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+
+/**
+ * Lazily fetches the root node info of the active window. Fetching the root is a binder call,
+ * so it is only done when first requested, and at most once per instance.
+ */
+public abstract class RootNodeInfoProvider {
+    /** Provider that never fetches anything */
+    public static final RootNodeInfoProvider NONE = new RootNodeInfoProvider() {
+        @Override
+        protected AccessibilityNodeInfo fetch() {
+            return null;
+        }
+    };
+
+    /** Root node info, once fetched */
+    private AccessibilityNodeInfo rootNodeInfo;
+    /** Whether fetch() has been called */
+    private boolean fetched;
+
+    /**
+     * Returns the root node info, fetching it on the first call
+     * @return The root node info, or null if not available
+     */
+    public AccessibilityNodeInfo get() {
+        if (!fetched) {
+            rootNodeInfo = fetch();
+            fetched = true;
+        }
+        return rootNodeInfo;
+    }
+
+    /** Indicates whether the root node info has been fetched already */
+    public boolean isFetched() {
+        return fetched;
+    }
+
+    /**
+     * Actually fetches the root node info
+     * @return The root node info, or null if not available
+     */
+    protected abstract AccessibilityNodeInfo fetch();
+}
@@ -0,0 +1,307 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.core.detection;
+
+import android.graphics.Rect;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import simonlang.coastdove.core.utility.ParallelChildFetcher;
+
+/**
+ * In-memory copy of a tree of AccessibilityNodeInfos, taken once per accessibility event.
+ * Every call to {@link AccessibilityNodeInfo#getChild(int)} is a binder round trip, so the
+ * live tree is walked exactly once and all checks of the event read from this snapshot.
+ * The nodes are stored in a {@link FlatViewTree}, in breadth-first order.
+ * The node infos obtained while walking the tree are tracked in the current {@link NodeInfoScope}.
+ * <p>
+ * Nodes are also indexed by the top left corner of their bounds in screen, in a grid of
+ * {@link #CELL_SIZE} pixels, so looking up a node by its bounds only compares the few nodes in
+ * one cell. Likewise, nodes are indexed by their android ID (resource name), so looking up the
+ * first node whose android ID ends with a given suffix needs no walk of the tree.
+ * A snapshot is immutable once captured and may be shared between threads.
+ */
+public class ScreenSnapshot {
+    /** Width and height of a cell of the spatial index, in pixels */
+    private static final int CELL_SIZE = 128;
+
+    /** Provides the children of node infos, to fetch them with a {@link ParallelChildFetcher} */
+    public static final ParallelChildFetcher.ChildSource<AccessibilityNodeInfo> NODE_INFO_CHILDREN =
+            new ParallelChildFetcher.ChildSource<AccessibilityNodeInfo>() {
+                @Override
+                public int getChildCount(AccessibilityNodeInfo node) {
+                    return node.getChildCount();
+                }
+
+                @Override
+                public AccessibilityNodeInfo getChild(AccessibilityNodeInfo node, int index) {
+                    return node.getChild(index);
+                }
+            };
+
+    /**
+     * Walks the tree starting at the given node info once and copies it
+     * @param rootNodeInfo    Node info to treat as the root, may be null
+     * @return Snapshot of the tree, empty if rootNodeInfo is null
+     */
+    public static ScreenSnapshot capture(AccessibilityNodeInfo rootNodeInfo) {
+        return capture(rootNodeInfo, null);
+    }
+
+    /**
+     * Walks the tree starting at the given node info once and copies it, fetching the children
+     * of wide nodes in parallel
+     * @param rootNodeInfo    Node info to treat as the root, may be null
+     * @param fetcher         Fetches the children (of {@link #NODE_INFO_CHILDREN}), or null to
+     *                        fetch all of them on the calling thread
+     * @return Snapshot of the tree, empty if rootNodeInfo is null
+     */
+    public static ScreenSnapshot capture(AccessibilityNodeInfo rootNodeInfo,
+                                         ParallelChildFetcher<AccessibilityNodeInfo> fetcher) {
+        return capture(rootNodeInfo, fetcher, Deadline.NONE);
+    }
+
+    /**
+     * Walks the tree starting at the given node info once and copies it, until the deadline
+     * expires, see {@link FlatViewTree#capture(AccessibilityNodeInfo, ParallelChildFetcher, Deadline)}
+     * @param rootNodeInfo    Node info to treat as the root, may be null
+     * @param fetcher         Fetches the children (of {@link #NODE_INFO_CHILDREN}), or null to
+     *                        fetch all of them on the calling thread
+     * @param deadline        Time at which to stop walking the tree
+     * @return Snapshot of the tree, empty if rootNodeInfo is null
+     */
+    public static ScreenSnapshot capture(AccessibilityNodeInfo rootNodeInfo,
+                                         ParallelChildFetcher<AccessibilityNodeInfo> fetcher, Deadline deadline) {
+        ScreenSnapshot result = new ScreenSnapshot(rootNodeInfo == null ? -1 : rootNodeInfo.getWindowId(),
+                FlatViewTree.capture(rootNodeInfo, fetcher, deadline));
+        result.buildIndex();
+        result.buildResourceIndex();
+        return result;
+    }
+
+    /** All nodes, in breadth-first order. The root (if any) is at index 0. */
+    private final FlatViewTree tree;
+    /** Window the snapshot was taken of, -1 if empty */
+    private final int windowId;
+
+    /** Number of columns of the spatial index */
+    private int columns;
+    /** Number of rows of the spatial index */
+    private int rows;
+    /** Start of each cell's node indices in cellNodes; cell i spans cellStart[i] to cellStart[i + 1] */
+    private int[] cellStart;
+    /** Node indices of all cells, ascending within each cell */
+    private int[] cellNodes;
+
+    /** Distinct android IDs of all nodes, each reversed, in ascending order, for suffix lookups */
+    private String[] reversedResourceNames;
+    /** Index of the first node with each android ID, parallel to reversedResourceNames */
+    private int[] resourceFirstNodes;
+
+    private ScreenSnapshot(int windowId, FlatViewTree tree) {
+        this.tree = tree;
+        this.windowId = windowId;
+        this.columns = 0;
+        this.rows = 0;
+        this.cellStart = new int[1];
+        this.cellNodes = new int[0];
+        this.reversedResourceNames = new String[0];
+        this.resourceFirstNodes = new int[0];
+    }
+
+    /**
+     * Builds the spatial index, covering the root's bounds. Nodes outside of the root's bounds
+     * are put into the closest cell.
+     */
+    private void buildIndex() {
+        if (tree.isEmpty())
+            return;
+
+        columns = Math.max(1, tree.getScreenRight(0) / CELL_SIZE + 1);
+        rows = Math.max(1, tree.getScreenBottom(0) / CELL_SIZE + 1);
+
+        // Count nodes per cell, then fill in the node indices (counting sort)
+        int[] cells = new int[tree.size()];
+        cellStart = new int[columns * rows + 1];
+        for (int i = 0; i < tree.size(); ++i) {
+            cells[i] = cellOf(tree.getScreenLeft(i), tree.getScreenTop(i));
+            ++cellStart[cells[i] + 1];
+        }
+        for (int c = 0; c < columns * rows; ++c)
+            cellStart[c + 1] += cellStart[c];
+        cellNodes = new int[tree.size()];
+        int[] fill = new int[columns * rows];
+        for (int i = 0; i < tree.size(); ++i)
+            cellNodes[cellStart[cells[i]] + fill[cells[i]]++] = i;
+    }
+
+    /**
+     * Builds the index of android IDs
+     */
+    private void buildResourceIndex() {
+        // Nodes are visited breadth-first, so the first index put for each name is the lowest
+        Map<String, Integer> firstNodes = new HashMap<>();
+        for (int i = 0; i < tree.size(); ++i) {
+            String resourceName = tree.getViewIdResourceName(i);
+            if (resourceName != null && !firstNodes.containsKey(resourceName))
+                firstNodes.put(resourceName, i);
+        }
+
+        String[] reversed = new String[firstNodes.size()];
+        int r = 0;
+        for (String resourceName : firstNodes.keySet())
+            reversed[r++] = reverse(resourceName);
+        Arrays.sort(reversed);
+        int[] first = new int[reversed.length];
+        for (int i = 0; i < reversed.length; ++i)
+            first[i] = firstNodes.get(reverse(reversed[i]));
+
+        reversedResourceNames = reversed;
+        resourceFirstNodes = first;
+    }
+
+    /**
+     * Cell of the spatial index containing the given top left corner
+     */
+    private int cellOf(int left, int top) {
+        int column = Math.min(columns - 1, Math.max(0, left / CELL_SIZE));
+        int row = Math.min(rows - 1, Math.max(0, top / CELL_SIZE));
+        return row * columns + column;
+    }
+
+    /** Window the snapshot was taken of, -1 if empty */
+    public int getWindowId() {
+        return windowId;
+    }
+
+    /** All nodes of this snapshot, in breadth-first order */
+    public FlatViewTree getTree() {
+        return tree;
+    }
+
+    /** Indicates whether the whole tree was copied before the deadline of the capture expired */
+    public boolean isComplete() {
+        return tree.isComplete();
+    }
+
+    /** Number of nodes in this snapshot */
+    public int size() {
+        return tree.size();
+    }
+
+    /** Indicates whether this snapshot contains no nodes at all */
+    public boolean isEmpty() {
+        return tree.isEmpty();
+    }
+
+    /**
+     * Finds the first node (breadth-first) with the given bounds and class name, using the
+     * spatial index
+     * @param boundsInParent    Expected bounds in parent
+     * @param boundsInScreen    Expected bounds in screen
+     * @param className         Expected class name, any class name if null
+     * @return Index of the node found, or -1 if there is none
+     */
+    public int findByBounds(Rect boundsInParent, Rect boundsInScreen, String className) {
+        if (tree.isEmpty())
+            return -1;
+
+        int cell = cellOf(boundsInScreen.left, boundsInScreen.top);
+        for (int k = cellStart[cell]; k < cellStart[cell + 1]; ++k) {
+            int i = cellNodes[k];
+            if (matches(i, boundsInParent, boundsInScreen, className))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the first node (breadth-first) whose android ID ends with the given suffix, using
+     * the index of android IDs
+     * @param suffix    Suffix of the android ID, e.g. "id/name" or the full resource name
+     * @return Index of the node found, or -1 if there is none
+     */
+    public int findByResourceSuffix(String suffix) {
+        // All android IDs ending with the suffix start with the reversed suffix once reversed,
+        // so they are adjacent in the sorted array
+        String reversedSuffix = reverse(suffix);
+        int k = Arrays.binarySearch(reversedResourceNames, reversedSuffix);
+        if (k < 0)
+            k = -k - 1;
+
+        int result = -1;
+        for (; k < reversedResourceNames.length && reversedResourceNames[k].startsWith(reversedSuffix); ++k) {
+            if (result < 0 || resourceFirstNodes[k] < result)
+                result = resourceFirstNodes[k];
+        }
+        return result;
+    }
+
+    /**
+     * Retrieves the live node info of the given node, following the path of child positions from
+     * the given root. Fails if the live tree has changed along the way such that the node info found
+     * no longer has the bounds and class name recorded. The node infos obtained are tracked in the
+     * current {@link NodeInfoScope}.
+     * @param rootNodeInfo    Current root of the window the snapshot was taken of
+     * @param index           Index of the node to retrieve
+     * @return The live node info, or null if it cannot be found
+     */
+    public AccessibilityNodeInfo resolve(AccessibilityNodeInfo rootNodeInfo, int index) {
+        if (rootNodeInfo == null || index < 0 || index >= tree.size())
+            return null;
+
+        // Path of child positions from the root, in reverse
+        int depth = 0;
+        for (int i = index; tree.getParent(i) >= 0; i = tree.getParent(i))
+            ++depth;
+        int[] path = new int[depth];
+        for (int i = index, d = depth - 1; d >= 0; i = tree.getParent(i), --d)
+            path[d] = tree.getLiveChildIndex(i);
+
+        AccessibilityNodeInfo nodeInfo = rootNodeInfo;
+        for (int childIndex : path) {
+            if (childIndex >= nodeInfo.getChildCount())
+                return null;
+            nodeInfo = NodeInfoScope.track(nodeInfo.getChild(childIndex));
+            if (nodeInfo == null)
+                return null;
+        }
+
+        Rect boundsInParent = new Rect();
+        nodeInfo.getBoundsInParent(boundsInParent);
+        Rect boundsInScreen = new Rect();
+        nodeInfo.getBoundsInScreen(boundsInScreen);
+        CharSequence className = nodeInfo.getClassName();
+        return matches(index, boundsInParent, boundsInScreen, className == null ? null : className.toString()) ?
+                nodeInfo : null;
+    }
+
+    private boolean matches(int index, Rect boundsInParent, Rect boundsInScreen, String className) {
+        return tree.hasBounds(index, boundsInParent, boundsInScreen) &&
+                (className == null || className.equals(tree.getClassName(index)));
+    }
+
+    private static String reverse(String string) {
+        return new StringBuilder(string).reverse().toString();
+    }
+}
@@ -28,7 +28,7 @@ import android.content.Intent;
 public class ScreenStateReceiver extends BroadcastReceiver {
 
     /** Detectable app for which to record screen state changed */
-    private AppDetectionData currentDetectionData;
+    private volatile AppDetectionData currentDetectionData;
 
     /** Creates a new ScreenStateReceiver with no current detection data */
     public ScreenStateReceiver() {
@@ -0,0 +1,108 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.core.detection;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits on the size and duration of a traversal of a node info tree. Once a limit is reached,
+ * the traversal returns what it has found so far, marked as incomplete. Each budget counts how
+ * often it has been exhausted (overruns), so that budgets can be tuned per app.
+ */
+public class TraversalBudget {
+    /** Budget without any limits */
+    public static final TraversalBudget UNLIMITED = new TraversalBudget(Integer.MAX_VALUE, Integer.MAX_VALUE);
+    /** Default budget for view trees sent to listeners */
+    public static final TraversalBudget DEFAULT = new TraversalBudget(
+            DetectableAppConfig.DEFAULT_VIEW_TREE_MAX_NODES, DetectableAppConfig.DEFAULT_VIEW_TREE_MAX_DEPTH,
+            DetectableAppConfig.DEFAULT_VIEW_TREE_MAX_MILLIS);
+
+    /** Maximum number of nodes to visit */
+    private final int maxNodes;
+    /** Maximum depth to descend to, the start node having depth 0 */
+    private final int maxDepth;
+    /** Maximum duration of a traversal in milliseconds, unlimited if 0 */
+    private final int maxMillis;
+    /** Number of traversals that have exhausted this budget */
+    private final AtomicLong overruns;
+
+    /**
+     * Creates a new budget without a time limit
+     * @param maxNodes    Maximum number of nodes to visit, at least 1
+     * @param maxDepth    Maximum depth to descend to, the start node having depth 0
+     */
+    public TraversalBudget(int maxNodes, int maxDepth) {
+        this(maxNodes, maxDepth, 0);
+    }
+
+    /**
+     * Creates a new budget
+     * @param maxNodes     Maximum number of nodes to visit, at least 1
+     * @param maxDepth     Maximum depth to descend to, the start node having depth 0
+     * @param maxMillis    Maximum duration of a traversal in milliseconds, unlimited if 0
+     */
+    public TraversalBudget(int maxNodes, int maxDepth, int maxMillis) {
+        if (maxNodes < 1 || maxDepth < 0 || maxMillis < 0)
+            throw new IllegalArgumentException("Invalid budget: " + maxNodes + " nodes, depth " + maxDepth +
+                    ", " + maxMillis + " ms");
+        this.maxNodes = maxNodes;
+        this.maxDepth = maxDepth;
+        this.maxMillis = maxMillis;
+        this.overruns = new AtomicLong(0);
+    }
+
+    /**
+     * Creates a budget limiting the duration of traversals only
+     * @param maxMillis    Maximum duration of a traversal in milliseconds, unlimited if 0
+     */
+    public static TraversalBudget ofMillis(int maxMillis) {
+        return new TraversalBudget(Integer.MAX_VALUE, Integer.MAX_VALUE, maxMillis);
+    }
+
+    /** Maximum number of nodes to visit */
+    public int getMaxNodes() {
+        return maxNodes;
+    }
+
+    /** Maximum depth to descend to, the start node having depth 0 */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /** Maximum duration of a traversal in milliseconds, unlimited if 0 */
+    public int getMaxMillis() {
+        return maxMillis;
+    }
+
+    /** Returns the deadline of a traversal starting now */
+    public Deadline startDeadline() {
+        return Deadline.after(maxMillis);
+    }
+
+    /** Counts a traversal that has exhausted this budget */
+    public void recordOverrun() {
+        overruns.incrementAndGet();
+    }
+
+    /** Number of traversals that have exhausted this budget */
+    public long getOverrunCount() {
+        return overruns.get();
+    }
+}
@@ -0,0 +1,488 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.core.detection;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import simonlang.coastdove.lib.CollatorWrapper;
+
+/**
+ * Compiled index of the android IDs used to identify the layouts of an app. Android IDs are
+ * interned as dense ints (0 to size() - 1), and the layouts as ordinals (0 to getLayoutCount() - 1),
+ * in the order layouts are sent to listeners. The int ID of an android ID is found by a minimal
+ * perfect hash (hash and displace): the hash of the android ID picks a bucket, and the bucket's
+ * displacement picks the int ID, so each lookup compares exactly one candidate. Raw resource names
+ * (e.g. "package:id/name") are looked up directly, without stripping the package prefix first,
+ * so looking up an android ID allocates nothing.
+ * <p>
+ * Layouts without a unique android ID are identified by sets of android IDs (identifiers, see
+ * {@link LayoutIdentification}), which are compiled into flat arrays. Each identifier is anchored
+ * at its first android ID, so only the identifiers of android IDs on the screen need to be checked.
+ * <p>
+ * If the android IDs of all layouts are given, the full set of each layout is packed into a bitset as
+ * well, so that layouts can be scored by how much of them is on the screen (see {@link LayoutSimilarity}).
+ * Bit positions are handed out layout by layout, so the android IDs of one layout fall into a few
+ * neighboring words; only the non-zero words of each layout are stored, along with their indices.
+ * Indexes compiled without these sets (e.g. deserialized from older detection data) have none.
+ * The index is compiled once, when the app's detection data is set up, and serialized along with it.
+ * Immutable and thread-safe.
+ */
+public class ViewIdTable implements Serializable {
+    private static final long serialVersionUID = 7043296850604997310L;
+
+    /** Average number of android IDs per bucket */
+    private static final int BUCKET_SIZE = 4;
+    /** Odd multipliers of the string hash, tried in turn until a perfect hash is found */
+    private static final long[] MULTIPLIERS = { 0x100000001B3L, 0xC6A4A7935BD1E995L,
+            0x2545F4914F6CDD1DL, 0x5DEECE66DL };
+    /** Added to the hash once per displacement step */
+    private static final long DISPLACEMENT_STEP = 0x9E3779B97F4A7C15L;
+    /** Mixed into the hash to pick the bucket, so that buckets and int IDs are independent */
+    private static final long BUCKET_SALT = 0x632BE59BD9B4E019L;
+
+    /** Prefix of all resource names of the app, "package:" */
+    private final String idPrefix;
+    /** Android IDs (without package prefix), by int ID */
+    private final String[] ids;
+    /** Layout ordinal of each int ID, -1 if the android ID only occurs in identifiers */
+    private final int[] idLayouts;
+    /** Names of all layouts, by ordinal, sorted as layouts are sent to listeners */
+    private final String[] layouts;
+    /** Multiplier of the string hash */
+    private final long multiplier;
+    /** Displacement of each bucket */
+    private final int[] displacements;
+    /** Identifiers anchored at int ID i are anchorStarts[i] to anchorStarts[i + 1] - 1 */
+    private final int[] anchorStarts;
+    /** Members of identifier i are memberIds[memberStarts[i]] to memberIds[memberStarts[i + 1] - 1] */
+    private final int[] memberStarts;
+    /** Int IDs of the members of all identifiers */
+    private final int[] memberIds;
+    /** Layout ordinal of each identifier */
+    private final int[] identifierLayouts;
+    /** Bit position of each int ID in the packed android IDs of layouts, -1 if no layout contains it */
+    private final int[] idBits;
+    /** Number of words of a bitset over all bit positions */
+    private final int bitWordCount;
+    /** Non-zero words of layout l are layoutWords[layoutWordStarts[l]] to layoutWords[layoutWordStarts[l + 1] - 1] */
+    private final int[] layoutWordStarts;
+    /** Index of each non-zero word within a bitset over all bit positions */
+    private final int[] layoutWordIndices;
+    /** Non-zero words of the packed android IDs of all layouts */
+    private final long[] layoutWords;
+    /** Number of android IDs of each layout */
+    private final int[] layoutIdCounts;
+
+    /**
+     * Compiles a new index
+     * @param appPackageName    Package name of the app
+     * @param idLayoutMap       Map (android ID -> layout) to identify layouts
+     */
+    public ViewIdTable(String appPackageName, Map<String, String> idLayoutMap) {
+        this(appPackageName, idLayoutMap, Collections.<LayoutIdentification>emptyList());
+    }
+
+    /**
+     * Compiles a new index
+     * @param appPackageName     Package name of the app
+     * @param idLayoutMap        Map (android ID -> layout) to identify layouts by unique android IDs
+     * @param identifications    Identifications of layouts without a unique android ID
+     */
+    public ViewIdTable(String appPackageName, Map<String, String> idLayoutMap,
+                       Collection<LayoutIdentification> identifications) {
+        this(appPackageName, idLayoutMap, identifications, null);
+    }
+
+    /**
+     * Compiles a new index
+     * @param appPackageName     Package name of the app
+     * @param idLayoutMap        Map (android ID -> layout) to identify layouts by unique android IDs
+     * @param identifications    Identifications of layouts without a unique android ID
+     * @param layoutIDSets       Map (layout -> android IDs contained in it) of all layouts of the app,
+     *                           to be packed for scoring; may be null
+     */
+    public ViewIdTable(String appPackageName, Map<String, String> idLayoutMap,
+                       Collection<LayoutIdentification> identifications,
+                       Map<String, Set<String>> layoutIDSets) {
+        this.idPrefix = appPackageName + ":";
+
+        // Android IDs of identifiers and layouts are interned as well, without a layout of their own
+        Map<String, String> allIds = new LinkedHashMap<>(idLayoutMap);
+        Set<String> allLayouts = new HashSet<>(idLayoutMap.values());
+        if (layoutIDSets != null) {
+            allLayouts.addAll(layoutIDSets.keySet());
+            for (Set<String> layoutIDs : layoutIDSets.values()) {
+                for (String id : layoutIDs) {
+                    if (!allIds.containsKey(id))
+                        allIds.put(id, null);
+                }
+            }
+        }
+        for (LayoutIdentification identification : identifications) {
+            for (Set<String> identifier : identification.getLayoutIdentifiers()) {
+                allLayouts.add(identification.getName());
+                for (String id : identifier) {
+                    if (!allIds.containsKey(id))
+                        allIds.put(id, null);
+                }
+            }
+        }
+
+        List<String> layoutNames = new ArrayList<>(allLayouts);
+        Collections.sort(layoutNames, new CollatorWrapper());
+        this.layouts = layoutNames.toArray(new String[layoutNames.size()]);
+        Map<String, Integer> layoutOrdinals = new HashMap<>();
+        for (int i = 0; i < layouts.length; ++i)
+            layoutOrdinals.put(layouts[i], i);
+
+        String[] keys = allIds.keySet().toArray(new String[allIds.size()]);
+        int bucketCount = Math.max(1, (keys.length + BUCKET_SIZE - 1) / BUCKET_SIZE);
+        int[] keyIds = new int[keys.length];
+        int[] bucketDisplacements = null;
+        long hashMultiplier = 0;
+        for (int m = 0; m < MULTIPLIERS.length && bucketDisplacements == null; ++m) {
+            hashMultiplier = MULTIPLIERS[m];
+            bucketDisplacements = findDisplacements(keys, hashMultiplier, bucketCount, keyIds);
+        }
+        if (bucketDisplacements == null)
+            throw new IllegalStateException("Cannot compile index of " + keys.length + " android IDs");
+        this.multiplier = hashMultiplier;
+        this.displacements = bucketDisplacements;
+
+        this.ids = new String[keys.length];
+        this.idLayouts = new int[keys.length];
+        Map<String, Integer> idsByName = new HashMap<>();
+        for (int k = 0; k < keys.length; ++k) {
+            String layout = allIds.get(keys[k]);
+            ids[keyIds[k]] = keys[k];
+            idLayouts[keyIds[k]] = layout == null ? -1 : layoutOrdinals.get(layout);
+            idsByName.put(keys[k], keyIds[k]);
+        }
+
+        // Identifiers grouped by anchor (counting sort)
+        List<int[]> members = new ArrayList<>();
+        List<Integer> layoutsOfIdentifiers = new ArrayList<>();
+        for (LayoutIdentification identification : identifications) {
+            for (Set<String> identifier : identification.getLayoutIdentifiers()) {
+                int[] memberIds = new int[identifier.size()];
+                int m = 0;
+                for (String id : identifier)
+                    memberIds[m++] = idsByName.get(id);
+                members.add(memberIds);
+                layoutsOfIdentifiers.add(layoutOrdinals.get(identification.getName()));
+            }
+        }
+        this.anchorStarts = new int[keys.length + 1];
+        int memberCount = 0;
+        for (int[] memberIds : members) {
+            ++anchorStarts[memberIds[0] + 1];
+            memberCount += memberIds.length;
+        }
+        for (int id = 0; id < keys.length; ++id)
+            anchorStarts[id + 1] += anchorStarts[id];
+        this.memberStarts = new int[members.size() + 1];
+        this.memberIds = new int[memberCount];
+        this.identifierLayouts = new int[members.size()];
+        int[][] sortedMembers = new int[members.size()][];
+        int[] fill = Arrays.copyOf(anchorStarts, keys.length);
+        for (int i = 0; i < members.size(); ++i) {
+            int position = fill[members.get(i)[0]]++;
+            sortedMembers[position] = members.get(i);
+            identifierLayouts[position] = layoutsOfIdentifiers.get(i);
+        }
+        for (int i = 0; i < sortedMembers.length; ++i) {
+            memberStarts[i + 1] = memberStarts[i] + sortedMembers[i].length;
+            System.arraycopy(sortedMembers[i], 0, memberIds, memberStarts[i], sortedMembers[i].length);
+        }
+
+        if (layoutIDSets == null) {
+            this.idBits = null;
+            this.bitWordCount = 0;
+            this.layoutWordStarts = null;
+            this.layoutWordIndices = null;
+            this.layoutWords = null;
+            this.layoutIdCounts = null;
+            return;
+        }
+
+        // Bit positions, layout by layout
+        this.idBits = new int[keys.length];
+        Arrays.fill(idBits, -1);
+        int bitCount = 0;
+        int totalIdCount = 0;
+        for (String layout : layouts) {
+            Set<String> layoutIDs = layoutIDSets.get(layout);
+            if (layoutIDs == null)
+                continue;
+            for (String id : layoutIDs) {
+                int viewId = idsByName.get(id);
+                if (idBits[viewId] < 0)
+                    idBits[viewId] = bitCount++;
+            }
+            totalIdCount += layoutIDs.size();
+        }
+        this.bitWordCount = (bitCount + 63) >>> 6;
+
+        // Non-zero words of each layout; there are at most as many as android IDs
+        this.layoutWordStarts = new int[layouts.length + 1];
+        this.layoutIdCounts = new int[layouts.length];
+        int[] wordIndices = new int[totalIdCount];
+        long[] words = new long[totalIdCount];
+        int wordCount = 0;
+        for (int layout = 0; layout < layouts.length; ++layout) {
+            Set<String> layoutIDs = layoutIDSets.get(layouts[layout]);
+            int[] bits = new int[layoutIDs == null ? 0 : layoutIDs.size()];
+            int b = 0;
+            if (layoutIDs != null) {
+                for (String id : layoutIDs)
+                    bits[b++] = idBits[idsByName.get(id)];
+            }
+            Arrays.sort(bits);
+            for (int bit : bits) {
+                int wordIndex = bit >>> 6;
+                if (wordCount == layoutWordStarts[layout] || wordIndices[wordCount - 1] != wordIndex) {
+                    wordIndices[wordCount] = wordIndex;
+                    words[wordCount++] = 0;
+                }
+                words[wordCount - 1] |= 1L << bit;
+            }
+            layoutIdCounts[layout] = bits.length;
+            layoutWordStarts[layout + 1] = wordCount;
+        }
+        this.layoutWordIndices = Arrays.copyOf(wordIndices, wordCount);
+        this.layoutWords = Arrays.copyOf(words, wordCount);
+    }
+
+    /**
+     * Looks up the int ID of the given resource name
+     * @param resourceName    Resource name of a view, with or without the app's package prefix
+     * @return The int ID, or -1 if the android ID is not used to identify layouts
+     */
+    public int lookup(String resourceName) {
+        if (resourceName == null || ids.length == 0)
+            return -1;
+
+        int offset = resourceName.startsWith(idPrefix) ? idPrefix.length() : 0;
+        long hash = hash(resourceName, offset, multiplier);
+        int id = idOf(hash, displacements[bucketOf(hash, displacements.length)], ids.length);
+        String candidate = ids[id];
+        int length = resourceName.length() - offset;
+        return candidate.length() == length && resourceName.regionMatches(offset, candidate, 0, length) ? id : -1;
+    }
+
+    /** Number of android IDs */
+    public int size() {
+        return ids.length;
+    }
+
+    /** Android ID (without package prefix) of the given int ID */
+    public String getId(int id) {
+        return ids[id];
+    }
+
+    /** Ordinal of the layout identified by the given int ID, -1 if it only occurs in identifiers */
+    public int getLayout(int id) {
+        return idLayouts[id];
+    }
+
+    /** First identifier anchored at the given int ID */
+    public int getIdentifierStart(int id) {
+        return anchorStarts[id];
+    }
+
+    /** End (exclusive) of the identifiers anchored at the given int ID */
+    public int getIdentifierEnd(int id) {
+        return anchorStarts[id + 1];
+    }
+
+    /** Number of int IDs of the given identifier */
+    public int getIdentifierSize(int identifier) {
+        return memberStarts[identifier + 1] - memberStarts[identifier];
+    }
+
+    /**
+     * Returns an int ID of the given identifier
+     * @param identifier    Identifier
+     * @param k             From 0 to getIdentifierSize(identifier) - 1; 0 is the anchor
+     */
+    public int getIdentifierMember(int identifier, int k) {
+        return memberIds[memberStarts[identifier] + k];
+    }
+
+    /** Ordinal of the layout identified by the given identifier */
+    public int getIdentifierLayout(int identifier) {
+        return identifierLayouts[identifier];
+    }
+
+    /** Number of layouts */
+    public int getLayoutCount() {
+        return layouts.length;
+    }
+
+    /** Name of the layout with the given ordinal */
+    public String getLayoutName(int layout) {
+        return layouts[layout];
+    }
+
+    /** Indicates whether the android IDs of all layouts have been packed, see {@link #countContained} */
+    public boolean hasLayoutIDSets() {
+        return layoutWordStarts != null;
+    }
+
+    /** Number of words of a bitset over the bit positions of all android IDs of layouts */
+    public int getBitWordCount() {
+        return bitWordCount;
+    }
+
+    /** Bit position of the given int ID, -1 if no layout contains it or the android IDs have not been packed */
+    public int getIdBit(int id) {
+        return idBits != null ? idBits[id] : -1;
+    }
+
+    /** Number of android IDs of the given layout, 0 if the android IDs have not been packed */
+    public int getLayoutIdCount(int layout) {
+        return layoutIdCounts != null ? layoutIdCounts[layout] : 0;
+    }
+
+    /**
+     * Counts the android IDs of the given layout whose bits are set in the given bitset.
+     * Requires {@link #hasLayoutIDSets()}.
+     * @param layout    Layout ordinal
+     * @param bitset    Bitset over the bit positions (see {@link #getIdBit(int)}), with
+     *                  getBitWordCount() words
+     */
+    public int countContained(int layout, long[] bitset) {
+        int count = 0;
+        for (int w = layoutWordStarts[layout]; w < layoutWordStarts[layout + 1]; ++w)
+            count += Long.bitCount(layoutWords[w] & bitset[layoutWordIndices[w]]);
+        return count;
+    }
+
+    /**
+     * Searches a displacement for each bucket such that all keys get distinct int IDs. Buckets
+     * are placed from the largest to the smallest, as the large ones are the hardest to place.
+     * @param keys           Android IDs
+     * @param multiplier     Multiplier of the string hash
+     * @param bucketCount    Number of buckets
+     * @param keyIds         Receives the int ID of each key
+     * @return Displacement of each bucket, or null if no perfect hash was found with this multiplier
+     */
+    private static int[] findDisplacements(String[] keys, long multiplier, int bucketCount, int[] keyIds) {
+        int n = keys.length;
+        long[] hashes = new long[n];
+        int[] bucketSizes = new int[bucketCount];
+        int maxBucketSize = 0;
+        for (int k = 0; k < n; ++k) {
+            hashes[k] = hash(keys[k], 0, multiplier);
+            int size = ++bucketSizes[bucketOf(hashes[k], bucketCount)];
+            maxBucketSize = Math.max(maxBucketSize, size);
+        }
+
+        // Keys grouped by bucket (counting sort); bucket b spans bucketStarts[b] to bucketStarts[b + 1] - 1
+        int[] bucketStarts = new int[bucketCount + 1];
+        for (int b = 0; b < bucketCount; ++b)
+            bucketStarts[b + 1] = bucketStarts[b] + bucketSizes[b];
+        int[] bucketKeys = new int[n];
+        int[] fill = Arrays.copyOf(bucketStarts, bucketCount);
+        for (int k = 0; k < n; ++k)
+            bucketKeys[fill[bucketOf(hashes[k], bucketCount)]++] = k;
+
+        int[] result = new int[bucketCount];
+        boolean[] taken = new boolean[n];
+        int maxDisplacement = Math.max(1024, n * 16);
+        for (int size = maxBucketSize; size > 0; --size) {
+            for (int b = 0; b < bucketCount; ++b) {
+                if (bucketSizes[b] != size)
+                    continue;
+
+                int displacement = 0;
+                while (!tryPlace(hashes, bucketKeys, bucketStarts[b], bucketStarts[b + 1], displacement, taken, keyIds)) {
+                    if (++displacement == maxDisplacement)
+                        return null;
+                }
+                result[b] = displacement;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tries to assign int IDs to the keys of one bucket using the given displacement
+     * @return True if all int IDs were free and distinct, in which case they are taken
+     */
+    private static boolean tryPlace(long[] hashes, int[] bucketKeys, int start, int end, int displacement,
+                                    boolean[] taken, int[] keyIds) {
+        int n = taken.length;
+        for (int i = start; i < end; ++i) {
+            int id = idOf(hashes[bucketKeys[i]], displacement, n);
+            if (taken[id]) {
+                // Undo the int IDs taken for this bucket so far
+                for (int j = start; j < i; ++j)
+                    taken[keyIds[bucketKeys[j]]] = false;
+                return false;
+            }
+            taken[id] = true;
+            keyIds[bucketKeys[i]] = id;
+        }
+        return true;
+    }
+
+    /** Bucket of the given hash */
+    private static int bucketOf(long hash, int bucketCount) {
+        return (int)((mix(hash ^ BUCKET_SALT) >>> 1) % bucketCount);
+    }
+
+    /** Int ID of the given hash, given its bucket's displacement */
+    private static int idOf(long hash, int displacement, int n) {
+        return (int)((mix(hash + displacement * DISPLACEMENT_STEP) >>> 1) % n);
+    }
+
+    /**
+     * Polynomial hash of the given string from the given offset on
+     */
+    private static long hash(String string, int offset, long multiplier) {
+        long hash = 0;
+        for (int i = offset; i < string.length(); ++i)
+            hash = hash * multiplier + string.charAt(i);
+        return hash;
+    }
+
+    /**
+     * Spreads all bits of the given hash over all others (finalizer of MurmurHash3)
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
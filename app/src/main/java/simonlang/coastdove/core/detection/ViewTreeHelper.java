@@ -5,10 +5,8 @@ import android.os.Build;
 import android.view.accessibility.AccessibilityNodeInfo;
 
 import java.util.ArrayList;
-import java.util.EmptyStackException;
+import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.List;
-import java.util.Stack;
 
 import simonlang.coastdove.lib.ViewTreeNode;
 
@@ -17,73 +15,123 @@ import simonlang.coastdove.lib.ViewTreeNode;
  */
 public abstract class ViewTreeHelper {
     /**
-     * Creates a ViewTreeNode that represents an entire subtree of AccessibilityNodeInfos
+     * Result of building a view tree
+     */
+    public static class Result {
+        /** Root of the view tree, null if there was no node info to start from */
+        private final ViewTreeNode root;
+        /** Number of nodes in the view tree */
+        private final int nodeCount;
+        /** Whether some nodes have been left out due to the budget or its deadline */
+        private final boolean partial;
+
+        private Result(ViewTreeNode root, int nodeCount, boolean partial) {
+            this.root = root;
+            this.nodeCount = nodeCount;
+            this.partial = partial;
+        }
+
+        /** Root of the view tree, null if there was no node info to start from */
+        public ViewTreeNode getRoot() {
+            return root;
+        }
+
+        /** Number of nodes in the view tree */
+        public int getNodeCount() {
+            return nodeCount;
+        }
+
+        /** Whether some nodes have been left out due to the budget or its deadline */
+        public boolean isPartial() {
+            return partial;
+        }
+    }
+
+    /**
+     * Creates a ViewTreeNode that represents an entire subtree of AccessibilityNodeInfos, within the
+     * default budget. The node infos obtained are tracked in the current {@link NodeInfoScope}.
      * @param rootNodeInfo    AccessibilityNodeInfo to start from, i.e., the root of the subtree
      * @param replacementData    to replace private data
      * @return Copied representation of an AccessibilityNodeInfo subtree
      */
     public static ViewTreeNode fromAccessibilityNodeInfo(AccessibilityNodeInfo rootNodeInfo,
                                                          ReplacementData replacementData) {
-        Stack<AccessibilityNodeInfo> nodeInfos = new Stack<>();
+        return build(rootNodeInfo, replacementData, TraversalBudget.DEFAULT).getRoot();
+    }
+
+    /**
+     * Creates a ViewTreeNode that represents a subtree of AccessibilityNodeInfos, breadth-first.
+     * Once the budget is exhausted or its time is up, the remaining node infos are left out, and
+     * the (valid) tree built so far is returned, flagged as partial, and counted as an overrun of
+     * the budget. The node infos obtained are tracked in the current {@link NodeInfoScope}.
+     * @param rootNodeInfo       AccessibilityNodeInfo to start from, i.e., the root of the subtree
+     * @param replacementData    to replace private data
+     * @param budget             Maximum number of nodes, depth and duration
+     * @return Copied representation of an AccessibilityNodeInfo subtree
+     */
+    public static Result build(AccessibilityNodeInfo rootNodeInfo, ReplacementData replacementData,
+                               TraversalBudget budget) {
         if (rootNodeInfo == null)
-            return null;
-        nodeInfos.push(rootNodeInfo);
-        Stack<ViewTreeNode> viewTreeNodes = new Stack<>();
-
-        // Traverse tree with depth-first search
-        AccessibilityNodeInfo currentNodeInfo;
-        ViewTreeNode currentViewTreeNode;
-        try {
-            while (!nodeInfos.empty()) {
-                currentNodeInfo = nodeInfos.pop();
-
-                // Have we just finished traversing all children?
-                if (currentNodeInfo == null) {
-                    List<ViewTreeNode> children = new LinkedList<>();
-
-                    // Collect children
-                    currentViewTreeNode = viewTreeNodes.pop();
-                    while (currentViewTreeNode != null) { // until we hit the parent
-                        children.add(currentViewTreeNode);
-                        currentViewTreeNode = viewTreeNodes.pop();
-                    }
-
-                    // Add children to parent, link parent to children
-                    ViewTreeNode parent = viewTreeNodes.peek();
-                    for (ViewTreeNode child : children) {
-                        child.setParent(parent);
-                        parent.getChildren().add(child);
-                    }
-                } else { // or did we just start processing a new node?
-                    int childCount = currentNodeInfo.getChildCount();
-
-                    // Process the current node (without children)
-                    currentViewTreeNode = flatCopy(currentNodeInfo, replacementData);
-
-                    // Add node to stack
-                    viewTreeNodes.add(currentViewTreeNode);
-
-                    if (childCount > 0) {
-                        // Signal that this node has children
-                        nodeInfos.push(null);
-                        viewTreeNodes.push(null);
-                        for (int i = 0; i < childCount; ++i) {
-                            AccessibilityNodeInfo child = currentNodeInfo.getChild(i);
-                            if (child != null)
-                                nodeInfos.push(child);
-                        }
-                    }
+            return new Result(null, 0, false);
+
+        // Parallel arrays, index i in each refers to the same node; they double as the queue
+        int capacity = Math.min(budget.getMaxNodes(), 256);
+        AccessibilityNodeInfo[] nodeInfos = new AccessibilityNodeInfo[capacity];
+        ViewTreeNode[] viewTreeNodes = new ViewTreeNode[capacity];
+        int[] depths = new int[capacity];
+
+        nodeInfos[0] = rootNodeInfo;
+        viewTreeNodes[0] = flatCopy(rootNodeInfo, replacementData);
+        depths[0] = 0;
+        int count = 1;
+        boolean partial = false;
+        Deadline deadline = budget.startDeadline();
+
+        for (int i = 0; i < count; ++i) {
+            if (deadline.hasExpired()) {
+                partial = true;
+                break;
+            }
+            AccessibilityNodeInfo nodeInfo = nodeInfos[i];
+            int childCount = nodeInfo.getChildCount();
+            if (childCount == 0)
+                continue;
+            if (depths[i] >= budget.getMaxDepth() || count >= budget.getMaxNodes()) {
+                partial = true;
+                continue;
+            }
+
+            ViewTreeNode parent = viewTreeNodes[i];
+            for (int c = 0; c < childCount; ++c) {
+                if (count >= budget.getMaxNodes()) {
+                    partial = true;
+                    break;
+                }
+                AccessibilityNodeInfo child = NodeInfoScope.track(nodeInfo.getChild(c));
+                if (child == null)
+                    continue;
+
+                if (count == nodeInfos.length) {
+                    int newCapacity = Math.min(budget.getMaxNodes(), nodeInfos.length * 2);
+                    nodeInfos = Arrays.copyOf(nodeInfos, newCapacity);
+                    viewTreeNodes = Arrays.copyOf(viewTreeNodes, newCapacity);
+                    depths = Arrays.copyOf(depths, newCapacity);
                 }
+                ViewTreeNode childViewTreeNode = flatCopy(child, replacementData);
+                childViewTreeNode.setParent(parent);
+                parent.getChildren().add(childViewTreeNode);
+                nodeInfos[count] = child;
+                viewTreeNodes[count] = childViewTreeNode;
+                depths[count] = depths[i] + 1;
+                ++count;
             }
-        } catch (EmptyStackException e) {
-            // For some reason this sometimes occurs. Can't reproduce reliably.
-            // TODO: investigate.
-            return null;
+            // Node infos already processed are not needed anymore
+            nodeInfos[i] = null;
         }
 
-        // Once the nodeInfo stack is empty, there should be exactly one element
-        // left on the ViewTreeNode stack.
-        return viewTreeNodes.pop();
+        if (partial)
+            budget.recordOverrun();
+        return new Result(viewTreeNodes[0], count, partial);
     }
 
     /**
@@ -98,37 +146,8 @@ public abstract class ViewTreeHelper {
         result.setParent(null);
         result.setChildren(new ArrayList<ViewTreeNode>(nodeInfo.getChildCount()));
 
-        String androidID = nodeInfo.getViewIdResourceName();
-        String text = charSeqToString(nodeInfo.getText());
-        String description = charSeqToString(nodeInfo.getContentDescription());
-        if (replacementData != null && replacementData.hasReplacementRule(androidID)) {
-            ReplacementData.ReplacementRule rule = replacementData.getReplacementRule(androidID);
-            switch (rule.replaceText) {
-                case REPLACE:
-                    result.setText(replacementData.getReplacement(text));
-                    break;
-                case DISCARD:
-                    result.setText("");
-                    break;
-                default:
-                    result.setText(text);
-
-            }
-            switch (rule.replaceDescription) {
-                case REPLACE:
-                    result.setContentDescription(replacementData.getReplacement(description));
-                    break;
-                case DISCARD:
-                    result.setContentDescription("");
-                    break;
-                default:
-                    result.setContentDescription(description);
-            }
-        }
-        else {
-            result.setText(text);
-            result.setContentDescription(description);
-        }
+        setTexts(result, nodeInfo.getViewIdResourceName(), charSeqToString(nodeInfo.getText()),
+                charSeqToString(nodeInfo.getContentDescription()), replacementData);
 
         result.setClassName(charSeqToString(nodeInfo.getClassName()));
         result.setInputType(nodeInfo.getInputType());
@@ -169,6 +188,167 @@ public abstract class ViewTreeHelper {
         return result;
     }
 
+    /**
+     * Creates a ViewTreeNode that represents a subtree of a flat view tree, e.g. of an up-to-date
+     * screen snapshot, so no node infos need to be fetched. Once the budget is exhausted or its time
+     * is up, the remaining nodes are left out, and the (valid) tree built so far is returned, flagged
+     * as partial, and counted as an overrun of the budget.
+     * @param tree               Tree to copy from
+     * @param startIndex         Index of the subtree's root
+     * @param replacementData    to replace private data
+     * @param budget             Maximum number of nodes, depth and duration
+     * @return Copied representation of the subtree
+     */
+    public static Result build(FlatViewTree tree, int startIndex, ReplacementData replacementData,
+                               TraversalBudget budget) {
+        if (startIndex < 0 || startIndex >= tree.size())
+            return new Result(null, 0, false);
+
+        // Parallel arrays, index i in each refers to the same node; they double as the queue
+        int capacity = Math.min(budget.getMaxNodes(), 256);
+        int[] indices = new int[capacity];
+        ViewTreeNode[] viewTreeNodes = new ViewTreeNode[capacity];
+        int[] depths = new int[capacity];
+
+        indices[0] = startIndex;
+        viewTreeNodes[0] = flatCopy(tree, startIndex, replacementData);
+        depths[0] = 0;
+        int count = 1;
+        boolean partial = false;
+        Deadline deadline = budget.startDeadline();
+
+        for (int i = 0; i < count; ++i) {
+            if (deadline.hasExpired()) {
+                partial = true;
+                break;
+            }
+            int childCount = tree.getChildCount(indices[i]);
+            if (childCount == 0)
+                continue;
+            if (depths[i] >= budget.getMaxDepth() || count >= budget.getMaxNodes()) {
+                partial = true;
+                continue;
+            }
+
+            ViewTreeNode parent = viewTreeNodes[i];
+            for (int c = 0; c < childCount; ++c) {
+                if (count >= budget.getMaxNodes()) {
+                    partial = true;
+                    break;
+                }
+                if (count == indices.length) {
+                    int newCapacity = Math.min(budget.getMaxNodes(), indices.length * 2);
+                    indices = Arrays.copyOf(indices, newCapacity);
+                    viewTreeNodes = Arrays.copyOf(viewTreeNodes, newCapacity);
+                    depths = Arrays.copyOf(depths, newCapacity);
+                }
+                int child = tree.getChild(indices[i], c);
+                ViewTreeNode childViewTreeNode = flatCopy(tree, child, replacementData);
+                childViewTreeNode.setParent(parent);
+                parent.getChildren().add(childViewTreeNode);
+                indices[count] = child;
+                viewTreeNodes[count] = childViewTreeNode;
+                depths[count] = depths[i] + 1;
+                ++count;
+            }
+        }
+
+        if (partial)
+            budget.recordOverrun();
+        return new Result(viewTreeNodes[0], count, partial);
+    }
+
+    /**
+     * Copies all required data of a node of a flat view tree into a newly created ViewTreeNode,
+     * omitting parents and children
+     * @param tree               Tree to copy from
+     * @param index              Index of the node
+     * @param replacementData    to replace private data
+     */
+    public static ViewTreeNode flatCopy(FlatViewTree tree, int index, ReplacementData replacementData) {
+        ViewTreeNode result = new ViewTreeNode();
+        result.setParent(null);
+        result.setChildren(new ArrayList<ViewTreeNode>(tree.getChildCount(index)));
+
+        setTexts(result, tree.getViewIdResourceName(index), tree.getText(index),
+                tree.getContentDescription(index), replacementData);
+
+        result.setClassName(tree.getClassName(index));
+        result.setInputType(tree.getInputType(index));
+        result.setTextSelectionStart(tree.getTextSelectionStart(index));
+        result.setTextSelectionEnd(tree.getTextSelectionEnd(index));
+        result.setViewIDResourceName(tree.getViewIdResourceName(index));
+
+        LinkedList<AccessibilityNodeInfo.AccessibilityAction> actions = new LinkedList<>();
+        for (int a = 0; a < tree.getActionCount(index); ++a)
+            actions.add(new AccessibilityNodeInfo.AccessibilityAction(tree.getActionId(index, a),
+                    tree.getActionLabel(index, a)));
+        result.setActionList(actions);
+
+        Rect boundsInScreen = new Rect();
+        tree.getBoundsInScreen(index, boundsInScreen);
+        Rect boundsInParent = new Rect();
+        tree.getBoundsInParent(index, boundsInParent);
+        result.setBoundsInScreen(boundsInScreen);
+        result.setBoundsInParent(boundsInParent);
+
+        AccessibilityNodeInfo.RangeInfo rangeInfo = tree.getRangeInfo(index);
+        result.setRangeInfo(rangeInfo == null ? null : new ViewTreeNode.RangeInfo(rangeInfo));
+
+        int flags = tree.getFlags(index);
+        result.setCheckable((flags & FlatViewTree.FLAG_CHECKABLE) != 0);
+        result.setChecked((flags & FlatViewTree.FLAG_CHECKED) != 0);
+        result.setClickable((flags & FlatViewTree.FLAG_CLICKABLE) != 0);
+        result.setDismissable((flags & FlatViewTree.FLAG_DISMISSABLE) != 0);
+        result.setEditable((flags & FlatViewTree.FLAG_EDITABLE) != 0);
+        result.setEnabled((flags & FlatViewTree.FLAG_ENABLED) != 0);
+        result.setFocusable((flags & FlatViewTree.FLAG_FOCUSABLE) != 0);
+        result.setFocused((flags & FlatViewTree.FLAG_FOCUSED) != 0);
+        result.setLongClickable((flags & FlatViewTree.FLAG_LONG_CLICKABLE) != 0);
+        result.setMultiLine((flags & FlatViewTree.FLAG_MULTI_LINE) != 0);
+        result.setPassword((flags & FlatViewTree.FLAG_PASSWORD) != 0);
+        result.setScrollable((flags & FlatViewTree.FLAG_SCROLLABLE) != 0);
+        result.setSelected((flags & FlatViewTree.FLAG_SELECTED) != 0);
+        result.setVisibleToUser((flags & FlatViewTree.FLAG_VISIBLE_TO_USER) != 0);
+
+        return result;
+    }
+
+    /**
+     * Sets text and content description of the given node, replacing private data as necessary
+     */
+    private static void setTexts(ViewTreeNode result, String androidID, String text, String description,
+                                 ReplacementData replacementData) {
+        if (replacementData != null && replacementData.hasReplacementRule(androidID)) {
+            ReplacementData.ReplacementRule rule = replacementData.getReplacementRule(androidID);
+            switch (rule.replaceText) {
+                case REPLACE:
+                    result.setText(replacementData.getReplacement(text));
+                    break;
+                case DISCARD:
+                    result.setText("");
+                    break;
+                default:
+                    result.setText(text);
+
+            }
+            switch (rule.replaceDescription) {
+                case REPLACE:
+                    result.setContentDescription(replacementData.getReplacement(description));
+                    break;
+                case DISCARD:
+                    result.setContentDescription("");
+                    break;
+                default:
+                    result.setContentDescription(description);
+            }
+        }
+        else {
+            result.setText(text);
+            result.setContentDescription(description);
+        }
+    }
+
     private static String charSeqToString(CharSequence seq) {
         return seq == null ? null : seq.toString();
     }
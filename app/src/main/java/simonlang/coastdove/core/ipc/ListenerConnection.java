@@ -33,14 +33,23 @@ import android.support.annotation.NonNull;
 import android.util.Log;
 import android.view.accessibility.AccessibilityNodeInfo;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
 
 import simonlang.coastdove.core.CoastDoveService;
 import simonlang.coastdove.core.detection.AppDetectionData;
 import simonlang.coastdove.core.detection.NodeInfoDataExtractor;
 import simonlang.coastdove.core.detection.NodeInfoFilter;
+import simonlang.coastdove.core.detection.NodeInfoScope;
 import simonlang.coastdove.core.detection.NodeInfoTraverser;
+import simonlang.coastdove.core.detection.ReplacementData;
+import simonlang.coastdove.core.detection.ScreenSnapshot;
+import simonlang.coastdove.core.detection.TraversalBudget;
 import simonlang.coastdove.core.detection.ViewTreeHelper;
 import simonlang.coastdove.core.utility.FileHelper;
 import simonlang.coastdove.lib.AppMetaInformation;
@@ -54,12 +63,116 @@ import simonlang.coastdove.lib.ViewTreeNode;
  * Service connection to Coast Dove listeners
  */
 public class ListenerConnection implements ServiceConnection {
+    /** Key indicating whether the view tree sent has been truncated due to its size (boolean) */
+    public static final String DATA_VIEW_TREE_PARTIAL = "coastdove.viewTreePartial";
+
+    // View tree deltas are an extension of the listener protocol that coastdovelib does not know
+    // yet: listeners can only request them (and must apply them, see ViewTreeDiffer) once a lib
+    // release mirrors the constants below and decodes MSG_VIEW_TREE_DELTA. Until then, listeners
+    // never pass DATA_VIEW_TREE_DELTAS, so they keep receiving full view trees.
+
+    /** Message containing the changes to the view tree since the last one sent, see
+     *  {@link #DATA_VIEW_TREE_DELTAS} */
+    public static final int MSG_VIEW_TREE_DELTA = 16384;
+    /** Key in a view tree request: whether the listener accepts deltas instead of the full
+     *  view tree (boolean). It must then also pass {@link #DATA_VIEW_TREE_BASE_SEQUENCE}. */
+    public static final String DATA_VIEW_TREE_DELTAS = "coastdove.viewTreeDeltas";
+    /** Sequence number of the last view tree the listener has applied, -1 if it has none (int).
+     *  In a delta, the sequence number of the view tree it applies to. */
+    public static final String DATA_VIEW_TREE_BASE_SEQUENCE = "coastdove.viewTreeBaseSequence";
+    /** Sequence number of the view tree sent (int) */
+    public static final String DATA_VIEW_TREE_SEQUENCE = "coastdove.viewTreeSequence";
+    /** Identities of all nodes in a full view tree, breadth-first (long[]) */
+    public static final String DATA_VIEW_TREE_NODE_IDS = "coastdove.viewTreeNodeIDs";
+    /** Identities of the roots of all subtrees removed (long[]) */
+    public static final String DATA_VIEW_TREE_REMOVED_IDS = "coastdove.viewTreeRemovedIDs";
+    /** Subtrees inserted (ArrayList&lt;ViewTreeNode&gt;), to be inserted after removing all
+     *  subtrees removed, in the order given */
+    public static final String DATA_VIEW_TREE_INSERTED = "coastdove.viewTreeInserted";
+    /** Identities of the parents of all subtrees inserted (long[]) */
+    public static final String DATA_VIEW_TREE_INSERTED_PARENT_IDS = "coastdove.viewTreeInsertedParentIDs";
+    /** Positions of all subtrees inserted among the children of their parents (int[]) */
+    public static final String DATA_VIEW_TREE_INSERTED_POSITIONS = "coastdove.viewTreeInsertedPositions";
+    /** Identities of all nodes inserted, breadth-first per subtree (long[]) */
+    public static final String DATA_VIEW_TREE_INSERTED_IDS = "coastdove.viewTreeInsertedIDs";
+    /** Nodes whose properties have changed, without children (ArrayList&lt;ViewTreeNode&gt;) */
+    public static final String DATA_VIEW_TREE_CHANGED = "coastdove.viewTreeChanged";
+    /** Identities of all nodes changed (long[]) */
+    public static final String DATA_VIEW_TREE_CHANGED_IDS = "coastdove.viewTreeChangedIDs";
+
+    /**
+     * Accepts node infos whose android ID ends with a given suffix
+     */
+    private static final class ResourceSuffixFilter extends NodeInfoFilter {
+        private String suffix;
+
+        @Override
+        public boolean filter(AccessibilityNodeInfo nodeInfo) {
+            return nodeInfo.getViewIdResourceName() != null &&
+                    nodeInfo.getViewIdResourceName().endsWith(suffix);
+        }
+    }
+
+    /**
+     * Accepts node infos with the same bounds and class name as a given view tree node
+     */
+    private static final class ViewTreeNodeFilter extends NodeInfoFilter {
+        private final Rect boundsInParent = new Rect();
+        private final Rect boundsInScreen = new Rect();
+        private final Rect boundsActual = new Rect();
+        private String className;
+
+        private void set(ViewTreeNode node) {
+            node.getBoundsInParent(boundsInParent);
+            node.getBoundsInScreen(boundsInScreen);
+            className = node.getClassName();
+        }
+
+        /** Index of the matching node in the given snapshot, -1 if there is none */
+        private int find(ScreenSnapshot snapshot) {
+            return snapshot.findByBounds(boundsInParent, boundsInScreen, className);
+        }
+
+        @Override
+        public boolean filter(AccessibilityNodeInfo nodeInfo) {
+            nodeInfo.getBoundsInParent(boundsActual);
+            if (!boundsInParent.equals(boundsActual))
+                return false;
+            nodeInfo.getBoundsInScreen(boundsActual);
+            if (!boundsInScreen.equals(boundsActual))
+                return false;
+            return className.equals(nodeInfo.getClassName());
+        }
+    }
+
     private final class IncomingHandler extends Handler {
+        /** Finds node infos requested, reused for all requests */
+        private final NodeInfoTraverser<AccessibilityNodeInfo> traverser =
+                new NodeInfoTraverser<>(NodeInfoDataExtractor.NODE_INFO, null);
+        /** Reused to find node infos by android ID */
+        private final ResourceSuffixFilter resourceSuffixFilter = new ResourceSuffixFilter();
+        /** Reused to find node infos by view tree node */
+        private final ViewTreeNodeFilter viewTreeNodeFilter = new ViewTreeNodeFilter();
+
         @Override
         public void handleMessage(Message msg) {
             Bundle dataIn = msg.getData();
             dataIn.setClassLoader(ListenerConnection.this.getClass().getClassLoader());
 
+            // Recycle all node infos obtained while handling the request
+            NodeInfoScope scope = NodeInfoScope.open("ListenerRequest");
+            try {
+                handleRequest(msg, dataIn);
+            } finally {
+                traverser.reset(null, null);
+                scope.close();
+            }
+        }
+
+        /**
+         * Handles all requests contained in the given message
+         */
+        private void handleRequest(Message msg, Bundle dataIn) {
             if ((msg.what & CoastDoveListenerService.REPLY_REQUEST_META_INFORMATION) != 0) {
                 String appPackageName = dataIn.getString(CoastDoveListenerService.DATA_APP_PACKAGE_NAME);
                 AppDetectionData appDetectionData = CoastDoveService.multiLoader.get(appPackageName);
@@ -96,51 +209,114 @@ public class ListenerConnection implements ServiceConnection {
          * @param dataIn    Bundle that may contain information on the startNodeInfo
          */
         private void sendViewTree(Bundle dataIn, boolean includeSubTree) {
-            AccessibilityNodeInfo rootNodeInfo = CoastDoveService.getService().getRootInActiveWindow();
+            AccessibilityNodeInfo rootNodeInfo = NodeInfoScope.track(CoastDoveService.getService().getRootInActiveWindow());
 
             String appPackageName = rootNodeInfo.getPackageName().toString();
             AppDetectionData appDetectionData = CoastDoveService.multiLoader.get(appPackageName);
             if (appDetectionData == null)
                 return;
 
-            AccessibilityNodeInfo startNodeInfo = rootNodeInfo;
-            if (dataIn.containsKey(CoastDoveListenerService.DATA_VIEW_TREE_START_NODE_RESOURCE)) {
-                final String startNodeResource = dataIn.getString(
-                        CoastDoveListenerService.DATA_VIEW_TREE_START_NODE_RESOURCE);
-
-                NodeInfoTraverser<AccessibilityNodeInfo> traverser = new NodeInfoTraverser<>(
-                        rootNodeInfo,
-                        new NodeInfoDataExtractor<AccessibilityNodeInfo>() {
-                            @Override
-                            public AccessibilityNodeInfo extractData(AccessibilityNodeInfo nodeInfo) {
-                                return nodeInfo;
-                            }
-                        },
-                        new NodeInfoFilter() {
-                            @Override
-                            public boolean filter(AccessibilityNodeInfo nodeInfo) {
-                                return nodeInfo.getViewIdResourceName() != null &&
-                                        nodeInfo.getViewIdResourceName().endsWith(startNodeResource);
-                            }
-                        }
-                );
-                startNodeInfo = traverser.nextFiltered();
+            String startNodeResource = dataIn.getString(CoastDoveListenerService.DATA_VIEW_TREE_START_NODE_RESOURCE);
+            ReplacementData replacementData = appDetectionData.getReplacementData();
+            ViewTreeNode viewTree = null;
+            ViewTreeHelper.Result result = null;
+            // Copy from an up-to-date snapshot if there is one, so no node infos need to be fetched.
+            // Content changes may still be queued, so a node missing from it is searched live.
+            ScreenSnapshot snapshot = appDetectionData.getScreenSnapshot(rootNodeInfo.getWindowId());
+            int startIndex = snapshot == null ? -1 :
+                    startNodeResource == null ? 0 : snapshot.findByResourceSuffix(startNodeResource);
+            if (startIndex >= 0) {
+                if (includeSubTree)
+                    result = ViewTreeHelper.build(snapshot.getTree(), startIndex, replacementData,
+                            appDetectionData.getViewTreeBudget());
+                else
+                    viewTree = ViewTreeHelper.flatCopy(snapshot.getTree(), startIndex, replacementData);
             }
-
-            if (startNodeInfo != null) {
-                ViewTreeNode viewTree;
+            else {
+                AccessibilityNodeInfo startNodeInfo = rootNodeInfo;
+                if (startNodeResource != null)
+                    startNodeInfo = findByResourceSuffix(rootNodeInfo, appDetectionData, startNodeResource);
+                if (startNodeInfo == null)
+                    return;
                 if (includeSubTree)
-                    viewTree = ViewTreeHelper.fromAccessibilityNodeInfo(
-                            startNodeInfo, appDetectionData.getReplacementData());
+                    result = ViewTreeHelper.build(startNodeInfo, replacementData, appDetectionData.getViewTreeBudget());
                 else
-                    viewTree = ViewTreeHelper.flatCopy(startNodeInfo, appDetectionData.getReplacementData());
+                    viewTree = ViewTreeHelper.flatCopy(startNodeInfo, replacementData);
+            }
 
-                Bundle dataOut = new Bundle();
+            boolean partial = false;
+            if (result != null) {
+                viewTree = result.getRoot();
+                partial = result.isPartial();
+                if (partial)
+                    Log.d("ListenerConnection", "ViewTree truncated to " + result.getNodeCount() + " nodes");
+            }
+
+            Bundle dataOut = new Bundle();
+            int type = CoastDoveListenerService.MSG_VIEW_TREE;
+            if (includeSubTree && dataIn.getBoolean(DATA_VIEW_TREE_DELTAS, false)) {
+                // Only send what has changed since the last view tree, if the listener still has it
+                ViewTreeDiffer differ = mViewTreeDiffers.get(appPackageName);
+                if (differ == null) {
+                    differ = new ViewTreeDiffer();
+                    mViewTreeDiffers.put(appPackageName, differ);
+                }
+                type = differ.write(viewTree, startNodeResource, dataIn.getInt(DATA_VIEW_TREE_BASE_SEQUENCE, -1), dataOut);
+            }
+            else
                 dataOut.putParcelable(CoastDoveListenerService.DATA_VIEW_TREE, viewTree);
-                Log.d("ListenerConnection", "Sending ViewTree");
-                ListenerConnection.this.sendMessage(appPackageName,
-                        CoastDoveListenerService.MSG_VIEW_TREE, dataOut);
+            dataOut.putBoolean(DATA_VIEW_TREE_PARTIAL, partial);
+            Log.d("ListenerConnection", type == MSG_VIEW_TREE_DELTA ? "Sending ViewTree delta" : "Sending ViewTree");
+            ListenerConnection.this.sendMessage(appPackageName, type, dataOut);
+        }
+
+        /**
+         * Finds the first node info (breadth-first) whose android ID ends with the given suffix.
+         * Looks it up in the app's snapshot of the screen if there is an up-to-date one, so that
+         * bursts of requests don't walk the whole tree each time. No snapshot is taken for this,
+         * and the live tree is searched if the snapshot doesn't have the node info, as content
+         * changes not yet processed by the detection pipeline may have added it.
+         * @param rootNodeInfo        Root of the active window
+         * @param appDetectionData    Detection data of the app in the active window, may be null
+         * @param suffix              Suffix of the android ID
+         * @return The node info found, or null if there is none
+         */
+        private AccessibilityNodeInfo findByResourceSuffix(AccessibilityNodeInfo rootNodeInfo,
+                                                           AppDetectionData appDetectionData, String suffix) {
+            if (suffix == null)
+                return null;
+
+            ScreenSnapshot snapshot = appDetectionData == null ? null :
+                    appDetectionData.getScreenSnapshot(rootNodeInfo.getWindowId());
+            if (snapshot != null) {
+                int index = snapshot.findByResourceSuffix(suffix);
+                AccessibilityNodeInfo nodeInfo = index < 0 ? null : snapshot.resolve(rootNodeInfo, index);
+                if (nodeInfo != null)
+                    return nodeInfo;
+            }
+
+            // Otherwise search the live tree
+            resourceSuffixFilter.suffix = suffix;
+            traverser.reset(rootNodeInfo, resourceSuffixFilter);
+            return searchLiveTree(appDetectionData);
+        }
+
+        /**
+         * Returns the next node info found by the traverser, giving up once the time budget for
+         * view trees of the given app is used up
+         * @param appDetectionData    Detection data of the app in the active window, may be null
+         * @return The node info found, or null if there is none or the search ran out of time
+         */
+        private AccessibilityNodeInfo searchLiveTree(AppDetectionData appDetectionData) {
+            TraversalBudget budget = appDetectionData == null ? TraversalBudget.DEFAULT :
+                    appDetectionData.getViewTreeBudget();
+            traverser.setDeadline(budget.startDeadline());
+            AccessibilityNodeInfo result = traverser.nextFiltered();
+            if (traverser.hasTimedOut()) {
+                budget.recordOverrun();
+                Log.d("ListenerConnection", "Search for node info ran out of time");
             }
+            return result;
         }
 
         /**
@@ -151,52 +327,28 @@ public class ListenerConnection implements ServiceConnection {
             int actionID = dataIn.getInt(CoastDoveListenerService.DATA_ACTION);
 
             AccessibilityNodeInfo nodeInfo = null;
-            AccessibilityNodeInfo rootNodeInfo = CoastDoveService.getService().getRootInActiveWindow();
+            AccessibilityNodeInfo rootNodeInfo = NodeInfoScope.track(CoastDoveService.getService().getRootInActiveWindow());
             String appPackageName = rootNodeInfo.getPackageName().toString();
             if (dataIn.containsKey(CoastDoveListenerService.DATA_RESOURCE_ID)) {
-                final String androidID = dataIn.getString(CoastDoveListenerService.DATA_RESOURCE_ID);
-                NodeInfoTraverser<AccessibilityNodeInfo> traverser = new NodeInfoTraverser<>(rootNodeInfo,
-                        new NodeInfoDataExtractor<AccessibilityNodeInfo>() {
-                            @Override
-                            public AccessibilityNodeInfo extractData(AccessibilityNodeInfo nodeInfo) {
-                                return nodeInfo;
-                            }
-                        },
-                        new NodeInfoFilter() {
-                            @Override
-                            public boolean filter(AccessibilityNodeInfo nodeInfo) {
-                                return nodeInfo.getViewIdResourceName() != null &&
-                                        nodeInfo.getViewIdResourceName().endsWith(androidID);
-                            }
-                        });
-                nodeInfo = traverser.nextFiltered();
+                nodeInfo = findByResourceSuffix(rootNodeInfo, CoastDoveService.multiLoader.get(appPackageName),
+                        dataIn.getString(CoastDoveListenerService.DATA_RESOURCE_ID));
             }
             else if (dataIn.containsKey(CoastDoveListenerService.DATA_VIEW_TREE_NODE)) {
-                final ViewTreeNode node = dataIn.getParcelable(CoastDoveListenerService.DATA_VIEW_TREE_NODE);
-                NodeInfoTraverser<AccessibilityNodeInfo> traverser = new NodeInfoTraverser<>(rootNodeInfo,
-                        new NodeInfoDataExtractor<AccessibilityNodeInfo>() {
-                            @Override
-                            public AccessibilityNodeInfo extractData(AccessibilityNodeInfo nodeInfo) {
-                                return nodeInfo;
-                            }
-                        },
-                        new NodeInfoFilter() {
-                            @Override
-                            public boolean filter(AccessibilityNodeInfo nodeInfo) {
-                                Rect boundsExpected = new Rect();
-                                Rect boundsActual = new Rect();
-                                node.getBoundsInParent(boundsExpected);
-                                nodeInfo.getBoundsInParent(boundsActual);
-                                if (!boundsExpected.equals(boundsActual))
-                                    return false;
-                                node.getBoundsInScreen(boundsExpected);
-                                nodeInfo.getBoundsInScreen(boundsActual);
-                                if (!boundsExpected.equals(boundsActual))
-                                    return false;
-                                return node.getClassName().equals(nodeInfo.getClassName());
-                            }
-                        });
-                nodeInfo = traverser.nextFiltered();
+                ViewTreeNode node = dataIn.getParcelable(CoastDoveListenerService.DATA_VIEW_TREE_NODE);
+                viewTreeNodeFilter.set(node);
+
+                // Look up the node in the latest snapshot if the screen hasn't changed since
+                AppDetectionData appDetectionData = CoastDoveService.multiLoader.get(appPackageName);
+                ScreenSnapshot snapshot = appDetectionData == null ? null :
+                        appDetectionData.getScreenSnapshot(rootNodeInfo.getWindowId());
+                if (snapshot != null)
+                    nodeInfo = snapshot.resolve(rootNodeInfo, viewTreeNodeFilter.find(snapshot));
+
+                // Otherwise search the live tree
+                if (nodeInfo == null) {
+                    traverser.reset(rootNodeInfo, viewTreeNodeFilter);
+                    nodeInfo = searchLiveTree(appDetectionData);
+                }
             }
             Bundle dataOut = new Bundle();
             boolean actionPerformed = false;
@@ -222,16 +374,19 @@ public class ListenerConnection implements ServiceConnection {
     /** Receives messages from the remote service */
     private final Messenger mReplyMessenger = new Messenger(new IncomingHandler());
     /** Sends messages to the remote service */
-    private Messenger mService = null;
+    private volatile Messenger mService = null;
     /** Whether the service is bound (= we can send messages) or not */
-    private boolean mBound = false;
+    private volatile boolean mBound = false;
 
     /** Package of the remote service to connect to */
     private String mServicePackageName;
     /** Full class name (including all packages) of the remote service to connect to */
     private String mServiceFullClassName;
-    /** Apps this connection is actually listening to, identified by their package name */
+    /** Apps this connection is actually listening to, identified by their package name.
+     *  Read from the detection pipeline's thread as well, hence synchronized. */
     private Collection<String> mEnabledApps;
+    /** Last view trees sent, per app, to send only deltas afterwards */
+    private Map<String, ViewTreeDiffer> mViewTreeDiffers;
 
 
     /**
@@ -242,7 +397,8 @@ public class ListenerConnection implements ServiceConnection {
     public ListenerConnection(@NonNull String servicePackageName, @NonNull String serviceClassName) {
         mServicePackageName = servicePackageName;
         mServiceFullClassName = serviceClassName;
-        mEnabledApps = new TreeSet<>(new CollatorWrapper());
+        mEnabledApps = Collections.synchronizedSet(new TreeSet<>(new CollatorWrapper()));
+        mViewTreeDiffers = Collections.synchronizedMap(new HashMap<String, ViewTreeDiffer>());
     }
 
     @Override
@@ -258,7 +414,12 @@ public class ListenerConnection implements ServiceConnection {
             Log.e("ListenerConnection", "Cannot send message with ReplyMessenger: " + e.getMessage());
         }
 
-        for (String enabledApp : mEnabledApps) {
+        // Iterate over a copy, so the lock is not held while sending
+        List<String> enabledApps;
+        synchronized (mEnabledApps) {
+            enabledApps = new ArrayList<>(mEnabledApps);
+        }
+        for (String enabledApp : enabledApps) {
             Bundle data = new Bundle();
             data.putString(CoastDoveListenerService.DATA_APP_PACKAGE_NAME, enabledApp);
             sendMessage(enabledApp, CoastDoveListenerService.MSG_APP_ENABLED, data);
@@ -269,6 +430,7 @@ public class ListenerConnection implements ServiceConnection {
     public void onServiceDisconnected(ComponentName name) {
         mBound = false;
         mService = null;
+        mViewTreeDiffers.clear();
     }
 
     /**
@@ -342,6 +504,7 @@ public class ListenerConnection implements ServiceConnection {
         }
 
         mEnabledApps.remove(appPackageName);
+        mViewTreeDiffers.remove(appPackageName);
     }
 
     /**
@@ -0,0 +1,414 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.core.ipc;
+
+import android.graphics.Rect;
+import android.os.Bundle;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import simonlang.coastdove.lib.CoastDoveListenerService;
+import simonlang.coastdove.lib.ViewTreeNode;
+
+/**
+ * Remembers the last view tree sent to a listener for one app, so that the next time only the
+ * nodes inserted, removed and changed since then need to be sent. Nodes are identified by a hash
+ * of their class name and android ID, combined with the identity of their parent. Siblings that
+ * share both (e.g. the rows of a list) are told apart by the texts and content descriptions in
+ * their subtrees, so that inserting or removing one of them leaves the identities of the others
+ * as they are. Only siblings that cannot be told apart that way are identified by their position
+ * among each other. If a delta cannot be computed (or is not worth it), the full tree is sent
+ * instead, along with the identities of all its nodes. Not thread-safe.
+ */
+class ViewTreeDiffer {
+    /** Deltas touching more than this fraction of the nodes are replaced by the full tree */
+    private static final float MAX_DELTA_FRACTION = 0.5f;
+    /** Identity of the root node */
+    private static final long ROOT_ID = 0x6A09E667F3BCC909L;
+    /** Maximum number of nodes of a subtree whose texts tell it apart from its siblings */
+    private static final int MAX_SIGNATURE_NODES = 32;
+
+    /**
+     * View tree flattened breadth-first, so that the children of each node are stored
+     * next to each other
+     */
+    private static class IndexedTree {
+        private ViewTreeNode[] nodes;
+        private long[] ids;
+        private int[] parents;
+        private int[] firstChildren;
+        private int size;
+        /** Index of each node by its identity */
+        private final HashMap<Long, Integer> indices = new HashMap<>();
+
+        private int indexOf(long id) {
+            Integer index = indices.get(id);
+            return index == null ? -1 : index;
+        }
+    }
+
+    /** Growable array of longs */
+    private static class LongList {
+        private long[] values = new long[16];
+        private int size = 0;
+
+        private void add(long value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        private long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    /** Growable array of ints */
+    private static class IntList {
+        private int[] values = new int[16];
+        private int size = 0;
+
+        private void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    /** Last tree sent, null if the next tree must be sent in full */
+    private IndexedTree previous;
+    /** Android ID the last tree was started from, null for the root */
+    private String previousStartNodeResource;
+    /** Sequence number of the last tree sent */
+    private int sequence;
+
+    /** Counts siblings with the same class name and android ID, reused */
+    private final HashMap<Long, Integer> siblingKeyCounts = new HashMap<>();
+    /** Counts siblings with the same key, including the signature of their subtree if needed, reused */
+    private final HashMap<Long, Integer> siblingOccurrences = new HashMap<>();
+    /** Class name and android ID of each sibling, reused */
+    private final LongList siblingKeys = new LongList();
+    /** Nodes of the subtree whose signature is being computed, reused */
+    private final ArrayList<ViewTreeNode> signatureQueue = new ArrayList<>();
+    private final Rect boundsA = new Rect();
+    private final Rect boundsB = new Rect();
+
+    ViewTreeDiffer() {
+        this.previous = null;
+        this.previousStartNodeResource = null;
+        this.sequence = 0;
+    }
+
+    /**
+     * Puts either the changes since the last tree sent, or the full tree into dataOut, and
+     * remembers the tree for the next time
+     * @param viewTree             View tree to send
+     * @param startNodeResource    Android ID the tree was started from, null for the root
+     * @param baseSequence         Sequence number of the last tree the listener has applied,
+     *                             -1 if it needs the full tree
+     * @param dataOut              Bundle to send
+     * @return Type of message to send, either {@link CoastDoveListenerService#MSG_VIEW_TREE}
+     *         or {@link ListenerConnection#MSG_VIEW_TREE_DELTA}
+     */
+    int write(ViewTreeNode viewTree, String startNodeResource, int baseSequence, Bundle dataOut) {
+        IndexedTree current = index(viewTree);
+        boolean delta = current != null && previous != null && baseSequence == sequence &&
+                (startNodeResource == null ? previousStartNodeResource == null :
+                        startNodeResource.equals(previousStartNodeResource));
+        if (delta)
+            delta = writeDelta(previous, current, dataOut);
+
+        dataOut.putInt(ListenerConnection.DATA_VIEW_TREE_BASE_SEQUENCE, sequence);
+        ++sequence;
+        dataOut.putInt(ListenerConnection.DATA_VIEW_TREE_SEQUENCE, sequence);
+        if (!delta) {
+            dataOut.putParcelable(CoastDoveListenerService.DATA_VIEW_TREE, viewTree);
+            if (current != null)
+                dataOut.putLongArray(ListenerConnection.DATA_VIEW_TREE_NODE_IDS,
+                        Arrays.copyOf(current.ids, current.size));
+        }
+
+        previous = current;
+        previousStartNodeResource = startNodeResource;
+        return delta ? ListenerConnection.MSG_VIEW_TREE_DELTA : CoastDoveListenerService.MSG_VIEW_TREE;
+    }
+
+    /**
+     * Forgets the last tree sent, so that the next tree is sent in full
+     */
+    void reset() {
+        previous = null;
+        previousStartNodeResource = null;
+    }
+
+    /**
+     * Flattens the given tree and computes the identities of its nodes
+     * @return Indexed tree, or null if the tree is empty or two nodes share the same identity
+     */
+    private IndexedTree index(ViewTreeNode root) {
+        if (root == null)
+            return null;
+
+        IndexedTree tree = new IndexedTree();
+        int capacity = 64;
+        tree.nodes = new ViewTreeNode[capacity];
+        tree.ids = new long[capacity];
+        tree.parents = new int[capacity];
+        tree.firstChildren = new int[capacity];
+
+        tree.nodes[0] = root;
+        tree.ids[0] = ROOT_ID;
+        tree.parents[0] = -1;
+        tree.indices.put(ROOT_ID, 0);
+        tree.size = 1;
+
+        for (int i = 0; i < tree.size; ++i) {
+            List<ViewTreeNode> children = tree.nodes[i].getChildren();
+            tree.firstChildren[i] = tree.size;
+            siblingKeyCounts.clear();
+            siblingOccurrences.clear();
+            siblingKeys.size = 0;
+            for (int c = 0; c < children.size(); ++c) {
+                ViewTreeNode child = children.get(c);
+                long key = mix(hash(child.getClassName()), hash(child.getViewIDResourceName()));
+                siblingKeys.add(key);
+                Integer count = siblingKeyCounts.get(key);
+                siblingKeyCounts.put(key, count == null ? 1 : count + 1);
+            }
+            for (int c = 0; c < children.size(); ++c) {
+                ViewTreeNode child = children.get(c);
+                long key = siblingKeys.values[c];
+                // Siblings of the same class and android ID are told apart by their content
+                if (siblingKeyCounts.get(key) > 1)
+                    key = mix(key, signature(child));
+                Integer occurrences = siblingOccurrences.get(key);
+                int occurrence = occurrences == null ? 0 : occurrences;
+                siblingOccurrences.put(key, occurrence + 1);
+                long id = mix(mix(tree.ids[i], key), occurrence);
+
+                if (tree.size == tree.nodes.length) {
+                    capacity = tree.nodes.length * 2;
+                    tree.nodes = Arrays.copyOf(tree.nodes, capacity);
+                    tree.ids = Arrays.copyOf(tree.ids, capacity);
+                    tree.parents = Arrays.copyOf(tree.parents, capacity);
+                    tree.firstChildren = Arrays.copyOf(tree.firstChildren, capacity);
+                }
+                if (tree.indices.put(id, tree.size) != null)
+                    return null;
+                tree.nodes[tree.size] = child;
+                tree.ids[tree.size] = id;
+                tree.parents[tree.size] = i;
+                ++tree.size;
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Hash of the texts and content descriptions of the given node and the first nodes of
+     * its subtree (breadth-first, see {@link #MAX_SIGNATURE_NODES}), along with their android IDs
+     */
+    private long signature(ViewTreeNode node) {
+        long signature = 0;
+        signatureQueue.clear();
+        signatureQueue.add(node);
+        for (int i = 0; i < signatureQueue.size(); ++i) {
+            ViewTreeNode current = signatureQueue.get(i);
+            if (current.getText() != null || current.getContentDescription() != null)
+                signature = mix(signature, mix(hash(current.getViewIDResourceName()),
+                        mix(hash(current.getText()), hash(current.getContentDescription()))));
+            List<ViewTreeNode> children = current.getChildren();
+            for (int c = 0; c < children.size() && signatureQueue.size() < MAX_SIGNATURE_NODES; ++c)
+                signatureQueue.add(children.get(c));
+        }
+        signatureQueue.clear();
+        return signature;
+    }
+
+    /**
+     * Puts the changes from previousTree to currentTree into dataOut
+     * @return True if successful, false if the full tree needs to be sent instead
+     */
+    private boolean writeDelta(IndexedTree previousTree, IndexedTree currentTree, Bundle dataOut) {
+        // Removed subtrees, identified by their roots
+        LongList removed = new LongList();
+        for (int i = 1; i < previousTree.size; ++i) {
+            if (currentTree.indexOf(previousTree.ids[i]) < 0 &&
+                    currentTree.indexOf(previousTree.ids[previousTree.parents[i]]) >= 0)
+                removed.add(previousTree.ids[i]);
+        }
+
+        // Inserted subtrees, and changed nodes
+        ArrayList<ViewTreeNode> inserted = new ArrayList<>();
+        LongList insertedParents = new LongList();
+        IntList insertedPositions = new IntList();
+        LongList insertedIDs = new LongList();
+        ArrayList<ViewTreeNode> changed = new ArrayList<>();
+        LongList changedIDs = new LongList();
+        int maxNodes = (int)(currentTree.size * MAX_DELTA_FRACTION);
+        for (int i = 0; i < currentTree.size; ++i) {
+            int previousIndex = previousTree.indexOf(currentTree.ids[i]);
+            if (previousIndex < 0) {
+                int parent = currentTree.parents[i];
+                if (parent < 0)
+                    return false;
+                if (previousTree.indexOf(currentTree.ids[parent]) >= 0) {
+                    inserted.add(currentTree.nodes[i]);
+                    insertedParents.add(currentTree.ids[parent]);
+                    insertedPositions.add(i - currentTree.firstChildren[parent]);
+                    addSubtreeIDs(currentTree, i, insertedIDs);
+                }
+            }
+            else {
+                if (!sameProperties(previousTree.nodes[previousIndex], currentTree.nodes[i])) {
+                    changed.add(currentTree.nodes[i].getFlatNode());
+                    changedIDs.add(currentTree.ids[i]);
+                }
+                if (!sameChildOrder(previousTree, previousIndex, currentTree, i))
+                    return false;
+            }
+            if (insertedIDs.size + changed.size() > maxNodes)
+                return false;
+        }
+
+        dataOut.putLongArray(ListenerConnection.DATA_VIEW_TREE_REMOVED_IDS, removed.toArray());
+        dataOut.putParcelableArrayList(ListenerConnection.DATA_VIEW_TREE_INSERTED, inserted);
+        dataOut.putLongArray(ListenerConnection.DATA_VIEW_TREE_INSERTED_PARENT_IDS, insertedParents.toArray());
+        dataOut.putIntArray(ListenerConnection.DATA_VIEW_TREE_INSERTED_POSITIONS, insertedPositions.toArray());
+        dataOut.putLongArray(ListenerConnection.DATA_VIEW_TREE_INSERTED_IDS, insertedIDs.toArray());
+        dataOut.putParcelableArrayList(ListenerConnection.DATA_VIEW_TREE_CHANGED, changed);
+        dataOut.putLongArray(ListenerConnection.DATA_VIEW_TREE_CHANGED_IDS, changedIDs.toArray());
+        return true;
+    }
+
+    /**
+     * Adds the identities of all nodes in the subtree starting at the given index, breadth-first
+     */
+    private static void addSubtreeIDs(IndexedTree tree, int index, LongList ids) {
+        int first = ids.size;
+        ids.add(tree.ids[index]);
+        for (int i = first; i < ids.size; ++i) {
+            int node = tree.indexOf(ids.values[i]);
+            int childCount = tree.nodes[node].getChildCount();
+            for (int c = 0; c < childCount; ++c)
+                ids.add(tree.ids[tree.firstChildren[node] + c]);
+        }
+    }
+
+    /**
+     * Whether the children both trees have in common appear in the same order
+     */
+    private static boolean sameChildOrder(IndexedTree previousTree, int previousIndex,
+                                          IndexedTree currentTree, int currentIndex) {
+        int p = previousTree.firstChildren[previousIndex];
+        int pEnd = p + previousTree.nodes[previousIndex].getChildCount();
+        int c = currentTree.firstChildren[currentIndex];
+        int cEnd = c + currentTree.nodes[currentIndex].getChildCount();
+        while (true) {
+            while (p < pEnd && currentTree.indexOf(previousTree.ids[p]) < 0)
+                ++p;
+            while (c < cEnd && previousTree.indexOf(currentTree.ids[c]) < 0)
+                ++c;
+            if (p == pEnd || c == cEnd)
+                return p == pEnd && c == cEnd;
+            if (previousTree.ids[p] != currentTree.ids[c])
+                return false;
+            ++p;
+            ++c;
+        }
+    }
+
+    /**
+     * Whether both nodes have the same properties, not considering parents and children
+     */
+    private boolean sameProperties(ViewTreeNode a, ViewTreeNode b) {
+        if (!equal(a.getText(), b.getText()) ||
+                !equal(a.getContentDescription(), b.getContentDescription()) ||
+                !equal(a.getClassName(), b.getClassName()) ||
+                !equal(a.getViewIDResourceName(), b.getViewIDResourceName()))
+            return false;
+        if (a.getInputType() != b.getInputType() ||
+                a.getTextSelectionStart() != b.getTextSelectionStart() ||
+                a.getTextSelectionEnd() != b.getTextSelectionEnd())
+            return false;
+        if (a.isCheckable() != b.isCheckable() || a.isChecked() != b.isChecked() ||
+                a.isClickable() != b.isClickable() || a.isDismissable() != b.isDismissable() ||
+                a.isEditable() != b.isEditable() || a.isEnabled() != b.isEnabled() ||
+                a.isFocusable() != b.isFocusable() || a.isFocused() != b.isFocused() ||
+                a.isLongClickable() != b.isLongClickable() || a.isMultiLine() != b.isMultiLine() ||
+                a.isPassword() != b.isPassword() || a.isScrollable() != b.isScrollable() ||
+                a.isSelected() != b.isSelected() || a.isVisibleToUser() != b.isVisibleToUser())
+            return false;
+
+        a.getBoundsInScreen(boundsA);
+        b.getBoundsInScreen(boundsB);
+        if (!boundsA.equals(boundsB))
+            return false;
+        a.getBoundsInParent(boundsA);
+        b.getBoundsInParent(boundsB);
+        if (!boundsA.equals(boundsB))
+            return false;
+
+        ViewTreeNode.RangeInfo rangeA = a.getRangeInfo();
+        ViewTreeNode.RangeInfo rangeB = b.getRangeInfo();
+        if (rangeA == null || rangeB == null) {
+            if (rangeA != rangeB)
+                return false;
+        }
+        else if (rangeA.getType() != rangeB.getType() || rangeA.getMin() != rangeB.getMin() ||
+                rangeA.getMax() != rangeB.getMax() || rangeA.getCurrent() != rangeB.getCurrent())
+            return false;
+
+        List<AccessibilityNodeInfo.AccessibilityAction> actionsA = a.getActionList();
+        List<AccessibilityNodeInfo.AccessibilityAction> actionsB = b.getActionList();
+        if (actionsA == null || actionsB == null)
+            return actionsA == actionsB;
+        if (actionsA.size() != actionsB.size())
+            return false;
+        for (int i = 0; i < actionsA.size(); ++i) {
+            if (actionsA.get(i).getId() != actionsB.get(i).getId())
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static long hash(String string) {
+        return string == null ? 0 : string.hashCode();
+    }
+
+    /** Combines two values into a 64 bit hash */
+    private static long mix(long hash, long value) {
+        hash ^= value + 0x9E3779B97F4A7C15L + (hash << 6) + (hash >>> 2);
+        hash *= 0xBF58476D1CE4E5B9L;
+        return hash ^ (hash >>> 31);
+    }
+}
@@ -91,6 +91,19 @@ public class Misc {
         return preferences.getBoolean(appPackageName + preference, defaultValue);
     }
 
+    /**
+     * Retrieves the given preference (appPackageName+preference)
+     * @param preferences       Shared preferences to retrieve from
+     * @param appPackageName    Package name for which to retrieve the preference
+     * @param preference        Preference name to get
+     * @param defaultValue      Default value if the preference is not set
+     * @return The preference's value
+     */
+    public static int getPreferenceInt(SharedPreferences preferences, String appPackageName, String preference,
+                                       int defaultValue) {
+        return preferences.getInt(appPackageName + preference, defaultValue);
+    }
+
     /**
      * Indicated whether any of this package's accessibility services is currently active
      * @param context    App context
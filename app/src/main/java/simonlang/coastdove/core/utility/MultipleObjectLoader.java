@@ -40,12 +40,26 @@ public class MultipleObjectLoader<T> {
         NONE
     }
 
+    /**
+     * Is notified whenever objects are added to or removed from the loaded objects
+     */
+    public interface OnChangeListener {
+        /**
+         * Called after an object has finished loading or a loaded object has been removed.
+         * May be called on any thread.
+         * @param key    Key of the object added or removed
+         */
+        void onLoadedObjectsChanged(String key);
+    }
+
     /** Map of Threads currently loading objects */
     private Map<String, Thread> loadingObjects;
     /** Map of LoadingInfos for loading objects */
     private Map<String, LoadingInfo> loadingInfos;
     /** Map of objects already loaded */
     private Map<String, T> loadedObjects;
+    /** Notified of changes to loadedObjects, may be null */
+    private volatile OnChangeListener onChangeListener;
 
     /**
      * Constructs a MultipleObjectLoader
@@ -54,6 +68,15 @@ public class MultipleObjectLoader<T> {
         this.loadingObjects = new ConcurrentHashMap<>();
         this.loadingInfos = new ConcurrentHashMap<>();
         this.loadedObjects = new ConcurrentHashMap<>();
+        this.onChangeListener = null;
+    }
+
+    /**
+     * Sets the listener to be notified whenever objects finish loading or loaded objects are removed
+     * @param onChangeListener    Listener to notify, or null
+     */
+    public void setOnChangeListener(OnChangeListener onChangeListener) {
+        this.onChangeListener = onChangeListener;
     }
 
     /**
@@ -158,13 +181,17 @@ public class MultipleObjectLoader<T> {
                 removed = true;
             }
         }
+        boolean removedLoaded = false;
         if (loadedObjects.containsKey(key)) {
             loadedObjects.remove(key);
             Log.d("MultipleObjectLoader", "Removed loaded data for " + key);
             removed = true;
+            removedLoaded = true;
         }
         if (loadingInfos.containsKey(key))
             loadingInfos.remove(key);
+        if (removedLoaded)
+            notifyChanged(key);
         return removed;
     }
 
@@ -236,5 +263,12 @@ public class MultipleObjectLoader<T> {
         remove(key);
         loadedObjects.put(key, object);
         Log.d("MultipleObjectLoader", "Removed loader thread for " + key);
+        notifyChanged(key);
+    }
+
+    private void notifyChanged(String key) {
+        OnChangeListener listener = onChangeListener;
+        if (listener != null)
+            listener.onLoadedObjectsChanged(key);
     }
 }
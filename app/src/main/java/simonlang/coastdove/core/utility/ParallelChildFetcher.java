@@ -0,0 +1,191 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.core.utility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches the children of wide nodes in parallel. Fetching a child may be a blocking call (e.g. a
+ * binder round trip for AccessibilityNodeInfos), so the children of a node with many children are
+ * split into chunks, which are fetched by a small pool of worker threads and the calling thread at
+ * the same time, and then reassembled in order. Narrow nodes are fetched on the calling thread.
+ * Idle worker threads terminate after a while. Thread-safe.
+ * @param <N> Type of the nodes
+ */
+public class ParallelChildFetcher<N> {
+    /**
+     * Provides the children of nodes
+     * @param <N> Type of the nodes
+     */
+    public interface ChildSource<N> {
+        /** Number of children of the given node */
+        int getChildCount(N node);
+
+        /**
+         * Fetches a child of the given node. May be called from any thread, and concurrently
+         * for different children of the same node.
+         * @return The child, or null if it is not available
+         */
+        N getChild(N node, int index);
+    }
+
+    /** Time after which idle worker threads terminate, in seconds */
+    private static final int KEEP_ALIVE_SECONDS = 30;
+    /** Counts the pools created, to name their threads */
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger(0);
+
+    /** Provides the children */
+    private final ChildSource<N> source;
+    /** Number of worker threads, 0 to fetch all children on the calling thread */
+    private final int threads;
+    /** Minimum number of children of a node to fetch them in parallel */
+    private final int minWidth;
+    /** Worker threads, null if threads is 0 */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates a new fetcher
+     * @param source      Provides the children
+     * @param threads     Number of worker threads, 0 to fetch all children on the calling thread
+     * @param minWidth    Minimum number of children of a node to fetch them in parallel
+     */
+    public ParallelChildFetcher(ChildSource<N> source, int threads, int minWidth) {
+        if (threads < 0)
+            throw new IllegalArgumentException("Number of threads must not be negative");
+        this.source = source;
+        this.threads = threads;
+        this.minWidth = Math.max(2, minWidth);
+        if (threads > 0) {
+            final String poolName = "ChildFetcher-" + POOL_COUNT.incrementAndGet();
+            this.executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger threadCount = new AtomicInteger(0);
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, poolName + "-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+        else
+            this.executor = null;
+    }
+
+    /**
+     * Fetches all children of the given node, in parallel if it has at least minWidth children
+     * @param node    Node whose children to fetch
+     * @param out     List to add the children to, in order, including null children
+     * @return Number of children added
+     */
+    public int fetchChildren(final N node, List<N> out) {
+        final int childCount = source.getChildCount(node);
+        if (executor == null || childCount < minWidth) {
+            fetchChunk(node, 0, childCount, out);
+            return childCount;
+        }
+
+        // One chunk per worker thread and one for the calling thread
+        int chunks = Math.min(threads + 1, childCount);
+        int chunkSize = (childCount + chunks - 1) / chunks;
+        List<Future<List<N>>> futures = new ArrayList<>(chunks - 1);
+        for (int start = chunkSize; start < childCount; start += chunkSize) {
+            final int chunkStart = start;
+            final int chunkEnd = Math.min(childCount, start + chunkSize);
+            futures.add(executor.submit(new Callable<List<N>>() {
+                @Override
+                public List<N> call() {
+                    List<N> chunk = new ArrayList<>(chunkEnd - chunkStart);
+                    fetchChunk(node, chunkStart, chunkEnd, chunk);
+                    return chunk;
+                }
+            }));
+        }
+
+        fetchChunk(node, 0, Math.min(chunkSize, childCount), out);
+        int start = chunkSize;
+        for (Future<List<N>> future : futures) {
+            int end = Math.min(childCount, start + chunkSize);
+            List<N> chunk = getUninterruptibly(future);
+            if (chunk != null)
+                out.addAll(chunk);
+            else
+                fetchChunk(node, start, end, out);
+            start = end;
+        }
+        return childCount;
+    }
+
+    /** Number of worker threads, 0 if all children are fetched on the calling thread */
+    public int getThreads() {
+        return threads;
+    }
+
+    /** Minimum number of children of a node to fetch them in parallel */
+    public int getMinWidth() {
+        return minWidth;
+    }
+
+    /**
+     * Lets all worker threads terminate once they are done. The fetcher must not be used afterwards.
+     */
+    public void shutdown() {
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    private void fetchChunk(N node, int start, int end, List<N> out) {
+        for (int i = start; i < end; ++i)
+            out.add(source.getChild(node, i));
+    }
+
+    /**
+     * Waits for the given chunk, preserving the interrupt status of the calling thread
+     * @return The chunk, or null if fetching it has failed
+     */
+    private static <T> T getUninterruptibly(Future<T> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    return null;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -16,56 +16,82 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 
+
 package simonlang.coastdove.core.utility;
 
-import java.lang.reflect.Array;
-import java.util.*;
+import java.util.Arrays;
 
 /**
- * Constructs a power set of a given set element-by-element. The subsets are ordered by size,
- * increasing, e.g. for {A, B, C}, the values returned, in order, are: {C}, {B}, {A}, {C, B},
- * {C, A}, {B, A}, {C, B, A}. Note that the empty set { } is omitted.
- * @param <T> Type of elements contained in the original set (and thus, also in the sets of this
- *           powerset)
+ * Enumerates the subsets of a set of setSize elements (indices 0 to setSize - 1), ordered by size,
+ * increasing, up to a maximum size. Subsets are returned as bit masks: as a primitive long if the
+ * set has at most 64 elements (see {@link #nextMask()}), as long words otherwise
+ * (see {@link #next(long[])}), so enumerating allocates nothing. The subsets of each size are
+ * stepped through in increasing order of their masks (Gosper's hack), e.g. for a set of 3 elements,
+ * the masks returned, in order, are: 001, 010, 100, 011, 101, 110, 111. Note that the empty set
+ * is omitted.
+ * <p>
+ * The enumeration can be saved and resumed (see {@link #getCursor()}), and split into ranges
+ * (see {@link #trySplit()}), e.g. to let fork-join workers each enumerate a part of the subsets.
+ * Not thread-safe.
  */
-public class PowerSet<T extends Comparable> {
+public class PowerSet {
+    private static final int WORD_SIZE = 64;
 
-//    public static int numberElementsForSize()
+    /** Number of elements of the original set */
+    private final int setSize;
+    /** Minimum size of the subsets enumerated */
+    private final int minCardinality;
+    /** Maximum size of the subsets enumerated */
+    private final int maxCardinality;
+    /** Size of the current subset */
+    private int cardinality;
+    /** Current subset, if setSize <= 64 */
+    private long mask;
+    /** Elements of the current subset in increasing order, if setSize > 64 */
+    private int[] positions;
+    /** Index of the current subset among all subsets enumerated, see {@link #indexOf(int, long)} */
+    private long index;
+    /** Index at which to stop, exclusive */
+    private long end;
 
-    private int setSize;
-    private T[] setAsArray;
-    private BitSet bitSet;
-    private Comparator<? super T> comparator;
+    /**
+     * Creates a power set of a set of the given size
+     * @param setSize    Number of elements of the original set
+     */
+    public PowerSet(int setSize) {
+        this(setSize, 1, setSize);
+    }
 
     /**
-     * Creates a power set of the given set
-     * @param set the original set
-     * @param comparator the comparator to use when creating the subsets
+     * Creates a power set of a set of the given size, limited to subsets of the given sizes
+     * @param setSize           Number of elements of the original set
+     * @param minCardinality    Minimum size of the subsets, at least 1
+     * @param maxCardinality    Maximum size of the subsets
      */
-    //@SuppressWarnings("unchecked")
-    public PowerSet(Set<T> set, Class<T[]> clazz, Comparator<? super T> comparator) {
-        this.setSize = set.size();
-        this.bitSet = new BitSet(setSize);
-        this.comparator = comparator;
-        if (setSize > 0) {
-            this.setAsArray = set.toArray(clazz.cast(Array.newInstance(clazz.getComponentType(), setSize)));
-            this.bitSet.set(setSize - 1);
-        }
+    public PowerSet(int setSize, int minCardinality, int maxCardinality) {
+        if (setSize < 0 || minCardinality < 1)
+            throw new IllegalArgumentException("Invalid power set of " + setSize + " elements, minimum size " +
+                    minCardinality);
+        this.setSize = setSize;
+        this.minCardinality = minCardinality;
+        this.maxCardinality = Math.min(maxCardinality, setSize);
+        this.positions = setSize > WORD_SIZE ? new int[Math.max(0, this.maxCardinality)] : null;
+        this.end = indexOf(this.maxCardinality + 1, 0);
+        startOver(minCardinality);
     }
 
     /**
      * Returns true if and only if the power set has another element
-     * @return True iff the power set has another element
      */
     public boolean hasNext() {
-        return bitSet.nextSetBit(0) != -1;
+        return index < end;
     }
 
     /**
      * Returns the size of the set returned when calling next()
      */
     public int sizeOfNext() {
-        return bitSet.cardinality();
+        return cardinality;
     }
 
     /**
@@ -76,96 +102,203 @@ public class PowerSet<T extends Comparable> {
     }
 
     /**
-     * Returns the next element. Can be called even if hasNext() returns false,
-     * then the empty set is returned and the PowerSet is reset.
-     * @return the next element
+     * Returns the number of subsets left, saturated at Long.MAX_VALUE
+     */
+    public long remaining() {
+        return end - index;
+    }
+
+    /**
+     * Returns the next subset of a set of at most 64 elements
+     * @return Bit i is set iff element i is contained in the subset
      */
-    public Set<T> next() {
-        Set<T> result = currentSubset();
-        nextBitPattern();
+    public long nextMask() {
+        if (positions != null)
+            throw new IllegalStateException("Set of " + setSize + " elements does not fit into a long");
+        long result = mask;
+        step();
         return result;
     }
 
     /**
-     * @return the current subset that is returned by next()
+     * Writes the next subset into the given words
+     * @param words    At least (setSize + 63) / 64 words; bit i of word w is set iff
+     *                 element 64 * w + i is contained in the subset
+     * @return Size of the subset
      */
-    private Set<T> currentSubset() {
-        Set<T> result = new TreeSet<>(this.comparator);
-        for (int index = bitSet.nextSetBit(0); index != -1; index = bitSet.nextSetBit(index + 1))
-            result.add(setAsArray[index]);
+    public int next(long[] words) {
+        int result = cardinality;
+        if (positions == null) {
+            words[0] = mask;
+        }
+        else {
+            Arrays.fill(words, 0, (setSize + WORD_SIZE - 1) / WORD_SIZE, 0);
+            for (int i = 0; i < cardinality; ++i)
+                words[positions[i] / WORD_SIZE] |= 1L << (positions[i] % WORD_SIZE);
+        }
+        step();
         return result;
     }
 
     /**
-     * Resets the power set to the point where next() returns the first
-     * subset with #newCardinality elements
-     * @param newCardinality the number of elements the next call of next() shall return
+     * Resets the power set to the point where next() returns the first subset with
+     * newCardinality elements. The end of the enumeration stays the same.
+     * @param newCardinality    the number of elements the next call of next() shall return
      */
     public void startOver(int newCardinality) {
-        // 11100000
-        // ^^^^^^^^
-        // 00001111
-        for (int i = 0; i < setSize; ++i)
-            bitSet.clear(i);
-
-        // only set new 1s if we haven't reached the maximum
-        if (newCardinality <= setSize)
-            for (int i = setSize - 1; i >= setSize - newCardinality; --i)
-                bitSet.set(i);
-    }
-
-    /**
-     * "Increments" the internal BitSet, i.e. moves the set values in a way that
-     * all setups with n set values are used before going to (n+1) set values, e.g.
-     * 0001
-     * 0010
-     * 0100
-     * 1000
-     * 0011
-     * 0101
-     * 1001
-     * 0110
-     * 1010
-     * 1100
-     * 0111
-     * ...
-     */
-    private void nextBitPattern() {
-        // not 111...10...000?
-        if (bitSet.nextClearBit(0) < bitSet.previousSetBit(setSize)) {
-            // 0...?
-            if (bitSet.nextSetBit(0) > 0) {
-                // 0010...11
-                //   ^
-                int nextSetIndex = bitSet.nextSetBit(0);
-
-                // 0000...11
-                bitSet.clear(nextSetIndex);
-
-                // 0100...11
-                bitSet.set(nextSetIndex - 1);
+        cardinality = Math.max(newCardinality, minCardinality);
+        if (cardinality > maxCardinality) {
+            index = end;
+            return;
+        }
+        index = indexOf(cardinality, 0);
+        firstOfCardinality();
+    }
+
+    /**
+     * Returns the position of the enumeration, to be resumed with {@link #resume(long[])} by a
+     * power set of the same size and limits
+     */
+    public long[] getCursor() {
+        return new long[] { index, end };
+    }
+
+    /**
+     * Resumes the enumeration at the position returned by {@link #getCursor()}
+     */
+    public void resume(long[] cursor) {
+        this.end = cursor[1];
+        seek(cursor[0]);
+    }
+
+    /**
+     * Splits off the first half of the subsets left, if there are enough of them: the power set
+     * returned enumerates them, while this one skips them. Applied recursively, e.g. by fork-join
+     * tasks, this lets workers each enumerate a range of the subsets.
+     * @return Power set of the first half of the subsets left, or null if there are less than 2
+     *         subsets left, or if their number is too large to be counted
+     */
+    public PowerSet trySplit() {
+        long left = end - index;
+        if (left < 2 || end == Long.MAX_VALUE)
+            return null;
+
+        long middle = index + left / 2;
+        PowerSet prefix = new PowerSet(setSize, minCardinality, maxCardinality);
+        prefix.end = middle;
+        prefix.seek(index);
+        seek(middle);
+        return prefix;
+    }
+
+    /**
+     * Moves to the subset with the given index
+     */
+    private void seek(long newIndex) {
+        index = newIndex;
+        if (index >= end)
+            return;
+
+        // Find the cardinality, then the rank within the subsets of that cardinality
+        cardinality = minCardinality;
+        while (indexOf(cardinality + 1, 0) <= newIndex)
+            ++cardinality;
+        long rank = newIndex - indexOf(cardinality, 0);
+
+        // Combinatorial number system: rank = sum of binomial(c_i, i) for the elements c_k > ... > c_1
+        mask = 0;
+        int element = setSize - 1;
+        for (int i = cardinality; i >= 1; --i) {
+            while (binomial(element, i) > rank)
+                --element;
+            rank -= binomial(element, i);
+            if (positions != null)
+                positions[i - 1] = element;
+            else
+                mask |= 1L << element;
+            --element;
+        }
+    }
+
+    /**
+     * Moves to the next subset
+     */
+    private void step() {
+        if (++index >= end)
+            return;
+
+        if (positions == null) {
+            long last = cardinality == WORD_SIZE ? -1L :
+                    ((1L << cardinality) - 1) << (setSize - cardinality);
+            if (mask == last) {
+                ++cardinality;
+                firstOfCardinality();
+                return;
             }
-            else {
-                // 1110001...0
-                // ^^^
-                // 000
-                int firstClearIndex = bitSet.nextClearBit(0);
-                for (int i = 0; i < firstClearIndex; ++i)
-                    bitSet.clear(i);
-
-                // 0000001...0
-                //   ^^^^^
-                //   11110
-                int nextSetIndex = bitSet.nextSetBit(firstClearIndex);
-                bitSet.clear(nextSetIndex);
-                int stopIndex = nextSetIndex - firstClearIndex;
-                for (int i = nextSetIndex - 1; i >= stopIndex - 1; --i)
-                    bitSet.set(i);
+            // Gosper's hack: next larger mask with the same number of bits set
+            long lowest = mask & -mask;
+            long ripple = mask + lowest;
+            mask = (((ripple ^ mask) >>> 2) / lowest) | ripple;
+        }
+        else {
+            // Same step on the positions: increment the lowest element that can be incremented,
+            // and move all elements below it to the bottom
+            int i = 0;
+            while (i < cardinality && positions[i] + 1 == (i + 1 < cardinality ? positions[i + 1] : setSize))
+                ++i;
+            if (i == cardinality) {
+                ++cardinality;
+                firstOfCardinality();
+                return;
             }
+            ++positions[i];
+            for (int j = 0; j < i; ++j)
+                positions[j] = j;
         }
+    }
+
+    /**
+     * Moves to the first subset of the current cardinality, i.e. the elements 0 to cardinality - 1
+     */
+    private void firstOfCardinality() {
+        if (positions == null)
+            mask = cardinality == WORD_SIZE ? -1L : (1L << cardinality) - 1;
         else {
-            startOver(bitSet.cardinality() + 1);
+            for (int i = 0; i < cardinality; ++i)
+                positions[i] = i;
         }
     }
 
+    /**
+     * Returns the index of the given subset of the given cardinality among all subsets enumerated,
+     * saturated at Long.MAX_VALUE
+     * @param cardinality    Cardinality of the subset
+     * @param rank           Rank of the subset among the subsets of its cardinality
+     */
+    private long indexOf(int cardinality, long rank) {
+        long result = rank;
+        for (int k = minCardinality; k < cardinality; ++k) {
+            result += binomial(setSize, k);
+            if (result < 0)
+                return Long.MAX_VALUE;
+        }
+        return result;
+    }
+
+    /**
+     * Returns n choose k, saturated at Long.MAX_VALUE
+     */
+    private static long binomial(int n, int k) {
+        if (k < 0 || k > n)
+            return 0;
+        k = Math.min(k, n - k);
+        long result = 1;
+        for (int i = 0; i < k; ++i) {
+            // result * (n - i) / (i + 1) is exact, as result * (n - i) is a multiple of (i + 1)
+            if (result > Long.MAX_VALUE / (n - i))
+                return Long.MAX_VALUE;
+            result = result * (n - i) / (i + 1);
+        }
+        return result;
+    }
 }
@@ -0,0 +1,164 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+
+package simonlang.coastdove.core.detection;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares identifier quality and setup time of exhaustive subset enumeration and greedy
+ * identification, on synthetic layout corpora. Each corpus has a few android IDs shared by
+ * most layouts (like toolbars), and android IDs whose frequency decreases quadratically.
+ * Only a small corpus is checked with the unit tests; the large corpora take a while and are
+ * meant to be run by hand.
+ */
+public class LayoutIdentifierSearchBenchmark {
+    private static final int MAX_IDENTIFIER_SIZE = 3;
+    /** Layouts, android IDs in total and maximum android IDs per layout of the corpus checked by default */
+    private static final int[] SMALL_CORPUS = {200, 600, 20};
+    /** Layouts, android IDs in total and maximum android IDs per layout of each corpus */
+    private static final int[][] CORPORA = {
+            {500, 1500, 20},
+            {2000, 3000, 40},
+            {1000, 150, 60}
+    };
+    private static final int SHARED_IDS = 5;
+
+    /** Quality of the identifiers found for a corpus */
+    private static class Quality {
+        private int identified;
+        private int identifiers;
+        private int totalSize;
+        private long millis;
+
+        private String format() {
+            return identified + "\t" + (identifiers == 0 ? "-" : String.format("%.2f", (double)totalSize / identifiers)) +
+                    "\t" + millis;
+        }
+    }
+
+    private static Map<String, Set<String>> corpus(int layouts, int ids, int maxIdsPerLayout, long seed) {
+        Random random = new Random(seed);
+        Map<String, Set<String>> result = new LinkedHashMap<>();
+        for (int layout = 0; layout < layouts; ++layout) {
+            Set<String> layoutIDs = new TreeSet<>();
+            for (int shared = 0; shared < SHARED_IDS; ++shared) {
+                if (random.nextInt(4) != 0)
+                    layoutIDs.add("id/shared" + shared);
+            }
+            int count = 5 + random.nextInt(maxIdsPerLayout - 4);
+            for (int i = 0; i < count; ++i) {
+                double x = random.nextDouble();
+                layoutIDs.add("id/view" + (int)(x * x * ids));
+            }
+            result.put("layout_" + layout, layoutIDs);
+        }
+        return result;
+    }
+
+    /**
+     * Searches all layouts of the corpus without a unique android ID and checks the identifiers found
+     * @return Identifiers found per layout
+     */
+    private static Map<String, Set<Set<String>>> search(Map<String, Set<String>> corpus, LayoutIdentifierSearch search,
+                                                        int maxExhaustiveCandidates, int greedyStarts,
+                                                        Quality quality) throws Exception {
+        long start = System.nanoTime();
+        Map<String, Set<Set<String>>> result = new HashMap<>();
+        for (LayoutIdentification identification : search.findIdentifiers(MAX_IDENTIFIER_SIZE,
+                maxExhaustiveCandidates, greedyStarts, 1))
+            result.put(identification.getName(), identification.getLayoutIdentifiers());
+        quality.millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        for (Map.Entry<String, Set<Set<String>>> entry : result.entrySet()) {
+            if (!entry.getValue().isEmpty())
+                ++quality.identified;
+            for (Set<String> identifier : entry.getValue()) {
+                ++quality.identifiers;
+                quality.totalSize += identifier.size();
+                assertTrue(identifier.size() <= MAX_IDENTIFIER_SIZE);
+                assertTrue(corpus.get(entry.getKey()).containsAll(identifier));
+                // No other layout contains the whole identifier
+                for (Map.Entry<String, Set<String>> layout : corpus.entrySet()) {
+                    if (!layout.getKey().equals(entry.getKey()))
+                        assertFalse(entry.getKey() + " " + identifier, layout.getValue().containsAll(identifier));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Searches the corpus exhaustively and greedily, checking all identifiers found
+     * @return Quality of exhaustive search, greedy search from 1 start and from 4 starts
+     */
+    private static Quality[] compare(int[] parameters) throws Exception {
+        Map<String, Set<String>> corpus = corpus(parameters[0], parameters[1], parameters[2], parameters[0]);
+        LayoutIdentifierSearch search = new LayoutIdentifierSearch(corpus);
+        search.findIdentifiers(MAX_IDENTIFIER_SIZE, 0, 1, 1); // warm-up
+
+        Quality[] qualities = { new Quality(), new Quality(), new Quality() };
+        Map<String, Set<Set<String>>> smallest = search(corpus, search, Integer.MAX_VALUE, 0, qualities[0]);
+        Map<String, Set<Set<String>>> greedy = search(corpus, search, 0, 1, qualities[1]);
+        search(corpus, search, 0, 4, qualities[2]);
+
+        // Exhaustive search finds the smallest identifiers, if it finds any
+        for (Map.Entry<String, Set<Set<String>>> entry : greedy.entrySet()) {
+            Set<Set<String>> exhaustiveIdentifiers = smallest.get(entry.getKey());
+            if (entry.getValue().isEmpty() || exhaustiveIdentifiers.isEmpty())
+                continue;
+            assertTrue(entry.getValue().iterator().next().size() >=
+                    exhaustiveIdentifiers.iterator().next().size());
+        }
+        return qualities;
+    }
+
+    @Test
+    public void identifiers_areUniqueAndExhaustiveOnesSmallest() throws Exception {
+        Quality[] qualities = compare(SMALL_CORPUS);
+        assertTrue(qualities[0].identified > 0);
+        assertTrue(qualities[1].identified > 0);
+    }
+
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void identifiers_exhaustiveVersusGreedy() throws Exception {
+        StringBuilder table = new StringBuilder("Identified layouts, average identifier size, setup time (ms)\n" +
+                "corpus\t\texhaustive\t\tgreedy (1 start)\t\tgreedy (4 starts)");
+        for (int[] parameters : CORPORA) {
+            Quality[] qualities = compare(parameters);
+            table.append("\n").append(parameters[0]).append("x").append(parameters[2]).append("\t\t")
+                    .append(qualities[0].format()).append("\t\t").append(qualities[1].format()).append("\t\t")
+                    .append(qualities[2].format());
+        }
+        System.out.println(table);
+    }
+}
@@ -0,0 +1,264 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.core.detection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the scores of {@link LayoutSimilarity} and the android IDs packed by {@link ViewIdTable}
+ * against sets of strings, on a toy app and on random screens of a synthetic one.
+ */
+public class LayoutSimilarityTest {
+    private static final String PACKAGE = "com.example";
+
+    /** Layout with its score, for the reference ranking */
+    private static class Scored {
+        private final int layout;
+        private final float score;
+
+        private Scored(int layout, float score) {
+            this.layout = layout;
+            this.score = score;
+        }
+    }
+
+    private static Set<String> set(String... ids) {
+        Set<String> result = new HashSet<>();
+        Collections.addAll(result, ids);
+        return result;
+    }
+
+    /**
+     * Toy app: "a" and "c" are equal, "b" overlaps them, "d" spans several words and "e" is
+     * only known from its unique android ID, without a set of android IDs
+     */
+    private static Map<String, Set<String>> toyLayouts() {
+        Map<String, Set<String>> layouts = new LinkedHashMap<>();
+        layouts.put("a", set("id/x", "id/y", "id/z"));
+        layouts.put("b", set("id/x", "id/w"));
+        layouts.put("c", set("id/x", "id/y", "id/z"));
+        Set<String> wide = new HashSet<>();
+        for (int i = 0; i < 150; ++i)
+            wide.add("id/wide" + i);
+        wide.add("id/x");
+        layouts.put("d", wide);
+        return layouts;
+    }
+
+    private static ViewIdTable table(Map<String, Set<String>> layouts) {
+        Map<String, String> idLayoutMap = new HashMap<>();
+        idLayoutMap.put("id/e_only", "e");
+        return new ViewIdTable(PACKAGE, idLayoutMap, Collections.<LayoutIdentification>emptyList(), layouts);
+    }
+
+    /**
+     * Int IDs of the given android IDs, skipping those unknown to the table like {@link OnScreenIDSet}
+     */
+    private static int[] lookup(ViewIdTable table, Set<String> screen) {
+        int[] ids = new int[screen.size()];
+        int k = 0;
+        for (String id : screen) {
+            int viewId = table.lookup(PACKAGE + ":" + id);
+            if (viewId >= 0)
+                ids[k++] = viewId;
+        }
+        return Arrays.copyOf(ids, k);
+    }
+
+    /**
+     * Scores all layouts of the table with sets of strings, keeping those that share an android ID
+     * with the screen and reach the minimum score, best first, ties by ordinal
+     */
+    private static List<Scored> reference(ViewIdTable table, Map<String, Set<String>> layouts, Set<String> screen,
+                                          LayoutSimilarity.Metric metric, float minScore) {
+        Set<String> screenIDs = new HashSet<>();
+        for (Set<String> layoutIDs : layouts.values()) {
+            for (String id : layoutIDs) {
+                if (screen.contains(id))
+                    screenIDs.add(id);
+            }
+        }
+
+        List<Scored> result = new ArrayList<>();
+        for (int layout = 0; layout < table.getLayoutCount(); ++layout) {
+            Set<String> layoutIDs = layouts.get(table.getLayoutName(layout));
+            if (layoutIDs == null)
+                continue;
+            Set<String> common = new HashSet<>(layoutIDs);
+            common.retainAll(screenIDs);
+            if (common.isEmpty())
+                continue;
+            Set<String> union = new HashSet<>(layoutIDs);
+            union.addAll(screenIDs);
+            float score = metric == LayoutSimilarity.Metric.CONTAINMENT ?
+                    (float)common.size() / layoutIDs.size() : (float)common.size() / union.size();
+            if (score >= minScore)
+                result.add(new Scored(layout, score));
+        }
+        Collections.sort(result, new Comparator<Scored>() {
+            @Override
+            public int compare(Scored lhs, Scored rhs) {
+                int byScore = Float.compare(rhs.score, lhs.score);
+                return byScore != 0 ? byScore : lhs.layout - rhs.layout;
+            }
+        });
+        return result;
+    }
+
+    private static void assertMatchesReference(ViewIdTable table, Map<String, Set<String>> layouts,
+                                               LayoutSimilarity similarity, int maxCandidates, Set<String> screen,
+                                               LayoutSimilarity.Metric metric, float minScore) {
+        int[] ids = lookup(table, screen);
+        int count = similarity.score(ids, ids.length, metric, minScore);
+        List<Scored> expected = reference(table, layouts, screen, metric, minScore);
+        assertEquals(screen + " " + metric, Math.min(maxCandidates, expected.size()), count);
+        for (int k = 0; k < count; ++k) {
+            assertEquals(screen + " " + metric + " #" + k, expected.get(k).layout, similarity.getCandidate(k));
+            assertEquals(screen + " " + metric + " #" + k, expected.get(k).score, similarity.getScore(k), 0f);
+        }
+    }
+
+    @Test
+    public void packedLayouts_matchSets() throws Exception {
+        Map<String, Set<String>> layouts = toyLayouts();
+        ViewIdTable table = table(layouts);
+        assertTrue(table.hasLayoutIDSets());
+        assertTrue(table.getBitWordCount() >= 3);
+
+        long[] allBits = new long[table.getBitWordCount()];
+        for (int id = 0; id < table.size(); ++id) {
+            if (table.getIdBit(id) >= 0)
+                allBits[table.getIdBit(id) >>> 6] |= 1L << table.getIdBit(id);
+        }
+        for (int layout = 0; layout < table.getLayoutCount(); ++layout) {
+            Set<String> layoutIDs = layouts.get(table.getLayoutName(layout));
+            int size = layoutIDs == null ? 0 : layoutIDs.size();
+            assertEquals(table.getLayoutName(layout), size, table.getLayoutIdCount(layout));
+            assertEquals(table.getLayoutName(layout), size, table.countContained(layout, allBits));
+        }
+        // Only known from its unique android ID, so it has no bit
+        assertEquals(-1, table.getIdBit(table.lookup("id/e_only")));
+
+        // Older indexes have no packed android IDs, so nothing is scored
+        ViewIdTable unpacked = new ViewIdTable(PACKAGE, new HashMap<String, String>(),
+                Collections.<LayoutIdentification>emptyList());
+        assertFalse(unpacked.hasLayoutIDSets());
+        assertEquals(0, new LayoutSimilarity(unpacked, 3).score(new int[0], 0, LayoutSimilarity.Metric.JACCARD, 0f));
+    }
+
+    @Test
+    public void scores_toyLayouts() throws Exception {
+        Map<String, Set<String>> layouts = toyLayouts();
+        ViewIdTable table = table(layouts);
+        LayoutSimilarity similarity = new LayoutSimilarity(table, 2);
+
+        // "a" and "c" contain the screen entirely; the tie goes to the lower ordinal
+        int[] ids = lookup(table, set("id/x", "id/y", "id/z", "id/e_only"));
+        assertEquals(2, similarity.score(ids, ids.length, LayoutSimilarity.Metric.CONTAINMENT, 0f));
+        assertEquals("a", table.getLayoutName(similarity.getCandidate(0)));
+        assertEquals(1f, similarity.getScore(0), 0f);
+        assertEquals("c", table.getLayoutName(similarity.getCandidate(1)));
+
+        // Jaccard: |{x, w}| / |{x, y, w}| for "b", |{x, y}| / |{x, y, z, w}| for "a" and "c"
+        ids = lookup(table, set("id/x", "id/y", "id/w"));
+        assertEquals(2, similarity.score(ids, ids.length, LayoutSimilarity.Metric.JACCARD, 0f));
+        assertEquals("b", table.getLayoutName(similarity.getCandidate(0)));
+        assertEquals(2f / 3f, similarity.getScore(0), 0f);
+        assertEquals("a", table.getLayoutName(similarity.getCandidate(1)));
+        assertEquals(0.5f, similarity.getScore(1), 0f);
+
+        // Below the minimum score
+        assertEquals(1, similarity.score(ids, ids.length, LayoutSimilarity.Metric.JACCARD, 0.6f));
+
+        // Nothing known on the screen
+        ids = lookup(table, set("id/e_only"));
+        assertEquals(0, similarity.score(ids, ids.length, LayoutSimilarity.Metric.JACCARD, 0f));
+
+        // Int IDs of android IDs unknown to the table are ignored
+        ids = new int[] { -1, table.lookup(PACKAGE + ":id/w") };
+        assertEquals(1, similarity.score(ids, ids.length, LayoutSimilarity.Metric.CONTAINMENT, 0f));
+        assertEquals("b", table.getLayoutName(similarity.getCandidate(0)));
+
+        List<Set<String>> screens = new ArrayList<>();
+        screens.add(set("id/x"));
+        screens.add(set("id/wide3", "id/wide64", "id/wide128", "id/y"));
+        screens.add(set("id/x", "id/y", "id/z", "id/w", "id/wide0", "id/unknown"));
+        for (LayoutSimilarity.Metric metric : LayoutSimilarity.Metric.values()) {
+            for (Set<String> screen : screens)
+                assertMatchesReference(table, layouts, similarity, 2, screen, metric, 0f);
+        }
+    }
+
+    /** Synthetic app, with android IDs whose frequency decreases quadratically */
+    private static Map<String, Set<String>> syntheticLayouts(int layoutCount, int idCount, Random random) {
+        Map<String, Set<String>> layouts = new LinkedHashMap<>();
+        for (int layout = 0; layout < layoutCount; ++layout) {
+            Set<String> layoutIDs = new HashSet<>();
+            int size = 5 + random.nextInt(30);
+            while (layoutIDs.size() < size) {
+                double x = random.nextDouble();
+                layoutIDs.add("id/view" + (int)(x * x * idCount));
+            }
+            layouts.put("layout_" + layout, layoutIDs);
+        }
+        return layouts;
+    }
+
+    /** Screen showing most of a random layout and a few other android IDs, which the app may not have */
+    private static Set<String> syntheticScreen(Map<String, Set<String>> layouts, int idCount, Random random) {
+        List<Set<String>> layoutIDs = new ArrayList<>(layouts.values());
+        Set<String> screen = new HashSet<>();
+        for (String id : layoutIDs.get(random.nextInt(layoutIDs.size()))) {
+            if (random.nextInt(5) != 0)
+                screen.add(id);
+        }
+        for (int i = 0; i < 5; ++i)
+            screen.add("id/view" + random.nextInt(idCount));
+        return screen;
+    }
+
+    @Test
+    public void scores_randomScreens() throws Exception {
+        Random random = new Random(42);
+        Map<String, Set<String>> layouts = syntheticLayouts(300, 800, random);
+        ViewIdTable table = table(layouts);
+        LayoutSimilarity similarity = new LayoutSimilarity(table, LayoutSimilarity.DEFAULT_MAX_CANDIDATES);
+        for (int i = 0; i < 50; ++i) {
+            Set<String> screen = syntheticScreen(layouts, 800, random);
+            for (LayoutSimilarity.Metric metric : LayoutSimilarity.Metric.values())
+                assertMatchesReference(table, layouts, similarity, LayoutSimilarity.DEFAULT_MAX_CANDIDATES, screen,
+                        metric, LayoutSimilarity.DEFAULT_MIN_SCORE);
+        }
+    }
+}
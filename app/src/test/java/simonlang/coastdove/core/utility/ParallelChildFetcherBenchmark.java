@@ -0,0 +1,137 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.core.utility;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares capture times of trees of varying width, with and without fetching children in parallel.
+ * Fetching a child is simulated by a blocking call of fixed latency, like a binder round trip.
+ * The timing run depends on the machine, so it is ignored by default and meant to be run by hand;
+ * the check that parallel captures match sequential ones always runs.
+ */
+public class ParallelChildFetcherBenchmark {
+    /** Simulated latency of fetching one child, in microseconds */
+    private static final int LATENCY_MICROS = 100;
+    /** Minimum number of children to fetch them in parallel */
+    private static final int MIN_WIDTH = 16;
+    private static final int[] WIDTHS = {4, 16, 64, 256};
+    private static final int[] POOL_SIZES = {0, 1, 2, 4, 8};
+    private static final int RUNS = 5;
+
+    /**
+     * Node of a fake tree, every node of width n has n children of width 2 (which have leaves
+     * as children)
+     */
+    private static class FakeNode {
+        private final int id;
+        private final int width;
+
+        private FakeNode(int id, int width) {
+            this.id = id;
+            this.width = width;
+        }
+    }
+
+    private static final ParallelChildFetcher.ChildSource<FakeNode> FAKE_CHILDREN =
+            new ParallelChildFetcher.ChildSource<FakeNode>() {
+                @Override
+                public int getChildCount(FakeNode node) {
+                    return node.width;
+                }
+
+                @Override
+                public FakeNode getChild(FakeNode node, int index) {
+                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(LATENCY_MICROS));
+                    // Every 7th child has vanished in the meantime
+                    if (index % 7 == 6)
+                        return null;
+                    return new FakeNode(node.id * 1000 + index, node.width > 2 ? 2 : 0);
+                }
+            };
+
+    /**
+     * Captures the tree breadth-first, like ScreenSnapshot
+     * @return IDs of all nodes, in breadth-first order (-1 for null children)
+     */
+    private static List<Integer> capture(FakeNode root, ParallelChildFetcher<FakeNode> fetcher) {
+        List<FakeNode> queue = new ArrayList<>();
+        List<Integer> ids = new ArrayList<>();
+        List<FakeNode> children = new ArrayList<>();
+        queue.add(root);
+        ids.add(root.id);
+        for (int i = 0; i < queue.size(); ++i) {
+            children.clear();
+            fetcher.fetchChildren(queue.get(i), children);
+            for (FakeNode child : children) {
+                ids.add(child == null ? -1 : child.id);
+                if (child != null)
+                    queue.add(child);
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void parallelCapture_preservesOrder() throws Exception {
+        ParallelChildFetcher<FakeNode> sequential = new ParallelChildFetcher<>(FAKE_CHILDREN, 0, MIN_WIDTH);
+        for (int width : WIDTHS) {
+            List<Integer> expected = capture(new FakeNode(1, width), sequential);
+            for (int poolSize : POOL_SIZES) {
+                ParallelChildFetcher<FakeNode> fetcher = new ParallelChildFetcher<>(FAKE_CHILDREN, poolSize, MIN_WIDTH);
+                assertEquals("width " + width + ", " + poolSize + " threads",
+                        expected, capture(new FakeNode(1, width), fetcher));
+                fetcher.shutdown();
+            }
+        }
+    }
+
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void captureTime_byWidthAndPoolSize() throws Exception {
+        long[][] millis = new long[WIDTHS.length][POOL_SIZES.length];
+        StringBuilder table = new StringBuilder("Capture time (ms), " + LATENCY_MICROS + " us per child\nwidth");
+        for (int poolSize : POOL_SIZES)
+            table.append("\t").append(poolSize).append(" thr");
+
+        for (int w = 0; w < WIDTHS.length; ++w) {
+            table.append("\n").append(WIDTHS[w]);
+            for (int p = 0; p < POOL_SIZES.length; ++p) {
+                ParallelChildFetcher<FakeNode> fetcher = new ParallelChildFetcher<>(FAKE_CHILDREN, POOL_SIZES[p], MIN_WIDTH);
+                capture(new FakeNode(1, WIDTHS[w]), fetcher); // warm-up, starts the threads
+                long start = System.nanoTime();
+                for (int run = 0; run < RUNS; ++run)
+                    capture(new FakeNode(1, WIDTHS[w]), fetcher);
+                millis[w][p] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) / RUNS;
+                fetcher.shutdown();
+                table.append("\t").append(millis[w][p]);
+            }
+        }
+        System.out.println(table);
+    }
+}